@@ -12,6 +12,7 @@ import org.acra.config.HttpSenderConfigurationBuilder
 import org.acra.data.StringFormat
 import org.acra.sender.HttpSender
 */
+import android.app.Activity
 import android.app.NotificationChannel
 import android.app.NotificationManager
 import android.content.Context
@@ -19,30 +20,65 @@ import android.content.Intent
 import android.content.SharedPreferences
 import android.os.AsyncTask
 import android.os.Build
+import android.os.Bundle
 import android.os.Handler
 import android.os.Looper
 import android.preference.PreferenceManager
+import android.util.Log
 import androidx.appcompat.app.AppCompatDelegate
+import androidx.databinding.ObservableBoolean
 import com.wireguard.android.backend.Backend
 import com.wireguard.android.backend.GoBackend
 import com.wireguard.android.backend.WgQuickBackend
 import com.wireguard.android.configStore.FileConfigStore
 import com.wireguard.android.model.TunnelManager
 import com.wireguard.android.util.AsyncWorker
+import com.wireguard.android.util.ExceptionLoggers
 import com.wireguard.android.util.RootShell
+import com.wireguard.android.util.StartupTimer
 import com.wireguard.android.util.ToolsInstaller
+import com.wireguard.config.EndpointResolver
 import java9.util.concurrent.CompletableFuture
+import java9.util.function.Consumer
+import java9.util.function.Supplier
 import java.io.File
 import java.lang.ref.WeakReference
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 
 class Application : android.app.Application() {
     private lateinit var asyncWorker: AsyncWorker
+    private lateinit var handler: Handler
     private lateinit var rootShell: RootShell
     private val sharedPreferences: SharedPreferences by lazy { PreferenceManager.getDefaultSharedPreferences(this) }
     private lateinit var toolsInstaller: ToolsInstaller
     private lateinit var tunnelManager: TunnelManager
-    private var backend: Backend? = null
+    private val backendLock = Any()
+    private var detectedBackend: CompletableFuture<Backend>? = null
     private val futureBackend = CompletableFuture<Backend>()
+    private val isForeground = ObservableBoolean()
+    // Tracks whether any activity is visible, so that background work can pause when none is.
+    private val foregroundTracker = object : ActivityLifecycleCallbacks {
+        private var startedActivities = 0
+
+        override fun onActivityStarted(activity: Activity) {
+            if (startedActivities++ == 0)
+                isForeground.set(true)
+        }
+
+        override fun onActivityStopped(activity: Activity) {
+            if (--startedActivities == 0)
+                isForeground.set(false)
+        }
+
+        override fun onActivityCreated(activity: Activity, savedInstanceState: Bundle?) {}
+        override fun onActivityResumed(activity: Activity) {}
+        override fun onActivityPaused(activity: Activity) {}
+        override fun onActivitySaveInstanceState(activity: Activity, outState: Bundle) {}
+        override fun onActivityDestroyed(activity: Activity) {}
+    }
 
     init {
         Application.weakSelf = WeakReference(this)
@@ -80,12 +116,72 @@ class Application : android.app.Application() {
         notificationManager.createNotificationChannel(notificationChannel)
     }
 
+    /**
+     * Starts detecting the backend on the startup executor, unless it is already being detected
+     * or has been; a failed detection is started again on the next call. With the kernel module
+     * present, su is warmed up first; the tools are then symlinked while the backend is created.
+     * If root or the kernel backend is unavailable, the userspace implementation is used instead.
+     */
+    private fun detectBackend(): CompletableFuture<Backend> {
+        synchronized(backendLock) {
+            detectedBackend?.let {
+                if (!it.isCompletedExceptionally)
+                    return it
+            }
+            val executor = AsyncTask.THREAD_POOL_EXECUTOR
+            val hasKernelModule = CompletableFuture.supplyAsync(Supplier {
+                File("/sys/module/wireguard").exists()
+            }, executor)
+            val rootShellStarted = hasKernelModule.thenAcceptAsync(Consumer { kernelModule ->
+                if (kernelModule) {
+                    rootShell.start()
+                    StartupTimer.mark("Root shell started")
+                }
+            }, executor)
+            rootShellStarted.thenRunAsync(Runnable {
+                if (hasKernelModule.join()) {
+                    toolsInstaller.ensureToolsAvailable()
+                    StartupTimer.mark("Tools available")
+                }
+            }, executor).whenComplete(ExceptionLoggers.D)
+            val detection = rootShellStarted.handleAsync<Backend>({ _, throwable ->
+                var backend: Backend? = null
+                if (throwable == null && hasKernelModule.join()) {
+                    try {
+                        backend = WgQuickBackend(applicationContext)
+                    } catch (e: Exception) {
+                        Log.w(TAG, "Unable to use the kernel module, falling back to userspace", e)
+                    }
+                }
+                backend ?: GoBackend(applicationContext)
+            }, executor)
+            detectedBackend = detection
+            detection.whenComplete { backend, throwable ->
+                if (throwable != null) {
+                    Log.e(TAG, "Unable to create a backend", throwable)
+                    return@whenComplete
+                }
+                StartupTimer.mark("Backend ready")
+                // Listeners of backendAsync expect to be called on the main thread.
+                handler.post { futureBackend.complete(backend) }
+            }
+            return detection
+        }
+    }
+
     override fun onCreate() {
         super.onCreate()
+        StartupTimer.start()
 
-        asyncWorker = AsyncWorker(AsyncTask.SERIAL_EXECUTOR, Handler(Looper.getMainLooper()))
+        handler = Handler(Looper.getMainLooper())
+        registerActivityLifecycleCallbacks(foregroundTracker)
+        asyncWorker = AsyncWorker(Executors.newFixedThreadPool(WORKER_THREADS), handler)
         rootShell = RootShell(applicationContext)
         toolsInstaller = ToolsInstaller(applicationContext)
+        val resolverExecutor = ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS, 30, TimeUnit.SECONDS,
+                LinkedBlockingQueue<Runnable>())
+        resolverExecutor.allowCoreThreadTimeOut(true)
+        EndpointResolver.setDefault(EndpointResolver(resolverExecutor))
 
         AppCompatDelegate.setDefaultNightMode(
                 if (sharedPreferences.getBoolean("dark_theme", true))
@@ -94,6 +190,7 @@ class Application : android.app.Application() {
                     AppCompatDelegate.MODE_NIGHT_NO)
 
         tunnelManager = TunnelManager(FileConfigStore(applicationContext))
+        detectBackend()
         tunnelManager.onCreate()
 
         if (sharedPreferences.getBoolean("enable_logging", false)) {
@@ -115,8 +212,7 @@ class Application : android.app.Application() {
                     .setCompress(true)
             ACRA.init(this, configurationBuilder)
         */
-            asyncWorker.supplyAsync<Backend> { getBackend() }.thenAccept { backend ->
-                futureBackend.complete(backend)
+            futureBackend.thenAccept { backend ->
                 /*
                 if (ACRA.isInitialised()) {
                     ACRA.getErrorReporter().putCustomData("backend", backend.javaClass.simpleName)
@@ -133,6 +229,9 @@ class Application : android.app.Application() {
     }
 
     companion object {
+        private val TAG = "WireGuard/" + Application::class.java.simpleName
+        private const val RESOLVER_THREADS = 8
+        private const val WORKER_THREADS = 4
 
         private lateinit var weakSelf: WeakReference<Application>
 
@@ -177,30 +276,25 @@ class Application : android.app.Application() {
             return get().asyncWorker
         }
 
+        /**
+         * Returns the backend, waiting for detection to finish if necessary and trying again if
+         * it failed. This must not be called on the main thread.
+         */
         fun getBackend(): Backend {
-            val app = get()
-            synchronized(app.futureBackend) {
-                if (app.backend == null) {
-                    var backend: Backend? = null
-                    if (File("/sys/module/wireguard").exists()) {
-                        try {
-                            app.rootShell.start()
-                            backend = WgQuickBackend(app.applicationContext)
-                        } catch (ignored: Exception) {
-                        }
-
-                    }
-                    if (backend == null)
-                        backend = GoBackend(app.applicationContext)
-                    app.backend = backend
-                }
-                return app.backend as Backend
-            }
+            return get().detectBackend().join()
         }
 
         val backendAsync: CompletableFuture<Backend>
             get() = get().futureBackend
 
+        /**
+         * Returns whether any activity of the application is visible. It only changes on the
+         * main thread.
+         */
+        fun getForegroundState(): ObservableBoolean {
+            return get().isForeground
+        }
+
         fun getRootShell(): RootShell {
             return get().rootShell
         }
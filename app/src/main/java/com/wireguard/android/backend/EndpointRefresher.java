@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import android.util.Log;
+
+import com.wireguard.android.Application;
+import com.wireguard.android.model.Tunnel;
+import com.wireguard.android.model.Tunnel.Statistics;
+import com.wireguard.android.util.AsyncWorker.Priority;
+import com.wireguard.config.Config;
+import com.wireguard.config.EndpointResolver;
+import com.wireguard.config.Peer;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+import androidx.collection.ArrayMap;
+
+/**
+ * Periodically re-resolves the host name endpoints of running tunnels, so that peers behind
+ * dynamic DNS keep working. Answers come from the {@link EndpointResolver#getDefault() default
+ * resolver}, which looks hosts up again once its cached answer expires; a peer whose last
+ * handshake is stale has its cached answer discarded first. Only endpoints whose address actually
+ * changed are pushed to the backend, without restarting the tunnel.
+ */
+
+final class EndpointRefresher {
+    private static final long REFRESH_INTERVAL = 30 * 1000;
+    private static final long STALE_HANDSHAKE = 3 * 60 * 1000;
+    private static final String TAG = "WireGuard/" + EndpointRefresher.class.getSimpleName();
+
+    private final Backend backend;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "EndpointRefresher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<Tunnel, TrackedTunnel> tunnels = new ArrayMap<>();
+    private final Updater updater;
+    @Nullable private ScheduledFuture<?> task;
+
+    EndpointRefresher(final Backend backend, final Updater updater) {
+        this.backend = backend;
+        this.updater = updater;
+    }
+
+    private static boolean isStale(final Statistics statistics, @Nullable final String publicKey) {
+        final int index = publicKey == null ? -1 : statistics.indexOf(publicKey);
+        if (index < 0)
+            return false;
+        final long handshake = statistics.getLatestHandshake(index);
+        return handshake == 0 || System.currentTimeMillis() - handshake > STALE_HANDSHAKE;
+    }
+
+    private void refresh() {
+        final List<TrackedTunnel> snapshot;
+        synchronized (tunnels) {
+            snapshot = new ArrayList<>(tunnels.values());
+        }
+        for (final TrackedTunnel tracked : snapshot) {
+            try {
+                refresh(tracked);
+            } catch (final InterruptedException e) {
+                return;
+            } catch (final Exception e) {
+                Log.w(TAG, "Unable to refresh endpoints of " + tracked.tunnel.getName(), e);
+            }
+        }
+    }
+
+    private void refresh(final TrackedTunnel tracked) throws Exception {
+        // Queue behind any pending operations on the tunnel.
+        final Statistics statistics = Application.Companion.getAsyncWorker()
+                .supplyAsyncOnWorker(tracked.tunnel, Priority.BACKGROUND, 0, () -> backend.getStatistics(tracked.tunnel))
+                .toCompletableFuture().get();
+        final List<Peer> peers = tracked.config.getPeers();
+        final List<Peer> changedPeers = new ArrayList<>();
+        final List<InetSocketAddress> changedEndpoints = new ArrayList<>();
+        for (int i = 0; i < peers.size(); ++i) {
+            final Peer peer = peers.get(i);
+            final InetSocketAddress endpoint = peer.getEndpoint();
+            if (endpoint == null || !endpoint.isUnresolved())
+                continue;
+            if (statistics != null && isStale(statistics, peer.getPublicKey()))
+                EndpointResolver.getDefault().invalidate(endpoint.getHostString());
+            final InetSocketAddress resolved;
+            try {
+                resolved = EndpointResolver.getDefault().resolve(endpoint);
+            } catch (final UnknownHostException e) {
+                Log.w(TAG, "Unable to resolve " + endpoint.getHostString(), e);
+                continue;
+            }
+            final InetSocketAddress previous = tracked.endpoints[i];
+            tracked.endpoints[i] = resolved;
+            if (previous != null && !previous.getAddress().equals(resolved.getAddress())) {
+                Log.i(TAG, "Endpoint " + endpoint.getHostString() + " moved to " + resolved.getAddress());
+                changedPeers.add(peer);
+                changedEndpoints.add(resolved);
+            }
+        }
+        if (changedPeers.isEmpty())
+            return;
+        Application.Companion.getAsyncWorker().runAsyncOnWorker(tracked.tunnel, Priority.NORMAL, 0, () -> {
+            synchronized (tunnels) {
+                if (tunnels.get(tracked.tunnel) != tracked)
+                    return;
+            }
+            for (int i = 0; i < changedPeers.size(); ++i)
+                updater.updateEndpoint(tracked.tunnel, changedPeers.get(i), changedEndpoints.get(i));
+        }).toCompletableFuture().get();
+    }
+
+    /**
+     * Starts or continues refreshing the endpoints of a running tunnel.
+     *
+     * @param endpoints The addresses the backend currently uses for each peer, in order, if
+     *                  known. Otherwise, the first refresh only records them.
+     */
+    void track(final Tunnel tunnel, final Config config,
+               @Nullable final InetSocketAddress[] endpoints) {
+        final TrackedTunnel tracked = new TrackedTunnel(tunnel, config);
+        if (endpoints != null)
+            System.arraycopy(endpoints, 0, tracked.endpoints, 0, tracked.endpoints.length);
+        synchronized (tunnels) {
+            tunnels.put(tunnel, tracked);
+            if (task == null)
+                task = scheduler.scheduleWithFixedDelay(this::refresh, REFRESH_INTERVAL,
+                        REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void untrack(final Tunnel tunnel) {
+        synchronized (tunnels) {
+            tunnels.remove(tunnel);
+            if (tunnels.isEmpty() && task != null) {
+                task.cancel(false);
+                task = null;
+            }
+        }
+    }
+
+    interface Updater {
+        /**
+         * Points a peer of a running tunnel at a new address. Called on the worker thread.
+         */
+        void updateEndpoint(Tunnel tunnel, Peer peer, InetSocketAddress endpoint) throws Exception;
+    }
+
+    private static final class TrackedTunnel {
+        private final Config config;
+        private final InetSocketAddress[] endpoints;
+        private final Tunnel tunnel;
+
+        private TrackedTunnel(final Tunnel tunnel, final Config config) {
+            this.config = config;
+            this.tunnel = tunnel;
+            endpoints = new InetSocketAddress[config.getPeers().size()];
+        }
+    }
+}
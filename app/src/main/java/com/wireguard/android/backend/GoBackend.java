@@ -10,6 +10,7 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.os.ParcelFileDescriptor;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.wireguard.android.Application;
@@ -19,44 +20,76 @@ import com.wireguard.android.model.Tunnel.State;
 import com.wireguard.android.model.Tunnel.Statistics;
 import com.wireguard.android.util.ExceptionLoggers;
 import com.wireguard.android.util.SharedLibraryLoader;
+import com.wireguard.config.AllowedIPsTrie;
 import com.wireguard.config.Config;
+import com.wireguard.config.ConfigDiff;
+import com.wireguard.config.EndpointResolver;
 import com.wireguard.config.InetNetwork;
+import com.wireguard.config.InetNetworkSet;
 import com.wireguard.config.Interface;
 import com.wireguard.config.Peer;
 import com.wireguard.crypto.KeyEncoding;
 
 import java.net.InetAddress;
-import java.util.Collections;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Formatter;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import androidx.annotation.Nullable;
+import androidx.collection.ArrayMap;
 import androidx.collection.ArraySet;
 import java9.util.concurrent.CompletableFuture;
 
+/**
+ * Runs tunnels in userspace with wireguard-go. Android permits a single VPN interface per
+ * application, so all running tunnels share one {@link VpnService} session whose addresses and
+ * routes are the union of their configurations; the native library dispatches each outgoing
+ * packet to the tunnel with the most specific route for its destination.
+ *
+ * <p>A session has only one MTU and one list of excluded applications, so a tunnel can only be
+ * started alongside others if it agrees with them on both. Starting it never changes the MTU or
+ * per-application routing of the tunnels already running.
+ */
+
 public final class GoBackend implements Backend {
     private static final String TAG = "WireGuard/" + GoBackend.class.getSimpleName();
+    private static final String ZERO_KEY_HEX = "0000000000000000000000000000000000000000000000000000000000000000";
     private static CompletableFuture<VpnService> vpnService = new CompletableFuture<>();
 
+    private final Map<Tunnel, TunnelHandle> tunnelHandles = new ArrayMap<>();
     private final Context context;
-    @Nullable private Tunnel currentTunnel;
-    private int currentTunnelHandle = -1;
+    private final EndpointRefresher endpointRefresher = new EndpointRefresher(this, this::updateEndpoint);
 
     public GoBackend(final Context context) {
         SharedLibraryLoader.loadSharedLibrary(context, "wg-go");
         this.context = context;
     }
 
+    @Nullable
+    private static native String wgGetConfig(int handle);
+
     private static native int wgGetSocketV4(int handle);
 
     private static native int wgGetSocketV6(int handle);
 
+    private static native int wgSetConfig(int handle, String settings);
+
+    private static native int wgSetRoutes(int handle, String routes);
+
+    private static native int wgSetTun(int tunFd);
+
     private static native void wgTurnOff(int handle);
 
-    private static native int wgTurnOn(String ifName, int tunFd, String settings);
+    private static native int wgTurnOn(String ifName, String settings);
 
     private static native String wgVersion();
 
@@ -66,9 +99,171 @@ public final class GoBackend implements Backend {
     @Override
     public String getTypeName() { return "Go userspace"; }
 
+    /**
+     * Writes the UAPI settings for one peer. Updates of an existing peer also replace its allowed
+     * IPs and clear its preshared key if it no longer has one.
+     */
+    private static void formatPeer(final Formatter fmt, final Peer peer,
+                                   @Nullable final InetSocketAddress endpoint, final boolean isUpdate) {
+        if (peer.getPublicKey() != null)
+            fmt.format("public_key=%s\n", KeyEncoding.keyToHex(KeyEncoding.keyFromBase64(peer.getPublicKey())));
+        if (isUpdate)
+            fmt.format("replace_allowed_ips=true\n");
+        if (peer.getPreSharedKey() != null)
+            fmt.format("preshared_key=%s\n", KeyEncoding.keyToHex(KeyEncoding.keyFromBase64(peer.getPreSharedKey())));
+        else if (isUpdate)
+            fmt.format("preshared_key=%s\n", ZERO_KEY_HEX);
+        if (endpoint != null)
+            fmt.format("endpoint=%s\n", EndpointResolver.format(endpoint));
+        if (peer.getPersistentKeepalive() != 0 || isUpdate)
+            fmt.format("persistent_keepalive_interval=%d\n", peer.getPersistentKeepalive());
+        for (final InetNetwork addr : peer.getAllowedIPs())
+            fmt.format("allowed_ip=%s\n", addr.toString());
+    }
+
+    private static String formatConfig(final Config config, final InetSocketAddress[] endpoints) {
+        final Interface iface = config.getInterface();
+        try (final Formatter fmt = new Formatter(new StringBuilder())) {
+            fmt.format("replace_peers=true\n");
+            if (iface.getPrivateKey() != null)
+                fmt.format("private_key=%s\n", KeyEncoding.keyToHex(KeyEncoding.keyFromBase64(iface.getPrivateKey())));
+            if (iface.getListenPort() != 0)
+                fmt.format("listen_port=%d\n", iface.getListenPort());
+            final List<Peer> peers = config.getPeers();
+            for (int i = 0; i < endpoints.length; ++i)
+                formatPeer(fmt, peers.get(i), endpoints[i], false);
+            return fmt.toString();
+        }
+    }
+
+    /**
+     * Checks that a tunnel can share the session with the running tunnels. The caller must hold
+     * the lock on {@link #tunnelHandles}.
+     */
+    private void checkSessionCompatible(final Tunnel tunnel, final Config config) throws Exception {
+        final Interface iface = config.getInterface();
+        final Set<String> excludedApplications = new ArraySet<>(Arrays.asList(iface.getExcludedApplications()));
+        for (final Map.Entry<Tunnel, TunnelHandle> entry : tunnelHandles.entrySet()) {
+            if (entry.getKey() == tunnel)
+                continue;
+            final Interface other = entry.getValue().config.getInterface();
+            if (other.getMtu() != iface.getMtu())
+                throw new Exception("Tunnel " + tunnel.getName() + " has a different MTU than running tunnel "
+                        + entry.getKey().getName());
+            if (!excludedApplications.equals(new ArraySet<>(Arrays.asList(other.getExcludedApplications()))))
+                throw new Exception("Tunnel " + tunnel.getName() + " excludes different applications than running tunnel "
+                        + entry.getKey().getName());
+        }
+    }
+
+    /**
+     * Checks that no running tunnel has any of the allowed IPs of a tunnel. The native library
+     * hands each packet to the tunnel with the most specific route for it, which is ambiguous
+     * only for a prefix that two tunnels share. The caller must hold the lock on
+     * {@link #tunnelHandles}.
+     */
+    private void checkRoutesUnique(final Tunnel tunnel, final Config config) throws Exception {
+        final AllowedIPsTrie routes = AllowedIPsTrie.from(config);
+        for (final Map.Entry<Tunnel, TunnelHandle> entry : tunnelHandles.entrySet()) {
+            if (entry.getKey() == tunnel)
+                continue;
+            for (final InetNetwork prefix : AllowedIPsTrie.from(entry.getValue().config).getPrefixes()) {
+                if (routes.get(prefix) != null)
+                    throw new Exception("Tunnel " + tunnel.getName() + " and running tunnel "
+                            + entry.getKey().getName() + " both route " + prefix);
+            }
+        }
+    }
+
+    /**
+     * Collapses duplicate, covered and adjacent allowed IPs of all peers into the fewest
+     * equivalent routes.
+     */
+    private static List<InetNetwork> getRoutes(final Collection<Config> configs) {
+        final List<InetNetwork> allowedIPs = new ArrayList<>();
+        for (final Config config : configs) {
+            for (final Peer peer : config.getPeers())
+                allowedIPs.addAll(Arrays.asList(peer.getAllowedIPs()));
+        }
+        final List<InetNetwork> routes = InetNetworkSet.of(allowedIPs).toPrefixes();
+        Log.d(TAG, "Aggregated " + allowedIPs.size() + " allowed IPs into " + routes.size() + " routes");
+        return routes;
+    }
+
+    private static String formatUpdate(final ConfigDiff diff) throws UnknownHostException {
+        try (final Formatter fmt = new Formatter(new StringBuilder())) {
+            final Interface iface = diff.getNewConfig().getInterface();
+            if (diff.isPrivateKeyChanged()) {
+                final String privateKey = iface.getPrivateKey();
+                fmt.format("private_key=%s\n", privateKey == null ? ZERO_KEY_HEX
+                        : KeyEncoding.keyToHex(KeyEncoding.keyFromBase64(privateKey)));
+            }
+            if (diff.isListenPortChanged())
+                fmt.format("listen_port=%d\n", iface.getListenPort());
+            for (final Peer peer : diff.getRemovedPeers()) {
+                fmt.format("public_key=%s\n", KeyEncoding.keyToHex(KeyEncoding.keyFromBase64(peer.getPublicKey())));
+                fmt.format("remove=true\n");
+            }
+            final List<Peer> peers = new ArrayList<>(diff.getAddedPeers());
+            peers.addAll(diff.getChangedPeers());
+            final InetSocketAddress[] endpoints = EndpointResolver.getDefault().resolveAll(peers);
+            for (int i = 0; i < endpoints.length; ++i)
+                formatPeer(fmt, peers.get(i), endpoints[i], true);
+            return fmt.toString();
+        }
+    }
+
     @Override
     public Config applyConfig(final Tunnel tunnel, final Config config) throws Exception {
         if (tunnel.getState() == State.UP) {
+            final TunnelHandle handle;
+            synchronized (tunnelHandles) {
+                handle = tunnelHandles.get(tunnel);
+            }
+            if (handle != null) {
+                final ConfigDiff diff = new ConfigDiff(handle.config, config);
+                if (!diff.requiresRestart()) {
+                    if (diff.isEmpty())
+                        return config;
+                    Log.i(TAG, "Applying configuration changes to running tunnel");
+                    final boolean sessionChanged = diff.isRoutesChanged() || diff.isExcludedApplicationsChanged();
+                    final String update = formatUpdate(diff);
+                    // Reverses the update if the session cannot follow it.
+                    final String rollback = sessionChanged ? formatUpdate(new ConfigDiff(config, handle.config)) : null;
+                    synchronized (tunnelHandles) {
+                        if (diff.isExcludedApplicationsChanged())
+                            checkSessionCompatible(tunnel, config);
+                        if (diff.isRoutesChanged())
+                            checkRoutesUnique(tunnel, config);
+                        final int ret = wgSetConfig(handle.handle, update);
+                        if (ret < 0)
+                            throw new Exception("Unable to apply configuration changes (wgSetConfig returned " + ret + ')');
+                        final Config oldConfig = handle.config;
+                        handle.config = config;
+                        if (sessionChanged) {
+                            // Widen or narrow the shared session without interrupting any tunnel.
+                            try {
+                                reestablish();
+                                if (diff.isRoutesChanged())
+                                    setRoutes(handle.handle, config);
+                            } catch (final Exception e) {
+                                // Put the peers and the session back so that they match oldConfig.
+                                handle.config = oldConfig;
+                                if (wgSetConfig(handle.handle, rollback) < 0)
+                                    Log.w(TAG, "Unable to restore previous peers of " + tunnel.getName());
+                                try {
+                                    reestablish();
+                                } catch (final Exception restoreError) {
+                                    e.addSuppressed(restoreError);
+                                }
+                                throw e;
+                            }
+                        }
+                    }
+                    endpointRefresher.track(tunnel, config, null);
+                    return config;
+                }
+            }
             // Restart the tunnel to apply the new config.
             setStateInternal(tunnel, tunnel.getConfig(), State.DOWN);
             try {
@@ -84,22 +279,100 @@ public final class GoBackend implements Backend {
 
     @Override
     public Set<String> enumerate() {
-        if (currentTunnel != null) {
-            final Set<String> runningTunnels = new ArraySet<>();
-            runningTunnels.add(currentTunnel.getName());
-            return runningTunnels;
+        final Set<String> runningTunnels = new ArraySet<>();
+        synchronized (tunnelHandles) {
+            for (final Tunnel tunnel : tunnelHandles.keySet())
+                runningTunnels.add(tunnel.getName());
+        }
+        return runningTunnels;
+    }
+
+    /**
+     * Establishes a VPN session covering every given configuration and hands its tun device to
+     * the native library, replacing the previous session (if any) without interrupting the
+     * tunnels already attached to it. The configurations must have passed
+     * {@link #checkSessionCompatible(Tunnel, Config)}, so they share an MTU and excluded
+     * applications.
+     */
+    private void establish(final VpnService service, final List<String> names,
+                           final List<Config> configs) throws Exception {
+        final VpnService.Builder builder = service.getBuilder();
+        builder.setSession(TextUtils.join(", ", names));
+
+        final Intent configureIntent = new Intent(context, MainActivity.class);
+        configureIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        builder.setConfigureIntent(PendingIntent.getActivity(context, 0, configureIntent, 0));
+
+        final Interface first = configs.get(0).getInterface();
+        for (final String excludedApplication : first.getExcludedApplications())
+            builder.addDisallowedApplication(excludedApplication);
+
+        final Set<InetNetwork> addresses = new ArraySet<>();
+        final Set<InetAddress> dnses = new ArraySet<>();
+        for (final Config config : configs) {
+            final Interface iface = config.getInterface();
+            addresses.addAll(Arrays.asList(iface.getAddresses()));
+            dnses.addAll(Arrays.asList(iface.getDnses()));
+        }
+
+        for (final InetNetwork addr : addresses)
+            builder.addAddress(addr.getAddress(), addr.getMask());
+
+        for (final InetAddress addr : dnses)
+            builder.addDnsServer(addr.getHostAddress());
+
+        for (final InetNetwork route : getRoutes(configs))
+            builder.addRoute(route.getAddress(), route.getMask());
+
+        builder.setMtu(first.getMtu() == 0 ? 1280 : first.getMtu());
+
+        builder.setBlocking(true);
+        try (final ParcelFileDescriptor tun = builder.establish()) {
+            if (tun == null)
+                throw new Exception("Unable to create tun device");
+            final int ret = wgSetTun(tun.detachFd());
+            if (ret < 0)
+                throw new Exception("Unable to attach tun device (wgSetTun returned " + ret + ')');
+        }
+    }
+
+    /**
+     * Re-establishes the shared session for the tunnels that are still running, or releases it
+     * if none are. The caller must hold the lock on {@link #tunnelHandles}.
+     */
+    private void reestablish() throws Exception {
+        if (tunnelHandles.isEmpty()) {
+            wgSetTun(-1);
+            return;
         }
-        return Collections.emptySet();
+        final List<String> names = new ArrayList<>();
+        final List<Config> configs = new ArrayList<>();
+        for (final Map.Entry<Tunnel, TunnelHandle> entry : tunnelHandles.entrySet()) {
+            names.add(entry.getKey().getName());
+            configs.add(entry.getValue().config);
+        }
+        establish(getVpnService(), names, configs);
     }
 
     @Override
     public State getState(final Tunnel tunnel) {
-        return currentTunnel == tunnel ? State.UP : State.DOWN;
+        synchronized (tunnelHandles) {
+            return tunnelHandles.containsKey(tunnel) ? State.UP : State.DOWN;
+        }
     }
 
     @Override
     public Statistics getStatistics(final Tunnel tunnel) {
-        return new Statistics();
+        final TunnelHandle handle;
+        synchronized (tunnelHandles) {
+            handle = tunnelHandles.get(tunnel);
+        }
+        if (handle == null)
+            return new Statistics();
+        final String config = wgGetConfig(handle.handle);
+        if (config == null)
+            return new Statistics();
+        return StatisticsParser.parseUapi(config);
     }
 
     @Override
@@ -109,13 +382,21 @@ public final class GoBackend implements Backend {
             state = originalState == State.UP ? State.DOWN : State.UP;
         if (state == originalState)
             return originalState;
-        if (state == State.UP && currentTunnel != null)
-            throw new IllegalStateException("Only one userspace tunnel can run at a time");
         Log.d(TAG, "Changing tunnel " + tunnel.getName() + " to state " + state);
         setStateInternal(tunnel, tunnel.getConfig(), state);
         return getState(tunnel);
     }
 
+    private VpnService getVpnService() throws Exception {
+        if (!vpnService.isDone())
+            startVpnService();
+        try {
+            return vpnService.get(2, TimeUnit.SECONDS);
+        } catch (final TimeoutException e) {
+            throw new Exception("Unable to start Android VPN service", e);
+        }
+    }
+
     private void setStateInternal(final Tunnel tunnel, @Nullable final Config config, final State state)
             throws Exception {
 
@@ -127,99 +408,97 @@ public final class GoBackend implements Backend {
             if (VpnService.prepare(context) != null)
                 throw new Exception("VPN service not authorized by user");
 
-            final VpnService service;
-            if (!vpnService.isDone())
-                startVpnService();
+            final VpnService service = getVpnService();
 
-            try {
-                service = vpnService.get(2, TimeUnit.SECONDS);
-            } catch (final TimeoutException e) {
-                throw new Exception("Unable to start Android VPN service", e);
-            }
-
-            if (currentTunnelHandle != -1) {
-                Log.w(TAG, "Tunnel already up");
-                return;
-            }
+            // Resolve all endpoints concurrently instead of one peer at a time, and before taking
+            // the lock, so that other tunnels are not held up by DNS.
+            final InetSocketAddress[] endpoints = EndpointResolver.getDefault().resolveAll(config.getPeers());
+            final String goConfig = formatConfig(config, endpoints);
 
-            // Build config
-            final Interface iface = config.getInterface();
-            final String goConfig;
-            try (final Formatter fmt = new Formatter(new StringBuilder())) {
-                fmt.format("replace_peers=true\n");
-                if (iface.getPrivateKey() != null)
-                    fmt.format("private_key=%s\n", KeyEncoding.keyToHex(KeyEncoding.keyFromBase64(iface.getPrivateKey())));
-                if (iface.getListenPort() != 0)
-                    fmt.format("listen_port=%d\n", config.getInterface().getListenPort());
-                for (final Peer peer : config.getPeers()) {
-                    if (peer.getPublicKey() != null)
-                        fmt.format("public_key=%s\n", KeyEncoding.keyToHex(KeyEncoding.keyFromBase64(peer.getPublicKey())));
-                    if (peer.getPreSharedKey() != null)
-                        fmt.format("preshared_key=%s\n", KeyEncoding.keyToHex(KeyEncoding.keyFromBase64(peer.getPreSharedKey())));
-                    if (peer.getEndpoint() != null)
-                        fmt.format("endpoint=%s\n", peer.getResolvedEndpointString());
-                    if (peer.getPersistentKeepalive() != 0)
-                        fmt.format("persistent_keepalive_interval=%d\n", peer.getPersistentKeepalive());
-                    for (final InetNetwork addr : peer.getAllowedIPs()) {
-                        fmt.format("allowed_ip=%s\n", addr.toString());
-                    }
+            final int handle;
+            synchronized (tunnelHandles) {
+                if (tunnelHandles.containsKey(tunnel)) {
+                    Log.w(TAG, "Tunnel already up");
+                    return;
                 }
-                goConfig = fmt.toString();
-            }
-
-            // Create the vpn tunnel with android API
-            final VpnService.Builder builder = service.getBuilder();
-            builder.setSession(tunnel.getName());
 
-            final Intent configureIntent = new Intent(context, MainActivity.class);
-            configureIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            builder.setConfigureIntent(PendingIntent.getActivity(context, 0, configureIntent, 0));
+                checkSessionCompatible(tunnel, config);
+                checkRoutesUnique(tunnel, config);
 
-            for (final String excludedApplication : config.getInterface().getExcludedApplications())
-                builder.addDisallowedApplication(excludedApplication);
-
-            for (final InetNetwork addr : config.getInterface().getAddresses())
-                builder.addAddress(addr.getAddress(), addr.getMask());
-
-            for (final InetAddress addr : config.getInterface().getDnses())
-                builder.addDnsServer(addr.getHostAddress());
-
-            for (final Peer peer : config.getPeers()) {
-                for (final InetNetwork addr : peer.getAllowedIPs())
-                    builder.addRoute(addr.getAddress(), addr.getMask());
-            }
-
-            int mtu = config.getInterface().getMtu();
-            if (mtu == 0)
-                mtu = 1280;
-            builder.setMtu(mtu);
+                // Widen the shared session to include this tunnel before attaching it.
+                final List<String> names = new ArrayList<>();
+                final List<Config> configs = new ArrayList<>();
+                for (final Map.Entry<Tunnel, TunnelHandle> entry : tunnelHandles.entrySet()) {
+                    names.add(entry.getKey().getName());
+                    configs.add(entry.getValue().config);
+                }
+                names.add(tunnel.getName());
+                configs.add(config);
+                establish(service, names, configs);
 
-            builder.setBlocking(true);
-            try (final ParcelFileDescriptor tun = builder.establish()) {
-                if (tun == null)
-                    throw new Exception("Unable to create tun device");
                 Log.d(TAG, "Go backend v" + wgVersion());
-                currentTunnelHandle = wgTurnOn(tunnel.getName(), tun.detachFd(), goConfig);
+                handle = wgTurnOn(tunnel.getName(), goConfig);
+                if (handle < 0) {
+                    reestablish();
+                    throw new Exception("Unable to turn tunnel on (wgTurnOn return " + handle + ')');
+                }
+                try {
+                    setRoutes(handle, config);
+                } catch (final Exception e) {
+                    wgTurnOff(handle);
+                    reestablish();
+                    throw e;
+                }
+                tunnelHandles.put(tunnel, new TunnelHandle(handle, config));
             }
-            if (currentTunnelHandle < 0)
-                throw new Exception("Unable to turn tunnel on (wgTurnOn return " + currentTunnelHandle + ')');
 
-            currentTunnel = tunnel;
+            service.protect(wgGetSocketV4(handle));
+            service.protect(wgGetSocketV6(handle));
 
-            service.protect(wgGetSocketV4(currentTunnelHandle));
-            service.protect(wgGetSocketV6(currentTunnelHandle));
+            endpointRefresher.track(tunnel, config, endpoints);
         } else {
             Log.i(TAG, "Bringing tunnel down");
 
-            if (currentTunnelHandle == -1) {
-                Log.w(TAG, "Tunnel already down");
-                return;
+            endpointRefresher.untrack(tunnel);
+            synchronized (tunnelHandles) {
+                final TunnelHandle handle = tunnelHandles.remove(tunnel);
+                if (handle == null) {
+                    Log.w(TAG, "Tunnel already down");
+                    return;
+                }
+
+                wgTurnOff(handle.handle);
+                // Narrow the shared session to the tunnels still running.
+                reestablish();
             }
+        }
+    }
 
-            wgTurnOff(currentTunnelHandle);
-            currentTunnel = null;
-            currentTunnelHandle = -1;
+    private void updateEndpoint(final Tunnel tunnel, final Peer peer, final InetSocketAddress endpoint)
+            throws Exception {
+        final TunnelHandle handle;
+        synchronized (tunnelHandles) {
+            handle = tunnelHandles.get(tunnel);
         }
+        if (handle == null || peer.getPublicKey() == null)
+            return;
+        final String settings = String.format("public_key=%s\nendpoint=%s\n",
+                KeyEncoding.keyToHex(KeyEncoding.keyFromBase64(peer.getPublicKey())),
+                EndpointResolver.format(endpoint));
+        final int ret = wgSetConfig(handle.handle, settings);
+        if (ret < 0)
+            throw new Exception("Unable to update endpoint (wgSetConfig returned " + ret + ')');
+    }
+
+    /**
+     * Tells the native library which destinations to hand to a tunnel: each distinct allowed IP,
+     * as checked by {@link #checkRoutesUnique(Tunnel, Config)}.
+     */
+    private static void setRoutes(final int handle, final Config config) throws Exception {
+        final List<InetNetwork> routes = AllowedIPsTrie.from(config).getPrefixes();
+        final int ret = wgSetRoutes(handle, TextUtils.join("\n", routes));
+        if (ret < 0)
+            throw new Exception("Unable to set routes for tunnel (wgSetRoutes returned " + ret + ')');
     }
 
     private void startVpnService() {
@@ -227,6 +506,16 @@ public final class GoBackend implements Backend {
         context.startService(new Intent(context, VpnService.class));
     }
 
+    private static final class TunnelHandle {
+        private final int handle;
+        private Config config;
+
+        private TunnelHandle(final int handle, final Config config) {
+            this.handle = handle;
+            this.config = config;
+        }
+    }
+
     public static class VpnService extends android.net.VpnService {
         public Builder getBuilder() {
             return new Builder();
@@ -0,0 +1,202 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+import androidx.collection.ArraySet;
+
+/**
+ * Keeps track of which WireGuard interfaces exist in the kernel by scanning {@code /sys/class/net},
+ * which needs neither root nor a shell. Interfaces already known to be WireGuard interfaces are
+ * not read again, so a scan is normally a directory listing plus the {@code uevent} of the few
+ * other interfaces. While someone is observing, a background thread rescans periodically and
+ * notifies a listener when interfaces appear or disappear, including ones created or removed
+ * outside of this application. Otherwise the interfaces are rescanned whenever they are asked for.
+ */
+
+final class InterfaceWatcher {
+    private static final File NET_DIRECTORY = new File("/sys/class/net");
+    private static final long POLL_INTERVAL = 2000;
+    private static final String TAG = "WireGuard/" + InterfaceWatcher.class.getSimpleName();
+    private static final String WIREGUARD_DEVTYPE = "DEVTYPE=wireguard";
+
+    private final Runnable listener;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "InterfaceWatcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Set<String> interfaces = Collections.emptySet();
+    private boolean isObserved;
+    private volatile boolean isWorking = true;
+    @Nullable private ScheduledFuture<?> poll;
+
+    InterfaceWatcher(final Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns whether the named interface is a WireGuard interface, or null if its attributes
+     * could not be read although it still exists.
+     */
+    @Nullable
+    private static Boolean isWireGuard(final String name) {
+        final File directory = new File(NET_DIRECTORY, name);
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(new File(directory, "uevent")), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (WIREGUARD_DEVTYPE.equals(line))
+                    return true;
+            }
+            return false;
+        } catch (final IOException ignored) {
+            // An interface that disappeared in the meantime is simply not there any more.
+            return directory.exists() ? null : false;
+        }
+    }
+
+    /**
+     * Returns whether a WireGuard interface with the given name existed at the last scan.
+     */
+    boolean contains(final String name) {
+        return interfaces.contains(name);
+    }
+
+    /**
+     * Returns the names of the WireGuard interfaces that existed at the last scan. The set is
+     * never modified after it is returned.
+     */
+    Set<String> getInterfaces() {
+        return interfaces;
+    }
+
+    /**
+     * Returns whether {@code /sys/class/net} could be read. If not, callers must fall back to
+     * asking {@code wg} directly.
+     */
+    boolean isWorking() {
+        return isWorking;
+    }
+
+    /**
+     * Makes sure the result of the last scan is current before it is used. Unless polling keeps
+     * it current, this rescans, so changes made while nobody was observing (from the quick
+     * settings tile, say, or outside of this application) are not missed.
+     *
+     * @return Whether the result of the last scan can be used.
+     */
+    boolean refresh() {
+        synchronized (this) {
+            if (poll != null)
+                return isWorking;
+        }
+        return scan();
+    }
+
+    /**
+     * Rescans immediately, for use right after this application has changed interfaces. The
+     * listener is notified if anything changed, without holding the lock on this watcher. If
+     * {@code /sys/class/net} cannot be listed, or any interface in it cannot be identified, the
+     * scan fails and callers must ask {@code wg} until a later scan succeeds.
+     *
+     * @return Whether the scan succeeded.
+     */
+    boolean scan() {
+        final Set<String> found;
+        final boolean isChanged;
+        synchronized (this) {
+            found = scanInterfaces();
+            isWorking = found != null;
+            isChanged = found != null && !found.equals(interfaces);
+            if (isChanged) {
+                Log.d(TAG, "WireGuard interfaces changed: " + found);
+                interfaces = Collections.unmodifiableSet(found);
+            }
+            updatePolling();
+        }
+        if (isChanged)
+            listener.run();
+        return found != null;
+    }
+
+    @Nullable
+    private Set<String> scanInterfaces() {
+        final String[] names = NET_DIRECTORY.list();
+        if (names == null) {
+            if (isWorking)
+                Log.w(TAG, "Unable to list " + NET_DIRECTORY + ", falling back to wg");
+            return null;
+        }
+        final Set<String> found = new ArraySet<>();
+        for (final String name : names) {
+            // Only positive results are remembered, since an interface being created may not
+            // be identifiable yet.
+            final Boolean isWireGuard = interfaces.contains(name) ? Boolean.TRUE : isWireGuard(name);
+            if (isWireGuard == null) {
+                if (isWorking)
+                    Log.w(TAG, "Unable to read the attributes of " + name + ", falling back to wg");
+                return null;
+            }
+            if (isWireGuard)
+                found.add(name);
+        }
+        return found;
+    }
+
+    /**
+     * Sets whether anyone is looking at tunnel states. Polling only happens while they are, and
+     * an observer arriving gets a fresh scan to catch changes made in the meantime.
+     */
+    synchronized void setObserved(final boolean isObserved) {
+        if (isObserved == this.isObserved)
+            return;
+        this.isObserved = isObserved;
+        if (isObserved)
+            scheduler.execute(this::scan);
+        else
+            updatePolling();
+    }
+
+    /**
+     * Starts or stops polling: it is needed while someone is observing, since interfaces may be
+     * created outside of this application at any time. The caller must hold the lock on this
+     * watcher.
+     */
+    private void updatePolling() {
+        final boolean shouldPoll = isWorking && isObserved;
+        if (shouldPoll && poll == null) {
+            poll = scheduler.scheduleWithFixedDelay(this::scan, POLL_INTERVAL, POLL_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+        } else if (!shouldPoll && poll != null) {
+            poll.cancel(false);
+            poll = null;
+        }
+    }
+
+    /**
+     * Performs an initial scan. Polling then starts and stops as interfaces and observers come
+     * and go.
+     */
+    void start() {
+        scan();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.android.model.Tunnel.Statistics;
+import com.wireguard.crypto.KeyEncoding;
+
+/**
+ * Parsers for the two formats in which WireGuard reports peer statistics. Both scan the text in
+ * place; the only objects created per peer are its public key string and key bytes.
+ */
+
+final class StatisticsParser {
+    private static final int DUMP_PEER_FIELDS = 8;
+
+    private StatisticsParser() {
+        // Prevent instantiation.
+    }
+
+    /**
+     * Parses the output of {@code wg show <interface> dump}: one tab-separated line for the
+     * interface, then one per peer with public key, preshared key, endpoint, allowed IPs, latest
+     * handshake (in seconds), bytes received, bytes sent and persistent keepalive.
+     */
+    static Statistics parseDump(final Iterable<String> lines) {
+        final Statistics statistics = new Statistics();
+        for (final String line : lines)
+            parseDumpLine(statistics, line);
+        return statistics;
+    }
+
+    /**
+     * Parses one line of {@code wg show <interface> dump} output into {@code statistics}, so that
+     * the output can be consumed as it streams from the shell.
+     */
+    static void parseDumpLine(final Statistics statistics, final String line) {
+        String publicKey = null;
+        long latestHandshake = 0;
+        long rx = 0;
+        long tx = 0;
+        int field = 0;
+        int start = 0;
+        while (start <= line.length()) {
+            int end = line.indexOf('\t', start);
+            if (end < 0)
+                end = line.length();
+            switch (field) {
+                case 0:
+                    publicKey = line.substring(start, end);
+                    break;
+                case 4:
+                    latestHandshake = parseLong(line, start, end) * 1000;
+                    break;
+                case 5:
+                    rx = parseLong(line, start, end);
+                    break;
+                case 6:
+                    tx = parseLong(line, start, end);
+                    break;
+                default:
+                    break;
+            }
+            ++field;
+            start = end + 1;
+        }
+        // The interface line has fewer fields.
+        if (field == DUMP_PEER_FIELDS && publicKey != null)
+            statistics.add(publicKey, rx, tx, latestHandshake);
+    }
+
+    /**
+     * Parses key=value lines from a UAPI {@code get=1} operation, where each peer starts with a
+     * hex {@code public_key} line.
+     */
+    static Statistics parseUapi(final String config) {
+        final Statistics statistics = new Statistics();
+        String publicKey = null;
+        long handshakeSeconds = 0;
+        long handshakeNanos = 0;
+        long rx = 0;
+        long tx = 0;
+        int start = 0;
+        while (start < config.length()) {
+            int end = config.indexOf('\n', start);
+            if (end < 0)
+                end = config.length();
+            final int equals = config.indexOf('=', start);
+            if (equals > start && equals < end) {
+                final int value = equals + 1;
+                if (config.startsWith("public_key=", start)) {
+                    if (publicKey != null)
+                        statistics.add(publicKey, rx, tx, handshakeSeconds * 1000 + handshakeNanos / 1000000);
+                    publicKey = KeyEncoding.keyToBase64(KeyEncoding.keyFromHex(config.substring(value, end)));
+                    handshakeSeconds = 0;
+                    handshakeNanos = 0;
+                    rx = 0;
+                    tx = 0;
+                } else if (config.startsWith("rx_bytes=", start)) {
+                    rx = parseLong(config, value, end);
+                } else if (config.startsWith("tx_bytes=", start)) {
+                    tx = parseLong(config, value, end);
+                } else if (config.startsWith("last_handshake_time_sec=", start)) {
+                    handshakeSeconds = parseLong(config, value, end);
+                } else if (config.startsWith("last_handshake_time_nsec=", start)) {
+                    handshakeNanos = parseLong(config, value, end);
+                }
+            }
+            start = end + 1;
+        }
+        if (publicKey != null)
+            statistics.add(publicKey, rx, tx, handshakeSeconds * 1000 + handshakeNanos / 1000000);
+        return statistics;
+    }
+
+    /**
+     * Parses a non-negative decimal number without creating a substring. Anything else is 0.
+     */
+    private static long parseLong(final String text, final int start, final int end) {
+        long value = 0;
+        for (int i = start; i < end; ++i) {
+            final char c = text.charAt(i);
+            if (c < '0' || c > '9')
+                return 0;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
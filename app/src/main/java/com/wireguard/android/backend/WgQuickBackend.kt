@@ -13,14 +13,19 @@ import android.content.Intent
 import android.util.Log
 import androidx.core.app.NotificationCompat
 import androidx.core.app.NotificationManagerCompat
+import androidx.databinding.Observable
 import com.wireguard.android.Application
 import com.wireguard.android.activity.MainActivity
 import com.wireguard.android.model.Tunnel
 import com.wireguard.android.model.Tunnel.State
 import com.wireguard.android.model.Tunnel.Statistics
 import com.wireguard.android.model.TunnelManager
+import com.wireguard.config.Attribute
 import com.wireguard.config.Config
+import com.wireguard.config.ConfigDiff
+import com.wireguard.config.EndpointResolver
 import com.wireguard.android.R
+import java9.util.function.Consumer
 import java.io.File
 import java.io.FileOutputStream
 import java.nio.charset.StandardCharsets
@@ -36,6 +41,29 @@ class WgQuickBackend(context: Context) : Backend {
     private val localTemporaryDir: File = File(context.cacheDir, "tmp")
     private var notificationManager: NotificationManagerCompat = NotificationManagerCompat.from(context)
     private var cachedContext: Context = context
+    // wg-quick picks routing tables and rules by looking at the ones already present, so
+    // tunnels of different names must not be brought up or down at the same time.
+    private val wgQuickLock = Any()
+    private val interfaceWatcher = InterfaceWatcher(Runnable { Application.getTunnelManager().refreshTunnelStates() })
+    private val endpointRefresher = EndpointRefresher(this, EndpointRefresher.Updater { tunnel, peer, endpoint ->
+        val command = String.format("wg set '%s' peer '%s' endpoint '%s'",
+                tunnel.name, peer.publicKey, EndpointResolver.format(endpoint))
+        val result = Application.getRootShell().run(null, command)
+        if (result != 0)
+            throw Exception("Unable to update endpoint (wg returned $result)")
+    })
+
+    init {
+        interfaceWatcher.start()
+        // Only poll for changes made outside the application while someone can see them.
+        val foregroundState = Application.getForegroundState()
+        foregroundState.addOnPropertyChangedCallback(object : Observable.OnPropertyChangedCallback() {
+            override fun onPropertyChanged(sender: Observable, propertyId: Int) {
+                interfaceWatcher.setObserved(foregroundState.get())
+            }
+        })
+        interfaceWatcher.setObserved(foregroundState.get())
+    }
 
     @Throws(Exception::class)
     override fun getVersion(): String {
@@ -53,6 +81,19 @@ class WgQuickBackend(context: Context) : Backend {
     @Throws(Exception::class)
     override fun applyConfig(tunnel: Tunnel?, config: Config?): Config? {
         if (tunnel?.state == State.UP) {
+            val oldConfig = tunnel.config
+            if (oldConfig != null && config != null) {
+                val diff = ConfigDiff(oldConfig, config)
+                // wg-quick set up the routes and application rules, so changing them means
+                // running it again.
+                if (!diff.requiresRestart() && !diff.isRoutesChanged && !diff.isExcludedApplicationsChanged) {
+                    if (!diff.isEmpty) {
+                        applyDiff(tunnel, diff)
+                        endpointRefresher.track(tunnel, config, null)
+                    }
+                    return config
+                }
+            }
             // Restart the tunnel to apply the new config.
             setStateInternal(tunnel, tunnel.config, State.DOWN)
             try {
@@ -67,28 +108,82 @@ class WgQuickBackend(context: Context) : Backend {
         return config
     }
 
+    /**
+     * Applies peer and key changes to a running interface with `wg`, leaving addresses and routes
+     * (and so every existing flow) alone.
+     */
+    @Throws(Exception::class)
+    private fun applyDiff(tunnel: Tunnel, diff: ConfigDiff) {
+        Log.d(TAG, "Applying configuration changes to running tunnel " + tunnel.name)
+        val update = StringBuilder()
+        if (diff.isPrivateKeyChanged || diff.isListenPortChanged) {
+            val iface = diff.newConfig.getInterface()
+            update.append("[Interface]\n")
+            Attribute.PRIVATE_KEY.appendTo(update, iface.privateKey ?: ZERO_KEY)
+            Attribute.LISTEN_PORT.appendTo(update, iface.listenPort)
+        }
+        for (peer in diff.addedPeers + diff.changedPeers) {
+            // Every attribute is written so that stale values on an existing peer are replaced.
+            update.append("[Peer]\n")
+            Attribute.PUBLIC_KEY.appendTo(update, peer.publicKey!!)
+            Attribute.PRESHARED_KEY.appendTo(update, peer.preSharedKey ?: ZERO_KEY)
+            peer.endpointString?.let { Attribute.ENDPOINT.appendTo(update, it) }
+            Attribute.PERSISTENT_KEEPALIVE.appendTo(update, peer.persistentKeepalive)
+            Attribute.ALLOWED_IPS.appendTo(update, peer.allowedIPs.asList())
+        }
+
+        val commands = ArrayList<String>()
+        for (peer in diff.removedPeers)
+            commands.add(String.format("wg set '%s' peer '%s' remove", tunnel.name, peer.publicKey))
+        val tempFile = File(localTemporaryDir, tunnel.name + ".update.conf")
+        if (update.isNotEmpty()) {
+            FileOutputStream(tempFile, false).use { stream -> stream.write(update.toString().toByteArray(StandardCharsets.UTF_8)) }
+            commands.add(String.format("wg addconf '%s' '%s'", tunnel.name, tempFile.absolutePath))
+        }
+        val result = Application.getRootShell().run(null, commands.joinToString(" && "))
+        tempFile.delete()
+        if (result != 0)
+            throw Exception("Unable to apply configuration changes (wg returned $result)")
+    }
+
     override fun enumerate(): Set<String> {
+        if (interfaceWatcher.refresh())
+            return interfaceWatcher.interfaces
         val output = ArrayList<String>()
         // Don't throw an exception here or nothing will show up in the UI.
         try {
             Application.getToolsInstaller().ensureToolsAvailable()
-            if (Application.getRootShell().run(output, "wg show interfaces") != 0 || output.isEmpty())
+            if (Application.getRootShell().run(output, "wg show interfaces") != 0)
                 return emptySet()
         } catch (e: Exception) {
             Log.w(TAG, "Unable to enumerate running tunnels", e)
             return emptySet()
         }
-
-        // wg puts all interface names on the same line. Split them into separate elements.
-        return output[0].split(" ".toRegex()).toSet()
+        return parseInterfaces(output)
     }
 
     override fun getState(tunnel: Tunnel?): State? {
-        return if (enumerate().contains(tunnel?.name)) State.UP else State.DOWN
+        val name = tunnel?.name ?: return State.DOWN
+        if (interfaceWatcher.refresh())
+            return if (interfaceWatcher.contains(name)) State.UP else State.DOWN
+        return if (enumerate().contains(name)) State.UP else State.DOWN
     }
 
     override fun getStatistics(tunnel: Tunnel?): Statistics? {
-        return Statistics()
+        // Parse each line as it is read instead of collecting the whole dump first.
+        val statistics = Statistics()
+        try {
+            val results = Application.getRootShell().newBatch()
+                    .add(Consumer { line -> StatisticsParser.parseDumpLine(statistics, line) }, null,
+                            "wg show '" + tunnel?.name + "' dump")
+                    .run()
+            if (results[0] != 0)
+                return Statistics()
+        } catch (e: Exception) {
+            Log.w(TAG, "Unable to get statistics for tunnel " + tunnel?.name, e)
+            return Statistics()
+        }
+        return statistics
     }
 
     @Throws(Exception::class)
@@ -101,27 +196,45 @@ class WgQuickBackend(context: Context) : Backend {
             return originalState
         Log.d(TAG, "Changing tunnel " + tunnel?.name + " to state " + stateToSet)
         Application.getToolsInstaller().ensureToolsAvailable()
-        setStateInternal(tunnel, tunnel?.config, stateToSet)
-        return getState(tunnel)
+        return setStateInternal(tunnel, tunnel?.config, stateToSet)
     }
 
+    /**
+     * Runs `wg-quick` and lists the running interfaces afterwards in the same root shell round
+     * trip, returning the resulting state of the tunnel.
+     */
     @Throws(Exception::class)
-    private fun setStateInternal(tunnel: Tunnel?, config: Config?, state: State?) {
+    private fun setStateInternal(tunnel: Tunnel?, config: Config?, state: State?): State {
         Objects.requireNonNull<Config>(config, "Trying to set state with a null config")
 
         val tempFile = File(localTemporaryDir, tunnel?.name + ".conf")
-        FileOutputStream(tempFile, false).use { stream -> stream.write(config!!.toString().toByteArray(StandardCharsets.UTF_8)) }
+        FileOutputStream(tempFile, false).use { stream -> config!!.writeTo(stream) }
         var command = String.format("wg-quick %s '%s'",
                 state.toString().toLowerCase(), tempFile.absolutePath)
         if (state == State.UP)
             command = "cat /sys/module/wireguard/version && $command"
-        val result = Application.getRootShell().run(null, command)
+        // Without the interface watcher, list the interfaces in the same round trip.
+        val interfaces = ArrayList<String>()
+        val batch = Application.getRootShell().newBatch().add(null, command)
+        if (!interfaceWatcher.isWorking)
+            batch.add(interfaces, "wg show interfaces")
+        val results = synchronized(wgQuickLock) { batch.run() }
 
         tempFile.delete()
-        when (result) {
+        when (results[0]) {
             0 -> postNotification(state, tunnel)
-            else -> throw Exception("Unable to configure tunnel (wg-quick returned " + result + ')'.toString())
+            else -> throw Exception("Unable to configure tunnel (wg-quick returned " + results[0] + ')'.toString())
         }
+        // wg-quick resolved the endpoints itself, so the first refresh only records them.
+        if (state == State.UP)
+            endpointRefresher.track(tunnel!!, config!!, null)
+        else
+            tunnel?.let { endpointRefresher.untrack(it) }
+        val running = if (interfaceWatcher.scan())
+            interfaceWatcher.contains(tunnel?.name ?: "")
+        else
+            results.size > 1 && results[1] == 0 && parseInterfaces(interfaces).contains(tunnel?.name)
+        return if (running) State.UP else State.DOWN
     }
 
     private fun postNotification(state: State?, tunnel: Tunnel?) {
@@ -145,5 +258,15 @@ class WgQuickBackend(context: Context) : Backend {
 
     companion object {
         private val TAG = "WireGuard/" + WgQuickBackend::class.java.simpleName
+        private const val ZERO_KEY = "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA="
+
+        /**
+         * Parses the output of `wg show interfaces`, which puts all interface names on one line.
+         */
+        private fun parseInterfaces(output: List<String>): Set<String> {
+            if (output.isEmpty() || output[0].isEmpty())
+                return emptySet()
+            return output[0].split(" ".toRegex()).toSet()
+        }
     }
 }
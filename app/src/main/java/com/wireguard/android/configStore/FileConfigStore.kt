@@ -10,7 +10,6 @@ import android.content.Context
 import android.util.Log
 import com.wireguard.config.Config
 import java.io.*
-import java.nio.charset.StandardCharsets
 
 /**
  * Configuration store that uses a `wg-quick`-style file for each configured tunnel.
@@ -24,7 +23,7 @@ class FileConfigStore(private val context: Context) : ConfigStore {
         val file = fileFor(name)
         if (!file.createNewFile())
             throw IOException("Configuration file " + file.name + " already exists")
-        FileOutputStream(file, false).use { stream -> stream.write(config.toString().toByteArray(StandardCharsets.UTF_8)) }
+        FileOutputStream(file, false).use { stream -> config.writeTo(stream) }
         return config
     }
 
@@ -72,7 +71,7 @@ class FileConfigStore(private val context: Context) : ConfigStore {
         val file = fileFor(name)
         if (!file.isFile)
             throw FileNotFoundException("Configuration file " + file.name + " not found")
-        FileOutputStream(file, false).use { stream -> stream.write(config.toString().toByteArray(StandardCharsets.UTF_8)) }
+        FileOutputStream(file, false).use { stream -> config.writeTo(stream) }
         return config
     }
 
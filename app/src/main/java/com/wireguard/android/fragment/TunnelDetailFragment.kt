@@ -7,26 +7,50 @@
 package com.wireguard.android.fragment
 
 import android.os.Bundle
+import android.text.format.Formatter
 import android.view.LayoutInflater
 import android.view.Menu
 import android.view.MenuInflater
 import android.view.View
 import android.view.ViewGroup
 
+import com.wireguard.android.Application
+import com.wireguard.android.BR
 import com.wireguard.android.R
 import com.wireguard.android.databinding.TunnelDetailFragmentBinding
+import com.wireguard.android.databinding.TunnelDetailPeerBinding
 import com.wireguard.android.model.Tunnel
+import com.wireguard.android.viewmodel.ConfigProxy
 import com.wireguard.config.Config
 
+import androidx.databinding.DataBindingUtil
+import androidx.databinding.Observable
+
 /**
  * Fragment that shows details about a specific tunnel.
  */
 
 class TunnelDetailFragment : BaseFragment() {
     private var binding: TunnelDetailFragmentBinding? = null
+    private val statisticsCallback = object : Observable.OnPropertyChangedCallback() {
+        override fun onPropertyChanged(sender: Observable?, propertyId: Int) {
+            if (propertyId == BR.statistics || propertyId == BR._all)
+                updateStatistics()
+        }
+    }
+
+    private fun formatTransfer(rx: Long, rxRate: Long, tx: Long, txRate: Long): String {
+        val context = requireContext()
+        return getString(R.string.transfer_rx_tx,
+                Formatter.formatShortFileSize(context, rx), Formatter.formatShortFileSize(context, rxRate),
+                Formatter.formatShortFileSize(context, tx), Formatter.formatShortFileSize(context, txRate))
+    }
 
     private fun onConfigLoaded(name: String, config: Config) {
-        binding?.config = Config.Observable(config, name)
+        binding?.config = ConfigProxy(config, name)
+        // Create the peer cards now so that they show the current transfer right away.
+        binding?.executePendingBindings()
+        updateStatistics()
     }
 
     override fun onCreate(savedInstanceState: Bundle?) {
@@ -47,14 +71,28 @@ class TunnelDetailFragment : BaseFragment() {
     }
 
     override fun onDestroyView() {
+        selectedTunnel?.removeOnPropertyChangedCallback(statisticsCallback)
         binding = null
         super.onDestroyView()
     }
 
+    override fun onPause() {
+        Application.getTunnelManager().statisticsSampler.release(this)
+        super.onPause()
+    }
+
+    override fun onResume() {
+        super.onResume()
+        Application.getTunnelManager().statisticsSampler.request(this)
+    }
+
     override fun onSelectedTunnelChanged(oldTunnel: Tunnel?, newTunnel: Tunnel?) {
+        oldTunnel?.removeOnPropertyChangedCallback(statisticsCallback)
         if (binding == null)
             return
+        newTunnel?.addOnPropertyChangedCallback(statisticsCallback)
         binding?.tunnel = newTunnel
+        updateStatistics()
         if (newTunnel == null)
             binding?.config = null
         else
@@ -71,4 +109,36 @@ class TunnelDetailFragment : BaseFragment() {
         super.onViewStateRestored(savedInstanceState)
     }
 
+    /**
+     * Shows the total transfer of the tunnel and of each of its peers, together with the rates
+     * over the latest sampling interval. Nothing is shown while the tunnel is not running.
+     */
+    private fun updateStatistics() {
+        val binding = binding ?: return
+        val tunnel = binding.tunnel
+        val statistics = if (tunnel?.state == Tunnel.State.UP) tunnel.statistics else null
+        val visibility = if (statistics != null) View.VISIBLE else View.GONE
+        binding.transferLabel.visibility = visibility
+        binding.transferText.visibility = visibility
+        if (statistics != null) {
+            val history = tunnel!!.trafficHistory
+            binding.transferText.text = formatTransfer(statistics.totalRxBytes, history.totalRxRate,
+                    statistics.totalTxBytes, history.totalTxRate)
+        }
+        for (i in 0 until binding.peersLayout.childCount) {
+            val peer: TunnelDetailPeerBinding = DataBindingUtil.getBinding(binding.peersLayout.getChildAt(i))
+                    ?: continue
+            val publicKey = peer.item?.publicKey
+            val index = if (statistics == null || publicKey == null) -1 else statistics.indexOf(publicKey)
+            val peerVisibility = if (index >= 0) View.VISIBLE else View.GONE
+            peer.transferLabel.visibility = peerVisibility
+            peer.transferText.visibility = peerVisibility
+            if (index < 0)
+                continue
+            val history = tunnel!!.trafficHistory
+            peer.transferText.text = formatTransfer(statistics!!.getRxBytes(index), history.getRxRate(publicKey!!),
+                    statistics.getTxBytes(index), history.getTxRate(publicKey))
+        }
+    }
+
 }
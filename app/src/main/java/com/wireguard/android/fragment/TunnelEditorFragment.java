@@ -28,9 +28,10 @@ import com.wireguard.android.fragment.AppListDialogFragment.AppExclusionListener
 import com.wireguard.android.model.Tunnel;
 import com.wireguard.android.model.TunnelManager;
 import com.wireguard.android.util.ExceptionLoggers;
+import com.wireguard.android.viewmodel.ConfigProxy;
+import com.wireguard.android.viewmodel.PeerProxy;
 import com.wireguard.config.Attribute;
 import com.wireguard.config.Config;
-import com.wireguard.config.Peer;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -56,7 +57,7 @@ public class TunnelEditorFragment extends BaseFragment implements AppExclusionLi
 
     private void onConfigLoaded(final String name, final Config config) {
         if (binding != null) {
-            binding.setConfig(new Config.Observable(config, name));
+            binding.setConfig(new ConfigProxy(config, name));
         }
     }
 
@@ -89,21 +90,21 @@ public class TunnelEditorFragment extends BaseFragment implements AppExclusionLi
         inflater.inflate(R.menu.config_editor, menu);
     }
 
-    private final ObservableList.OnListChangedCallback<? extends ObservableList<Peer.Observable>> breakObjectListOrientedLayeringHandler = new ObservableList.OnListChangedCallback<ObservableList<Peer.Observable>>() {
+    private final ObservableList.OnListChangedCallback<? extends ObservableList<PeerProxy>> breakObjectListOrientedLayeringHandler = new ObservableList.OnListChangedCallback<ObservableList<PeerProxy>>() {
         @Override
-        public void onChanged(final ObservableList<Peer.Observable> sender) { }
+        public void onChanged(final ObservableList<PeerProxy> sender) { }
         @Override
-        public void onItemRangeChanged(final ObservableList<Peer.Observable> sender, final int positionStart, final int itemCount) { }
+        public void onItemRangeChanged(final ObservableList<PeerProxy> sender, final int positionStart, final int itemCount) { }
         @Override
-        public void onItemRangeMoved(final ObservableList<Peer.Observable> sender, final int fromPosition, final int toPosition, final int itemCount) { }
+        public void onItemRangeMoved(final ObservableList<PeerProxy> sender, final int fromPosition, final int toPosition, final int itemCount) { }
 
         @Override
-        public void onItemRangeInserted(final ObservableList<Peer.Observable> sender, final int positionStart, final int itemCount) {
+        public void onItemRangeInserted(final ObservableList<PeerProxy> sender, final int positionStart, final int itemCount) {
             if (binding != null)
                 breakObjectOrientedLayeringHandler.onPropertyChanged(binding.getConfig(), BR.peers);
         }
         @Override
-        public void onItemRangeRemoved(final ObservableList<Peer.Observable> sender, final int positionStart, final int itemCount) {
+        public void onItemRangeRemoved(final ObservableList<PeerProxy> sender, final int positionStart, final int itemCount) {
             if (binding != null)
                 breakObjectOrientedLayeringHandler.onPropertyChanged(binding.getConfig(), BR.peers);
         }
@@ -115,7 +116,7 @@ public class TunnelEditorFragment extends BaseFragment implements AppExclusionLi
         public void onPropertyChanged(final Observable sender, final int propertyId) {
             if (binding == null)
                 return;
-            final Config.Observable config = binding.getConfig();
+            final ConfigProxy config = binding.getConfig();
             if (config == null)
                 return;
             if (propertyId == BR.config) {
@@ -130,7 +131,7 @@ public class TunnelEditorFragment extends BaseFragment implements AppExclusionLi
             else
                 return;
             final int numSiblings = config.getPeers().size() - 1;
-            for (final Peer.Observable peer : config.getPeers()) {
+            for (final PeerProxy peer : config.getPeers()) {
                 peer.setInterfaceDNSRoutes(config.getInterfaceSection().getDnses());
                 peer.setNumSiblings(numSiblings);
             }
@@ -231,7 +232,7 @@ public class TunnelEditorFragment extends BaseFragment implements AppExclusionLi
         tunnel = newTunnel;
         if (binding == null)
             return;
-        binding.setConfig(new Config.Observable(null, null));
+        binding.setConfig(new ConfigProxy(null, null));
         if (tunnel != null)
             tunnel.getConfigAsync().thenAccept(a -> onConfigLoaded(tunnel.getName(), a));
     }
@@ -285,7 +286,7 @@ public class TunnelEditorFragment extends BaseFragment implements AppExclusionLi
             onSelectedTunnelChanged(null, getSelectedTunnel());
         } else {
             tunnel = getSelectedTunnel();
-            final Config.Observable config = savedInstanceState.getParcelable(KEY_LOCAL_CONFIG);
+            final ConfigProxy config = savedInstanceState.getParcelable(KEY_LOCAL_CONFIG);
             final String originalName = savedInstanceState.getString(KEY_ORIGINAL_NAME);
             if (tunnel != null && !tunnel.getName().equals(originalName))
                 onSelectedTunnelChanged(null, tunnel);
@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.model;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.wireguard.config.Config;
+import com.wireguard.config.Interface;
+import com.wireguard.config.Peer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import java9.util.function.Predicate;
+
+/**
+ * Bounds the memory held by parsed configurations. Configurations are weighed by an estimate of
+ * their heap size, and when the total exceeds the limit, those of the least recently used tunnels
+ * are dropped from their tunnels, to be reloaded from the config store on next access. Tunnels
+ * matching {@code isPinned}, or pinned while in use, are never evicted.
+ *
+ * Eviction changes the model and evaluates {@code isPinned} against main-thread state, so it
+ * always happens on the main thread, even when the cache is updated from elsewhere. Backends read
+ * configurations on the worker, so the bookkeeping itself may be updated from any thread.
+ */
+
+final class ConfigCache {
+    private static final int ADDRESS_WEIGHT = 64;
+    private static final int CONFIG_WEIGHT = 512;
+    private static final int PEER_WEIGHT = 256;
+    private static final int STRING_WEIGHT = 48;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Predicate<Tunnel> isPinned;
+    private final long maxWeight;
+    private final Map<Tunnel, Integer> pins = new HashMap<>();
+    private final LinkedHashMap<Tunnel, Integer> weights = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    ConfigCache(final long maxWeight, final Predicate<Tunnel> isPinned) {
+        this.isPinned = isPinned;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Returns a rough estimate of the heap size of a parsed configuration, in bytes.
+     */
+    static int estimateWeight(final Config config) {
+        final Interface iface = config.getInterface();
+        int weight = CONFIG_WEIGHT;
+        weight += (iface.getAddresses().length + iface.getDnses().length) * ADDRESS_WEIGHT;
+        for (final String application : iface.getExcludedApplications())
+            weight += STRING_WEIGHT + 2 * application.length();
+        for (final Peer peer : config.getPeers())
+            weight += PEER_WEIGHT + peer.getAllowedIPs().length * ADDRESS_WEIGHT;
+        return weight;
+    }
+
+    /**
+     * Keeps the configuration of {@code tunnel} loaded until the matching {@link #unpin(Tunnel)}.
+     */
+    synchronized void pin(final Tunnel tunnel) {
+        final Integer count = pins.get(tunnel);
+        pins.put(tunnel, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Records that {@code tunnel} now holds {@code config}, evicting others if needed.
+     */
+    synchronized void put(final Tunnel tunnel, final Config config) {
+        final Integer previous = weights.put(tunnel, estimateWeight(config));
+        if (previous != null)
+            weight -= previous;
+        weight += weights.get(tunnel);
+        trim();
+    }
+
+    synchronized void remove(final Tunnel tunnel) {
+        final Integer previous = weights.remove(tunnel);
+        if (previous != null)
+            weight -= previous;
+    }
+
+    /**
+     * Marks the configuration of {@code tunnel} as recently used.
+     */
+    synchronized void touch(final Tunnel tunnel) {
+        weights.get(tunnel);
+    }
+
+    private void trim() {
+        if (Looper.myLooper() != handler.getLooper()) {
+            handler.post(() -> {
+                synchronized (this) {
+                    trim();
+                }
+            });
+            return;
+        }
+        final Iterator<Map.Entry<Tunnel, Integer>> iterator = weights.entrySet().iterator();
+        while (weight > maxWeight && iterator.hasNext()) {
+            final Map.Entry<Tunnel, Integer> entry = iterator.next();
+            // Always keep the most recently used configuration, even if it alone is too heavy.
+            if (!iterator.hasNext())
+                break;
+            final Tunnel tunnel = entry.getKey();
+            if (pins.containsKey(tunnel) || isPinned.test(tunnel))
+                continue;
+            iterator.remove();
+            weight -= entry.getValue();
+            tunnel.onConfigEvicted();
+        }
+    }
+
+    synchronized void unpin(final Tunnel tunnel) {
+        final Integer count = pins.get(tunnel);
+        if (count == null)
+            return;
+        if (count > 1) {
+            pins.put(tunnel, count - 1);
+        } else {
+            pins.remove(tunnel);
+            trim();
+        }
+    }
+}
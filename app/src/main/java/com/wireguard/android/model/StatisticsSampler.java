@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.wireguard.android.Application;
+import com.wireguard.android.model.Tunnel.State;
+import com.wireguard.android.model.Tunnel.Statistics;
+import com.wireguard.android.util.ExceptionLoggers;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import java9.util.concurrent.CompletableFuture;
+
+/**
+ * Periodically fetches statistics for every running tunnel and pushes them to the tunnels'
+ * observers. Components that display statistics register interest while visible; sampling happens
+ * every second while anything is interested and stops entirely otherwise. Only used on the main
+ * thread.
+ */
+
+public final class StatisticsSampler {
+    private static final long INTERVAL = 1000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Set<Object> interests = new HashSet<>();
+    private final TunnelManager manager;
+    private final Runnable sampleRunnable = this::sample;
+    private boolean isSampling;
+    private long lastSample;
+
+    StatisticsSampler(final TunnelManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Stops sampling on behalf of {@code owner}.
+     */
+    public void release(final Object owner) {
+        if (interests.remove(owner))
+            schedule();
+    }
+
+    /**
+     * Starts or continues sampling on behalf of {@code owner}.
+     */
+    public void request(final Object owner) {
+        if (interests.add(owner))
+            schedule();
+    }
+
+    private void sample() {
+        final List<Tunnel> tunnels = manager.getTunnels().getNow(null);
+        if (tunnels == null || isSampling) {
+            schedule();
+            return;
+        }
+        final List<Tunnel> sampledTunnels = new ArrayList<>();
+        final List<CompletableFuture<Statistics>> futures = new ArrayList<>();
+        for (final Tunnel tunnel : tunnels) {
+            if (tunnel.getState() == State.UP) {
+                sampledTunnels.add(tunnel);
+                futures.add(manager.fetchTunnelStatistics(tunnel).toCompletableFuture());
+            }
+        }
+        isSampling = true;
+        lastSample = SystemClock.elapsedRealtime();
+        // Hand all of the results to the main thread at once, rather than one message per tunnel.
+        Application.Companion.getAsyncWorker()
+                .observeOnMain(CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])))
+                .whenComplete((ignored, e) -> {
+                    for (int i = 0; i < futures.size(); ++i) {
+                        final CompletableFuture<Statistics> future = futures.get(i);
+                        if (!future.isCompletedExceptionally())
+                            sampledTunnels.get(i).onStatisticsChanged(future.join());
+                    }
+                    isSampling = false;
+                    schedule();
+                })
+                .whenComplete(ExceptionLoggers.D);
+    }
+
+    /**
+     * Takes a sample as soon as possible, even if nothing has registered interest.
+     */
+    public void sampleSoon() {
+        if (!isSampling) {
+            handler.removeCallbacks(sampleRunnable);
+            handler.post(sampleRunnable);
+        }
+    }
+
+    private void schedule() {
+        handler.removeCallbacks(sampleRunnable);
+        if (interests.isEmpty() || isSampling)
+            return;
+        final long elapsed = SystemClock.elapsedRealtime() - lastSample;
+        handler.postDelayed(sampleRunnable, Math.max(0, INTERVAL - elapsed));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.model;
+
+import com.wireguard.android.model.Tunnel.Statistics;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Recent per-peer traffic of a tunnel, kept as the bytes transferred between consecutive
+ * statistics samples. Every series is a fixed-size {@code long[]} ring buffer, so recording a
+ * sample allocates nothing once a peer has been seen. Only used on the main thread.
+ */
+
+public final class TrafficHistory {
+    public static final int CAPACITY = 120;
+
+    private final Map<String, PeerHistory> peers = new HashMap<>();
+    private final long[] timestamps = new long[CAPACITY];
+    private int generation;
+    private int head;
+    private int size;
+
+    void clear() {
+        peers.clear();
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Returns the number of bytes received from a peer in the interval ending {@code age}
+     * samples ago, or 0 if the peer was not present.
+     */
+    public long getRxDelta(final String publicKey, final int age) {
+        final PeerHistory peer = peers.get(publicKey);
+        return peer == null ? 0 : peer.rx[slot(age)];
+    }
+
+    /**
+     * Returns the rate at which data was received from all peers over the latest interval, in
+     * bytes per second.
+     */
+    public long getTotalRxRate() {
+        long total = 0;
+        for (final PeerHistory peer : peers.values())
+            total += peer.rx[slot(0)];
+        return rate(total);
+    }
+
+    public long getTotalTxRate() {
+        long total = 0;
+        for (final PeerHistory peer : peers.values())
+            total += peer.tx[slot(0)];
+        return rate(total);
+    }
+
+    public long getRxRate(final String publicKey) {
+        return rate(getRxDelta(publicKey, 0));
+    }
+
+    /**
+     * Returns the {@link android.os.SystemClock#elapsedRealtime()} time of the sample taken
+     * {@code age} samples ago.
+     */
+    public long getTimestamp(final int age) {
+        return timestamps[slot(age)];
+    }
+
+    public long getTxDelta(final String publicKey, final int age) {
+        final PeerHistory peer = peers.get(publicKey);
+        return peer == null ? 0 : peer.tx[slot(age)];
+    }
+
+    public long getTxRate(final String publicKey) {
+        return rate(getTxDelta(publicKey, 0));
+    }
+
+    private long rate(final long bytes) {
+        if (size < 2)
+            return 0;
+        final long elapsed = timestamps[slot(0)] - timestamps[slot(1)];
+        return elapsed > 0 ? bytes * 1000 / elapsed : 0;
+    }
+
+    void record(final Statistics statistics) {
+        final int slot = head;
+        ++generation;
+        timestamps[slot] = statistics.getCollectedAt();
+        for (int i = 0; i < statistics.getPeerCount(); ++i) {
+            final String publicKey = statistics.getPublicKey(i);
+            PeerHistory peer = peers.get(publicKey);
+            if (peer == null) {
+                peer = new PeerHistory();
+                peers.put(publicKey, peer);
+            }
+            peer.record(slot, generation, statistics.getRxBytes(i), statistics.getTxBytes(i));
+        }
+        // Peers missing from this sample transferred nothing; forget them once they age out.
+        final Iterator<PeerHistory> it = peers.values().iterator();
+        while (it.hasNext()) {
+            final PeerHistory peer = it.next();
+            if (peer.generation == generation)
+                continue;
+            if (generation - peer.generation >= CAPACITY) {
+                it.remove();
+                continue;
+            }
+            peer.rx[slot] = 0;
+            peer.tx[slot] = 0;
+        }
+        head = (head + 1) % CAPACITY;
+        if (size < CAPACITY)
+            ++size;
+    }
+
+    /**
+     * Returns the number of samples recorded, up to {@link #CAPACITY}.
+     */
+    public int size() {
+        return size;
+    }
+
+    private int slot(final int age) {
+        if (age < 0 || age >= size)
+            throw new IndexOutOfBoundsException("Sample " + age + " of " + size);
+        return (head - 1 - age + CAPACITY) % CAPACITY;
+    }
+
+    private static final class PeerHistory {
+        final long[] rx = new long[CAPACITY];
+        final long[] tx = new long[CAPACITY];
+        int generation;
+        long lastRx = -1;
+        long lastTx = -1;
+
+        void record(final int slot, final int sampleGeneration, final long rxBytes,
+                    final long txBytes) {
+            // The first sample has no baseline, and a counter that went backwards was reset.
+            rx[slot] = lastRx < 0 ? 0 : rxBytes >= lastRx ? rxBytes - lastRx : rxBytes;
+            tx[slot] = lastTx < 0 ? 0 : txBytes >= lastTx ? txBytes - lastTx : txBytes;
+            lastRx = rxBytes;
+            lastTx = txBytes;
+            generation = sampleGeneration;
+        }
+    }
+}
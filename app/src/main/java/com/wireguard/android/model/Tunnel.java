@@ -6,11 +6,14 @@
 
 package com.wireguard.android.model;
 
+import android.os.SystemClock;
+
 import com.wireguard.android.BR;
 import com.wireguard.android.util.ExceptionLoggers;
 import com.wireguard.config.Config;
 import com.wireguard.util.Keyed;
 
+import java.util.Arrays;
 import java.util.regex.Pattern;
 
 import androidx.annotation.Nullable;
@@ -24,6 +27,7 @@ import java9.util.concurrent.CompletionStage;
  */
 
 public class Tunnel extends BaseObservable implements Keyed<String> {
+    private static final long MAX_STATISTICS_AGE = 1000;
     public static final int NAME_MAX_LENGTH = 15;
     private static final Pattern NAME_PATTERN = Pattern.compile("[a-zA-Z0-9_=+.-]{1,15}");
 
@@ -32,6 +36,7 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
     private String name;
     private State state;
     @Nullable private Statistics statistics;
+    private final TrafficHistory trafficHistory = new TrafficHistory();
 
     Tunnel(final TunnelManager manager, final String name,
            @Nullable final Config config, final State state) {
@@ -49,16 +54,26 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
         return manager.delete(this);
     }
 
+    /**
+     * Returns the configuration if it is loaded, and otherwise starts loading it. Configurations
+     * of tunnels that have not been used recently may be evicted to save memory, in which case
+     * they are transparently reloaded here.
+     */
     @Bindable @Nullable
     public Config getConfig() {
+        final Config config = this.config;
         if (config == null)
             manager.getTunnelConfig(this).whenComplete(ExceptionLoggers.E);
+        else
+            manager.getConfigCache().touch(this);
         return config;
     }
 
     public CompletionStage<Config> getConfigAsync() {
+        final Config config = this.config;
         if (config == null)
             return manager.getTunnelConfig(this);
+        manager.getConfigCache().touch(this);
         return CompletableFuture.completedFuture(config);
     }
 
@@ -78,30 +93,43 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
     }
 
     public CompletionStage<State> getStateAsync() {
-        return TunnelManager.getTunnelState(this);
+        return manager.getTunnelState(this);
     }
 
+    /**
+     * Returns the most recent statistics sample. Statistics are refreshed by the
+     * {@link StatisticsSampler} while something has asked for them; if there is no sample yet, one
+     * is taken for all running tunnels together instead of fetching for each binding separately.
+     */
     @Bindable @Nullable
     public Statistics getStatistics() {
-        // FIXME: Check age of statistics.
-        if (statistics == null)
-            TunnelManager.getTunnelStatistics(this).whenComplete(ExceptionLoggers.E);
+        if (statistics == null && state == State.UP)
+            manager.getStatisticsSampler().sampleSoon();
         return statistics;
     }
 
     public CompletionStage<Statistics> getStatisticsAsync() {
-        // FIXME: Check age of statistics.
-        if (statistics == null)
-            return TunnelManager.getTunnelStatistics(this);
+        if (statistics == null || SystemClock.elapsedRealtime() - statistics.getCollectedAt() > MAX_STATISTICS_AGE)
+            return manager.getTunnelStatistics(this);
         return CompletableFuture.completedFuture(statistics);
     }
 
+    public TrafficHistory getTrafficHistory() {
+        return trafficHistory;
+    }
+
     Config onConfigChanged(final Config config) {
         this.config = config;
+        manager.getConfigCache().put(this, config);
         notifyPropertyChanged(BR.config);
         return config;
     }
 
+    void onConfigEvicted() {
+        // Nothing is notified, so bindings keep what they have until they next ask.
+        config = null;
+    }
+
     public String onNameChanged(final String name) {
         this.name = name;
         notifyPropertyChanged(BR.name);
@@ -118,15 +146,26 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
 
     @Nullable
     Statistics onStatisticsChanged(@Nullable final Statistics statistics) {
+        // Callers sharing a coalesced fetch each deliver the same sample.
+        if (statistics != null && statistics == this.statistics)
+            return statistics;
         this.statistics = statistics;
+        if (statistics != null)
+            trafficHistory.record(statistics);
+        else
+            trafficHistory.clear();
         notifyPropertyChanged(BR.statistics);
         return statistics;
     }
 
     public CompletionStage<Config> setConfig(final Config config) {
-        if (!config.equals(this.config))
-            return manager.setTunnelConfig(this, config);
-        return CompletableFuture.completedFuture(this.config);
+        // Compare against the saved configuration even if it was evicted, so that saving an
+        // unchanged configuration stays a no-op. One that cannot be loaded is always replaced.
+        return getConfigAsync().exceptionally(e -> null).thenCompose(current -> {
+            if (!config.equals(current))
+                return manager.setTunnelConfig(this, config);
+            return CompletableFuture.completedFuture(current);
+        });
     }
 
     public CompletionStage<String> setName(final String name) {
@@ -151,5 +190,93 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
         }
     }
 
-    public static class Statistics extends BaseObservable { }
+    /**
+     * A snapshot of per-peer transfer counters, stored in parallel primitive arrays so that
+     * backends can fill it without allocating an object per peer.
+     */
+    public static class Statistics extends BaseObservable {
+        private static final int INITIAL_CAPACITY = 4;
+
+        private final long collectedAt = SystemClock.elapsedRealtime();
+        private long[] latestHandshakes = new long[INITIAL_CAPACITY];
+        private int peerCount;
+        private String[] publicKeys = new String[INITIAL_CAPACITY];
+        private long[] rxBytes = new long[INITIAL_CAPACITY];
+        private long[] txBytes = new long[INITIAL_CAPACITY];
+
+        /**
+         * Appends a peer. Only backends call this, while building a snapshot.
+         *
+         * @param latestHandshake Wall-clock time of the last handshake in milliseconds since the
+         *                        epoch, or 0 if there has never been one.
+         */
+        public void add(final String publicKey, final long rx, final long tx,
+                        final long latestHandshake) {
+            if (peerCount == publicKeys.length) {
+                final int capacity = peerCount * 2;
+                latestHandshakes = Arrays.copyOf(latestHandshakes, capacity);
+                publicKeys = Arrays.copyOf(publicKeys, capacity);
+                rxBytes = Arrays.copyOf(rxBytes, capacity);
+                txBytes = Arrays.copyOf(txBytes, capacity);
+            }
+            latestHandshakes[peerCount] = latestHandshake;
+            publicKeys[peerCount] = publicKey;
+            rxBytes[peerCount] = rx;
+            txBytes[peerCount] = tx;
+            ++peerCount;
+        }
+
+        /**
+         * Returns the index of the peer with the given base64 public key, or -1.
+         */
+        public int indexOf(final String publicKey) {
+            for (int i = 0; i < peerCount; ++i) {
+                if (publicKeys[i].equals(publicKey))
+                    return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Returns when this snapshot was taken, on the {@link SystemClock#elapsedRealtime()}
+         * clock.
+         */
+        public long getCollectedAt() {
+            return collectedAt;
+        }
+
+        public long getLatestHandshake(final int peer) {
+            return latestHandshakes[peer];
+        }
+
+        public int getPeerCount() {
+            return peerCount;
+        }
+
+        public String getPublicKey(final int peer) {
+            return publicKeys[peer];
+        }
+
+        public long getRxBytes(final int peer) {
+            return rxBytes[peer];
+        }
+
+        public long getTotalRxBytes() {
+            long total = 0;
+            for (int i = 0; i < peerCount; ++i)
+                total += rxBytes[i];
+            return total;
+        }
+
+        public long getTotalTxBytes() {
+            long total = 0;
+            for (int i = 0; i < peerCount; ++i)
+                total += txBytes[i];
+            return total;
+        }
+
+        public long getTxBytes(final int peer) {
+            return txBytes[peer];
+        }
+    }
 }
@@ -9,6 +9,7 @@ package com.wireguard.android.model;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 
 import com.wireguard.android.Application;
 import com.wireguard.android.BR;
@@ -16,22 +17,29 @@ import com.wireguard.android.R;
 import com.wireguard.android.configStore.ConfigStore;
 import com.wireguard.android.model.Tunnel.State;
 import com.wireguard.android.model.Tunnel.Statistics;
+import com.wireguard.android.util.AsyncWorker;
+import com.wireguard.android.util.AsyncWorker.Priority;
 import com.wireguard.android.util.ExceptionLoggers;
 import com.wireguard.android.util.ObservableSortedKeyedArrayList;
 import com.wireguard.android.util.ObservableSortedKeyedList;
+import com.wireguard.android.util.StartupTimer;
 import com.wireguard.config.Config;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 import androidx.annotation.Nullable;
+import androidx.core.util.Pair;
 import androidx.databinding.BaseObservable;
 import androidx.databinding.Bindable;
 import java9.util.Comparators;
 import java9.util.concurrent.CompletableFuture;
 import java9.util.concurrent.CompletionStage;
+import java9.util.function.Supplier;
 import java9.util.stream.Collectors;
 import java9.util.stream.StreamSupport;
 
@@ -47,21 +55,67 @@ public final class TunnelManager extends BaseObservable {
     private static final String KEY_RUNNING_TUNNELS = "enabled_configs";
     public static final String NOTIFICATION_CHANNEL_ID = "wg-quick_tunnels";
     public static final int NOTIFICATION_ID = 2018;
+    private static final long STATISTICS_TIMEOUT = 10 * 1000;
+    private static final long MAX_CONFIG_CACHE_WEIGHT = 1024 * 1024;
 
+    private final ConfigCache configCache;
     private final ConfigStore configStore;
     private final Context context = Application.Companion.get();
     private final CompletableFuture<ObservableSortedKeyedList<String, Tunnel>> completableTunnels = new CompletableFuture<>();
     private final ObservableSortedKeyedList<String, Tunnel> tunnels = new ObservableSortedKeyedArrayList<>(COMPARATOR);
+    private final StatisticsSampler statisticsSampler = new StatisticsSampler(this);
     @Nullable private Tunnel lastUsedTunnel;
     private boolean haveLoaded;
     private final ArrayList<CompletableFuture<Void>> delayedLoadRestoreTunnels = new ArrayList<>();
+    private final Map<Pair<Tunnel, Operation>, Load> loads = new HashMap<>();
 
     public TunnelManager(final ConfigStore configStore) {
         this.configStore = configStore;
+        // Running and last-used tunnels are the ones the backend and quick tile need right away.
+        configCache = new ConfigCache(MAX_CONFIG_CACHE_WEIGHT,
+                tunnel -> tunnel.getState() == State.UP || tunnel == lastUsedTunnel);
+    }
+
+    /**
+     * Returns the result of {@code operation} on {@code tunnel} if it is in flight or was started
+     * less than the operation's period ago, and otherwise starts it with {@code loader}. However
+     * many bindings ask, each resource is loaded at most once per period. Failed loads are not
+     * kept. The returned future completes wherever the loader's does.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletionStage<T> coalesce(final Tunnel tunnel, final Operation operation,
+                                            final Supplier<CompletionStage<T>> loader) {
+        final Pair<Tunnel, Operation> key = Pair.create(tunnel, operation);
+        final long now = SystemClock.elapsedRealtime();
+        final Load load;
+        synchronized (loads) {
+            final Load previous = loads.get(key);
+            if (previous != null && (!previous.future.isDone() || now - previous.startedAt < operation.period))
+                return (CompletionStage<T>) previous.future;
+            load = new Load(new CompletableFuture<T>(), now);
+            loads.put(key, load);
+        }
+        final CompletableFuture<T> future = (CompletableFuture<T>) load.future;
+        loader.get().whenComplete((result, throwable) -> {
+            // Forget the load before completing it, so that dependents asking again start anew.
+            if (throwable != null || operation.period == 0) {
+                synchronized (loads) {
+                    if (loads.get(key) == load)
+                        loads.remove(key);
+                }
+            }
+            if (throwable == null)
+                future.complete(result);
+            else
+                future.completeExceptionally(throwable);
+        });
+        return future;
     }
 
     private Tunnel addToList(final String name, @Nullable final Config config, final State state) {
         final Tunnel tunnel = new Tunnel(this, name, config, state);
+        if (config != null)
+            configCache.put(tunnel, config);
         tunnels.add(tunnel);
         return tunnel;
     }
@@ -84,7 +138,7 @@ public final class TunnelManager extends BaseObservable {
         if (wasLastUsed)
             setLastUsedTunnel(null);
         tunnels.remove(tunnel);
-        return Application.Companion.getAsyncWorker().runAsync(() -> {
+        final Supplier<CompletionStage<Void>> task = () -> Application.Companion.getAsyncWorker().runAsync(tunnel, Priority.INTERACTIVE, 0, () -> {
             if (originalState == State.UP)
                 Application.Companion.getBackend().setState(tunnel, State.DOWN);
             try {
@@ -95,9 +149,14 @@ public final class TunnelManager extends BaseObservable {
                 // Re-throw the exception to fail the completion.
                 throw e;
             }
-        }).whenComplete((x, e) -> {
-            if (e == null)
+        });
+        // Only a running tunnel needs its configuration, to be brought down (and back up).
+        return (originalState == State.UP ? withConfig(tunnel, task) : task.get()).whenComplete((x, e) -> {
+            if (e == null) {
+                configCache.remove(tunnel);
+                forget(tunnel);
                 return;
+            }
             // Failure, put the tunnel back.
             tunnels.add(tunnel);
             if (wasLastUsed)
@@ -110,28 +169,78 @@ public final class TunnelManager extends BaseObservable {
         return lastUsedTunnel;
     }
 
+    ConfigCache getConfigCache() {
+        return configCache;
+    }
+
+    public StatisticsSampler getStatisticsSampler() {
+        return statisticsSampler;
+    }
+
+    /**
+     * Loads the configuration of a tunnel on the worker, and records it on the main thread.
+     */
     CompletionStage<Config> getTunnelConfig(final Tunnel tunnel) {
-        return Application.Companion.getAsyncWorker().supplyAsync(() -> configStore.load(tunnel.getName()))
-                .thenApply(tunnel::onConfigChanged);
+        final AsyncWorker asyncWorker = Application.Companion.getAsyncWorker();
+        return coalesce(tunnel, Operation.CONFIG, () ->
+                asyncWorker.observeOnMain(asyncWorker.supplyAsyncOnWorker(tunnel, Priority.NORMAL, 0,
+                        () -> configStore.load(tunnel.getName())))
+                        .thenApply(tunnel::onConfigChanged));
     }
 
-    static CompletionStage<State> getTunnelState(final Tunnel tunnel) {
-        return Application.Companion.getAsyncWorker().supplyAsync(() -> Application.Companion.getBackend().getState(tunnel))
-                .thenApply(tunnel::onStateChanged);
+    CompletionStage<State> getTunnelState(final Tunnel tunnel) {
+        return coalesce(tunnel, Operation.STATE, () ->
+                Application.Companion.getAsyncWorker().supplyAsync(tunnel, () -> Application.Companion.getBackend().getState(tunnel))
+                        .thenApply(tunnel::onStateChanged));
     }
 
-    static CompletionStage<Statistics> getTunnelStatistics(final Tunnel tunnel) {
-        return Application.Companion.getAsyncWorker().supplyAsync(() -> Application.Companion.getBackend().getStatistics(tunnel))
+    CompletionStage<Statistics> getTunnelStatistics(final Tunnel tunnel) {
+        return Application.Companion.getAsyncWorker().observeOnMain(fetchTunnelStatistics(tunnel))
                 .thenApply(tunnel::onStatisticsChanged);
     }
 
+    /**
+     * Fetches the statistics of a tunnel without recording them. The returned stage completes on
+     * the worker thread.
+     */
+    CompletionStage<Statistics> fetchTunnelStatistics(final Tunnel tunnel) {
+        return coalesce(tunnel, Operation.STATISTICS, () ->
+                Application.Companion.getAsyncWorker().supplyAsyncOnWorker(tunnel, Priority.BACKGROUND, STATISTICS_TIMEOUT,
+                        () -> Application.Companion.getBackend().getStatistics(tunnel)));
+    }
+
+    /**
+     * Drops the kept results of loads on {@code tunnel}, after something changed what they would
+     * return.
+     */
+    private void forget(final Tunnel tunnel) {
+        synchronized (loads) {
+            for (final Operation operation : Operation.values())
+                loads.remove(Pair.create(tunnel, operation));
+        }
+    }
+
     public CompletableFuture<ObservableSortedKeyedList<String, Tunnel>> getTunnels() {
         return completableTunnels;
     }
 
+    /**
+     * Loads the configuration of a tunnel from the config store without recording it, for one-off
+     * uses such as exporting that should not fill the config cache. This must be called on the
+     * worker.
+     */
+    public Config loadConfigUncached(final Tunnel tunnel) throws Exception {
+        return configStore.load(tunnel.getName());
+    }
+
+    /**
+     * Loads the tunnel list. The stored configurations are enumerated concurrently with detecting
+     * the backend, and the running tunnels are enumerated as soon as the backend is available.
+     */
     public void onCreate() {
-        Application.Companion.getAsyncWorker().supplyAsync(configStore::enumerate)
-                .thenAcceptBoth(Application.Companion.getAsyncWorker().supplyAsync(() -> Application.Companion.getBackend().enumerate()), this::onTunnelsLoaded)
+        final AsyncWorker asyncWorker = Application.Companion.getAsyncWorker();
+        asyncWorker.supplyAsync(configStore::enumerate)
+                .thenAcceptBoth(Application.Companion.getBackendAsync().thenCompose(backend -> asyncWorker.supplyAsync(backend::enumerate)), this::onTunnelsLoaded)
                 .whenComplete(ExceptionLoggers.E);
     }
 
@@ -158,10 +267,11 @@ public final class TunnelManager extends BaseObservable {
         });
 
         completableTunnels.complete(tunnels);
+        StartupTimer.mark("Tunnel list loaded");
     }
 
     public void refreshTunnelStates() {
-        Application.Companion.getAsyncWorker().supplyAsync(() -> Application.Companion.getBackend().enumerate())
+        Application.Companion.getAsyncWorker().supplyAsync(null, Priority.BACKGROUND, 0, () -> Application.Companion.getBackend().enumerate())
                 .thenAccept(running -> {
                     for (final Tunnel tunnel : tunnels)
                         tunnel.onStateChanged(running.contains(tunnel.getName()) ? State.UP : State.DOWN);
@@ -184,7 +294,10 @@ public final class TunnelManager extends BaseObservable {
             return CompletableFuture.completedFuture(null);
         return CompletableFuture.allOf(StreamSupport.stream(tunnels)
                 .filter(tunnel -> previouslyRunning.contains(tunnel.getName()))
-                .map(tunnel -> setTunnelState(tunnel, State.UP))
+                .map(tunnel -> setTunnelState(tunnel, State.UP).whenComplete((state, e) -> {
+                    if (state == State.UP)
+                        StartupTimer.mark("First tunnel restored");
+                }))
                 .toArray(CompletableFuture[]::new));
     }
 
@@ -208,7 +321,7 @@ public final class TunnelManager extends BaseObservable {
     }
 
     CompletionStage<Config> setTunnelConfig(final Tunnel tunnel, final Config config) {
-        return Application.Companion.getAsyncWorker().supplyAsync(() -> {
+        return Application.Companion.getAsyncWorker().supplyAsync(tunnel, Priority.INTERACTIVE, 0, () -> {
             final Config appliedConfig = Application.Companion.getBackend().applyConfig(tunnel, config);
             return configStore.save(tunnel.getName(), appliedConfig);
         }).thenApply(tunnel::onConfigChanged);
@@ -227,7 +340,7 @@ public final class TunnelManager extends BaseObservable {
         if (wasLastUsed)
             setLastUsedTunnel(null);
         tunnels.remove(tunnel);
-        return Application.Companion.getAsyncWorker().supplyAsync(() -> {
+        final Supplier<CompletionStage<String>> task = () -> Application.Companion.getAsyncWorker().supplyAsync(tunnel, Priority.INTERACTIVE, 0, () -> {
             if (originalState == State.UP)
                 Application.Companion.getBackend().setState(tunnel, State.DOWN);
             configStore.rename(tunnel.getName(), name);
@@ -235,7 +348,8 @@ public final class TunnelManager extends BaseObservable {
             if (originalState == State.UP)
                 Application.Companion.getBackend().setState(tunnel, State.UP);
             return newName;
-        }).whenComplete((newName, e) -> {
+        });
+        return (originalState == State.UP ? withConfig(tunnel, task) : task.get()).whenComplete((newName, e) -> {
             // On failure, we don't know what state the tunnel might be in. Fix that.
             if (e != null)
                 getTunnelState(tunnel);
@@ -247,18 +361,65 @@ public final class TunnelManager extends BaseObservable {
     }
 
     CompletionStage<State> setTunnelState(final Tunnel tunnel, final State state) {
-        // Ensure the configuration is loaded before trying to use it.
-        return tunnel.getConfigAsync().thenCompose(x ->
-                Application.Companion.getAsyncWorker().supplyAsync(() -> Application.Companion.getBackend().setState(tunnel, state))
+        // Ensure the configuration is loaded before trying to use it. There is no deadline, as
+        // interrupting a half-done state change would leave the tunnel in an unknown state.
+        return withConfig(tunnel, () -> Application.Companion.getAsyncWorker().supplyAsync(tunnel, Priority.INTERACTIVE, 0,
+                () -> Application.Companion.getBackend().setState(tunnel, state))
         ).whenComplete((newState, e) -> {
-            // Ensure onStateChanged is always called (failure or not), and with the correct state.
-            tunnel.onStateChanged(e == null ? newState : tunnel.getState());
-            if (e == null && newState == State.UP)
+            forget(tunnel);
+            if (e != null) {
+                // On failure, we don't know what state the tunnel might be in. Fix that.
+                getTunnelState(tunnel).whenComplete((x, stateError) -> saveState());
+                return;
+            }
+            tunnel.onStateChanged(newState);
+            if (newState == State.UP)
                 setLastUsedTunnel(tunnel);
             saveState();
         });
     }
 
+    /**
+     * A load started at {@code startedAt}, on the {@link SystemClock#elapsedRealtime()} clock.
+     */
+    private static final class Load {
+        final CompletableFuture<?> future;
+        final long startedAt;
+
+        Load(final CompletableFuture<?> future, final long startedAt) {
+            this.future = future;
+            this.startedAt = startedAt;
+        }
+    }
+
+    /**
+     * The per-tunnel loads that are coalesced, with how long their results are reused for.
+     */
+    private enum Operation {
+        // Loaded configurations are kept by the config cache, and are only reloaded once evicted.
+        CONFIG(0),
+        STATE(500),
+        // Shorter than the sampling interval, so that every sample is fresh.
+        STATISTICS(500);
+
+        final long period;
+
+        Operation(final long period) {
+            this.period = period;
+        }
+    }
+
+    /**
+     * Starts {@code task} once the configuration of {@code tunnel} is loaded, reloading it first if
+     * it was evicted, and keeps it from being evicted until the task completes. This is called on
+     * the main thread, and the task must complete there too, so the model is only changed there.
+     */
+    private <T> CompletionStage<T> withConfig(final Tunnel tunnel, final Supplier<CompletionStage<T>> task) {
+        configCache.pin(tunnel);
+        return tunnel.getConfigAsync().thenCompose(config -> task.get())
+                .whenComplete((result, e) -> configCache.unpin(tunnel));
+    }
+
     public static final class IntentReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(final Context context, @Nullable final Intent intent) {
@@ -17,6 +17,7 @@ import androidx.preference.Preference
 import com.google.android.material.snackbar.Lunchbar
 import com.wireguard.android.Application
 import com.wireguard.android.R
+import com.wireguard.android.util.AsyncWorker
 import com.wireguard.android.util.ExceptionLoggers
 import com.wireguard.android.util.FragmentUtils
 import java.io.*
@@ -30,7 +31,7 @@ class LogExporterPreference(context: Context, attrs: AttributeSet) : Preference(
     private var exportedFilePath: String? = null
 
     private fun exportLog() {
-        Application.getAsyncWorker().supplyAsync {
+        Application.getAsyncWorker().supplyAsync(null, AsyncWorker.Priority.BACKGROUND, 0) {
             val path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS)
             val file = File(path, "wireguard-log.txt")
             if (!path.isDirectory && !path.mkdirs())
@@ -40,6 +41,7 @@ class LogExporterPreference(context: Context, attrs: AttributeSet) : Preference(
              * Instead we have to do this dance, since logcat appends.
              */
             FileOutputStream(file).close()
+            logWorkerStatistics()
 
             try {
                 val process = Runtime.getRuntime().exec(arrayOf("logcat", "-b", "all", "-d", "-v", "threadtime", "-f", file.absolutePath, "*:V"))
@@ -61,6 +63,19 @@ class LogExporterPreference(context: Context, attrs: AttributeSet) : Preference(
         }.whenComplete { filePath, throwable -> this.exportLogComplete(filePath, throwable) }
     }
 
+    /**
+     * Writes the queueing statistics of the worker to the log, so that they are part of the export.
+     */
+    private fun logWorkerStatistics() {
+        val asyncWorker = Application.getAsyncWorker()
+        Log.i(TAG, "Worker tasks waiting to start: " + asyncWorker.queueDepth)
+        for (priority in AsyncWorker.Priority.values()) {
+            Log.i(TAG, String.format("Worker %s tasks: %d waiting, mean wait %d ms, max wait %d ms",
+                    priority, asyncWorker.getQueueDepth(priority), asyncWorker.getMeanWaitTime(priority),
+                    asyncWorker.getMaxWaitTime(priority)))
+        }
+    }
+
     private fun exportLogComplete(filePath: String, throwable: Throwable?) {
         if (throwable != null) {
             val error = ExceptionLoggers.unwrapMessage(throwable)
@@ -18,14 +18,12 @@ import com.google.android.material.snackbar.Lunchbar
 import com.wireguard.android.Application
 import com.wireguard.android.R
 import com.wireguard.android.model.Tunnel
+import com.wireguard.android.util.AsyncWorker
 import com.wireguard.android.util.ExceptionLoggers
 import com.wireguard.android.util.FragmentUtils
-import com.wireguard.config.Config
-import java9.util.concurrent.CompletableFuture
 import java.io.File
 import java.io.FileOutputStream
 import java.io.IOException
-import java.nio.charset.StandardCharsets
 import java.util.*
 import java.util.zip.ZipEntry
 import java.util.zip.ZipOutputStream
@@ -43,39 +41,35 @@ class ZipExporterPreference(context: Context, attrs: AttributeSet) : Preference(
     }
 
     private fun exportZip(tunnels: List<Tunnel>) {
-        val futureConfigs = ArrayList<CompletableFuture<Config>>(tunnels.size)
-        for (tunnel in tunnels)
-            futureConfigs.add(tunnel.configAsync.toCompletableFuture())
-        if (futureConfigs.isEmpty()) {
+        if (tunnels.isEmpty()) {
             exportZipComplete(null, IllegalArgumentException("No tunnels exist"))
             return
         }
-        CompletableFuture.allOf(*futureConfigs.toTypedArray())
-                .whenComplete { _, exception ->
-                    Application.getAsyncWorker().supplyAsync {
-                        if (exception != null)
-                            throw exception
-                        val path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS)
-                        val file = File(path, "wireguard-export.zip")
-                        if (!path.isDirectory && !path.mkdirs())
-                            throw IOException("Cannot create output directory")
-                        try {
-                            ZipOutputStream(FileOutputStream(file)).use { zip ->
-                                for (i in futureConfigs.indices) {
-                                    zip.putNextEntry(ZipEntry(tunnels[i].name + ".conf"))
-                                    zip.write(futureConfigs[i].getNow(null).toString().toByteArray(StandardCharsets.UTF_8))
-                                }
-                                zip.closeEntry()
-                            }
-                        } catch (e: Exception) {
-
-                            file.delete()
-                            throw e
-                        }
-
-                        file.absolutePath
-                    }.whenComplete { filePath, throwable -> this.exportZipComplete(filePath, throwable) }
+        // Configurations are loaded, written and dropped one at a time, so exporting many large
+        // ones neither holds them all in memory nor fills the config cache.
+        val tunnelManager = Application.getTunnelManager()
+        val toExport = ArrayList(tunnels)
+        Application.getAsyncWorker().supplyAsync(null, AsyncWorker.Priority.BACKGROUND, 0) {
+            val path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS)
+            val file = File(path, "wireguard-export.zip")
+            if (!path.isDirectory && !path.mkdirs())
+                throw IOException("Cannot create output directory")
+            try {
+                ZipOutputStream(FileOutputStream(file)).use { zip ->
+                    for (tunnel in toExport) {
+                        val config = tunnelManager.loadConfigUncached(tunnel)
+                        zip.putNextEntry(ZipEntry(tunnel.name + ".conf"))
+                        config.writeTo(zip)
+                        zip.closeEntry()
+                    }
                 }
+            } catch (e: Exception) {
+                file.delete()
+                throw e
+            }
+
+            file.absolutePath
+        }.whenComplete { filePath, throwable -> this.exportZipComplete(filePath, throwable) }
     }
 
     private fun exportZipComplete(filePath: String?, throwable: Throwable?) {
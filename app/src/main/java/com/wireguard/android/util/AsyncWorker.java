@@ -7,51 +7,301 @@
 package com.wireguard.android.util;
 
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import androidx.annotation.Nullable;
 import java9.util.concurrent.CompletableFuture;
 import java9.util.concurrent.CompletionStage;
 
 /**
  * Helper class for running asynchronous tasks and ensuring they are completed on the main thread.
+ * Tasks submitted with a key (such as a {@link com.wireguard.android.model.Tunnel}) run in order
+ * with the other tasks for that key; all other tasks run concurrently, and waiting tasks are
+ * started in order of priority. Cancelling a returned future, or letting its deadline pass,
+ * interrupts the task if it is running and drops it if it has not started yet.
+ *
+ * Chains of several tasks should use the {@code *OnWorker} variants, which complete on the worker
+ * thread, and end with {@link #observeOnMain(CompletionStage)}, so that the main thread is only
+ * involved once.
  */
 
 public class AsyncWorker {
+    private final ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "AsyncWorker deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
     private final Executor executor;
     private final Handler handler;
+    private final Map<Object, Queue<Task<?>>> keyQueues = new HashMap<>();
+    private final Object lock = new Object();
+    private final int[] queueDepths = new int[Priority.values().length];
+    private final PriorityQueue<Task<?>> readyTasks = new PriorityQueue<>();
+    private final long[] waitCounts = new long[Priority.values().length];
+    private final long[] waitMaxima = new long[Priority.values().length];
+    private final long[] waitTotals = new long[Priority.values().length];
+    private long sequence;
 
     public AsyncWorker(final Executor executor, final Handler handler) {
         this.executor = executor;
         this.handler = handler;
     }
 
-    public CompletionStage<Void> runAsync(final AsyncRunnable<?> runnable) {
-        final CompletableFuture<Void> future = new CompletableFuture<>();
-        executor.execute(() -> {
-            try {
-                runnable.run();
-                handler.post(() -> future.complete(null));
-            } catch (final Throwable t) {
-                handler.post(() -> future.completeExceptionally(t));
+    private void cancel(final Task<?> task) {
+        synchronized (lock) {
+            if (task.isCancelled || task.isFinished)
+                return;
+            task.isCancelled = true;
+            if (task.thread != null) {
+                task.thread.interrupt();
+            } else if (readyTasks.remove(task)) {
+                --queueDepths[task.priority.ordinal()];
+                finish(task);
             }
+            // A task still queued behind others with its key is dropped when it reaches the front.
+        }
+    }
+
+    /**
+     * Lets the next task with the same key run. The caller must hold {@link #lock}.
+     */
+    private void finish(final Task<?> task) {
+        task.isFinished = true;
+        if (task.key == null)
+            return;
+        final Queue<Task<?>> queue = keyQueues.get(task.key);
+        final Task<?> next = queue.poll();
+        if (next == null)
+            keyQueues.remove(task.key);
+        else
+            makeReady(next);
+    }
+
+    /**
+     * Returns the longest time, in milliseconds, that a task of the given priority has waited to
+     * start.
+     */
+    public long getMaxWaitTime(final Priority priority) {
+        synchronized (lock) {
+            return waitMaxima[priority.ordinal()];
+        }
+    }
+
+    /**
+     * Returns the mean time, in milliseconds, that tasks of the given priority have waited to
+     * start.
+     */
+    public long getMeanWaitTime(final Priority priority) {
+        synchronized (lock) {
+            final long count = waitCounts[priority.ordinal()];
+            return count == 0 ? 0 : waitTotals[priority.ordinal()] / count;
+        }
+    }
+
+    /**
+     * Returns the number of tasks that have been submitted but have not started yet.
+     */
+    public int getQueueDepth() {
+        synchronized (lock) {
+            int depth = 0;
+            for (final int queueDepth : queueDepths)
+                depth += queueDepth;
+            return depth;
+        }
+    }
+
+    public int getQueueDepth(final Priority priority) {
+        synchronized (lock) {
+            return queueDepths[priority.ordinal()];
+        }
+    }
+
+    /**
+     * Hands a task to the executor. The caller must hold {@link #lock}.
+     */
+    private void makeReady(final Task<?> task) {
+        readyTasks.add(task);
+        // Each call runs whichever ready task has the highest priority by the time it starts.
+        executor.execute(this::runNext);
+    }
+
+    private void runNext() {
+        final Task<?> task;
+        synchronized (lock) {
+            task = readyTasks.poll();
+            if (task == null)
+                return;
+            final int index = task.priority.ordinal();
+            final long waitTime = SystemClock.elapsedRealtime() - task.submittedAt;
+            --queueDepths[index];
+            ++waitCounts[index];
+            waitTotals[index] += waitTime;
+            if (waitTime > waitMaxima[index])
+                waitMaxima[index] = waitTime;
+            task.thread = Thread.currentThread();
+        }
+        try {
+            task.run();
+        } finally {
+            synchronized (lock) {
+                task.thread = null;
+                // Don't let a late cancellation interrupt the next task run on this thread.
+                Thread.interrupted();
+                finish(task);
+            }
+        }
+        // Dependent stages run here when completing on the worker, so the key is released first.
+        task.complete();
+    }
+
+    private static <T> void complete(final CompletableFuture<T> future, @Nullable final T result,
+                                     @Nullable final Throwable throwable) {
+        if (throwable == null)
+            future.complete(result);
+        else
+            future.completeExceptionally(throwable);
+    }
+
+    /**
+     * Returns a stage that completes on the main thread once {@code stage} completes, with the
+     * same result. Cancelling the returned future also cancels {@code stage}.
+     */
+    public <T> CompletionStage<T> observeOnMain(final CompletionStage<T> stage) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        stage.whenComplete((result, throwable) -> {
+            if (Looper.myLooper() == handler.getLooper())
+                complete(future, result, throwable);
+            else
+                handler.post(() -> complete(future, result, throwable));
+        });
+        future.whenComplete((result, throwable) -> {
+            if (future.isCancelled())
+                stage.toCompletableFuture().cancel(true);
         });
         return future;
     }
 
+    public CompletionStage<Void> runAsync(final AsyncRunnable<?> runnable) {
+        return runAsync(null, Priority.NORMAL, 0, runnable);
+    }
+
+    public CompletionStage<Void> runAsync(final Object key, final AsyncRunnable<?> runnable) {
+        return runAsync(key, Priority.NORMAL, 0, runnable);
+    }
+
+    /**
+     * Runs a task on the worker.
+     *
+     * @param key      Tasks with the same non-null key run one at a time, in submission order.
+     * @param priority Which waiting tasks to start first.
+     * @param timeout  Time in milliseconds, counted from submission, after which the returned
+     *                 future fails with a {@link TimeoutException}, or 0 for no deadline.
+     */
+    public CompletionStage<Void> runAsync(@Nullable final Object key, final Priority priority,
+                                          final long timeout, final AsyncRunnable<?> runnable) {
+        return submit(key, priority, timeout, true, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    /**
+     * Like {@link #runAsync(Object, Priority, long, AsyncRunnable)}, but completes on the worker
+     * thread rather than the main thread.
+     */
+    public CompletionStage<Void> runAsyncOnWorker(@Nullable final Object key, final Priority priority,
+                                                  final long timeout, final AsyncRunnable<?> runnable) {
+        return submit(key, priority, timeout, false, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+
     public <T> CompletionStage<T> supplyAsync(final AsyncSupplier<T, ?> supplier) {
+        return supplyAsync(null, Priority.NORMAL, 0, supplier);
+    }
+
+    public <T> CompletionStage<T> supplyAsync(final Object key, final AsyncSupplier<T, ?> supplier) {
+        return supplyAsync(key, Priority.NORMAL, 0, supplier);
+    }
+
+    /**
+     * Runs a task on the worker and returns its result.
+     *
+     * @see #runAsync(Object, Priority, long, AsyncRunnable)
+     */
+    public <T> CompletionStage<T> supplyAsync(@Nullable final Object key, final Priority priority,
+                                              final long timeout, final AsyncSupplier<T, ?> supplier) {
+        return submit(key, priority, timeout, true, supplier);
+    }
+
+    /**
+     * Like {@link #supplyAsync(Object, Priority, long, AsyncSupplier)}, but completes on the
+     * worker thread rather than the main thread.
+     */
+    public <T> CompletionStage<T> supplyAsyncOnWorker(@Nullable final Object key, final Priority priority,
+                                                      final long timeout, final AsyncSupplier<T, ?> supplier) {
+        return submit(key, priority, timeout, false, supplier);
+    }
+
+    private <T> CompletionStage<T> submit(@Nullable final Object key, final Priority priority,
+                                          final long timeout, final boolean completeOnMain,
+                                          final AsyncSupplier<T, ?> supplier) {
         final CompletableFuture<T> future = new CompletableFuture<>();
-        executor.execute(() -> {
-            try {
-                final T result = supplier.get();
-                handler.post(() -> future.complete(result));
-            } catch (final Throwable t) {
-                handler.post(() -> future.completeExceptionally(t));
+        final Task<T> task = new Task<>(key, priority, completeOnMain, future, supplier);
+        synchronized (lock) {
+            task.sequence = sequence++;
+            ++queueDepths[priority.ordinal()];
+            final Queue<Task<?>> queue = key == null ? null : keyQueues.get(key);
+            if (queue != null) {
+                queue.add(task);
+            } else {
+                if (key != null)
+                    keyQueues.put(key, new ArrayDeque<>());
+                makeReady(task);
             }
+        }
+        final ScheduledFuture<?> deadline = timeout <= 0 ? null : deadlines.schedule(() -> {
+            final TimeoutException e = new TimeoutException("Task did not complete within " + timeout + " ms");
+            if (completeOnMain)
+                handler.post(() -> future.completeExceptionally(e));
+            else
+                future.completeExceptionally(e);
+        }, timeout, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, throwable) -> {
+            if (deadline != null)
+                deadline.cancel(false);
+            if (throwable != null)
+                cancel(task);
         });
         return future;
     }
 
+    public enum Priority {
+        /**
+         * Work the user is waiting on, such as toggling a tunnel.
+         */
+        INTERACTIVE,
+        NORMAL,
+        /**
+         * Work nobody is waiting on, such as refreshing statistics or exporting files.
+         */
+        BACKGROUND
+    }
+
     @FunctionalInterface
     public interface AsyncRunnable<E extends Throwable> {
         void run() throws E;
@@ -61,4 +311,56 @@ public class AsyncWorker {
     public interface AsyncSupplier<T, E extends Throwable> {
         T get() throws E;
     }
+
+    private final class Task<T> implements Comparable<Task<?>> {
+        private final boolean completeOnMain;
+        private final CompletableFuture<T> future;
+        @Nullable private final Object key;
+        private final Priority priority;
+        private final long submittedAt = SystemClock.elapsedRealtime();
+        private final AsyncSupplier<T, ?> supplier;
+        private boolean isCancelled;
+        private boolean isFinished;
+        @Nullable private T result;
+        private long sequence;
+        @Nullable private Thread thread;
+        @Nullable private Throwable throwable;
+
+        private Task(@Nullable final Object key, final Priority priority, final boolean completeOnMain,
+                     final CompletableFuture<T> future, final AsyncSupplier<T, ?> supplier) {
+            this.completeOnMain = completeOnMain;
+            this.future = future;
+            this.key = key;
+            this.priority = priority;
+            this.supplier = supplier;
+        }
+
+        @Override
+        public int compareTo(final Task<?> other) {
+            if (priority != other.priority)
+                return priority.compareTo(other.priority);
+            return Long.compare(sequence, other.sequence);
+        }
+
+        private void complete() {
+            if (future.isDone())
+                return;
+            if (completeOnMain)
+                handler.post(() -> AsyncWorker.complete(future, result, throwable));
+            else
+                AsyncWorker.complete(future, result, throwable);
+        }
+
+        private void run() {
+            synchronized (lock) {
+                if (isCancelled)
+                    return;
+            }
+            try {
+                result = supplier.get();
+            } catch (final Throwable t) {
+                throwable = t;
+            }
+        }
+    }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.util;
+
+import android.content.Context;
+
+import com.wireguard.android.Application;
+import com.wireguard.android.R;
+import com.wireguard.config.BadConfigException;
+import com.wireguard.config.BadConfigException.Reason;
+import com.wireguard.crypto.KeyFormatException;
+import com.wireguard.crypto.KeyFormatException.Type;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Maps the structured errors raised by the configuration and crypto packages to localized
+ * messages.
+ */
+
+public final class ErrorMessages {
+    private static final Map<Reason, Integer> BCE_REASON_MAP = new EnumMap<>(Reason.class);
+    private static final Map<Type, Integer> KFE_TYPE_MAP = new EnumMap<>(Type.class);
+
+    static {
+        BCE_REASON_MAP.put(Reason.ATTRIBUTE_IN_WRONG_SECTION, R.string.tunnel_error_attribute_in_wrong_section);
+        BCE_REASON_MAP.put(Reason.EMPTY_INET_ADDRESS, R.string.tunnel_error_empty_inetaddress);
+        BCE_REASON_MAP.put(Reason.EMPTY_INTERFACE_ADDRESS, R.string.tunnel_error_empty_interface_address);
+        BCE_REASON_MAP.put(Reason.EMPTY_PEER_PUBLIC_KEY, R.string.tunnel_error_empty_peer_public_key);
+        BCE_REASON_MAP.put(Reason.FORBIDDEN_ENDPOINT_CHARS, R.string.tunnel_error_forbidden_endpoint_chars);
+        BCE_REASON_MAP.put(Reason.INVALID_CONFIG_LINE, R.string.tunnel_error_invalid_config_line);
+        BCE_REASON_MAP.put(Reason.INVALID_ENDPOINT, R.string.tunnel_error_invalid_endpoint);
+        BCE_REASON_MAP.put(Reason.INVALID_INET_ADDRESS, R.string.tunnel_error_invalid_inetaddress);
+        BCE_REASON_MAP.put(Reason.INVALID_NUMBER, R.string.tunnel_error_invalid_number);
+        BCE_REASON_MAP.put(Reason.NO_CONFIG_INFORMATION, R.string.tunnel_error_no_config_information);
+        BCE_REASON_MAP.put(Reason.UNKNOWN_ATTRIBUTE, R.string.tunnel_error_interface_parse_failed);
+        KFE_TYPE_MAP.put(Type.BASE64, R.string.key_length_base64_exception_message);
+        KFE_TYPE_MAP.put(Type.HEX, R.string.key_length_hex_exception_message);
+        KFE_TYPE_MAP.put(Type.LENGTH, R.string.key_length_exception_message);
+    }
+
+    private ErrorMessages() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Returns a localized message for the given throwable, or null if it is not one of the
+     * structured error types.
+     */
+    @Nullable
+    public static String get(final Throwable throwable) {
+        final Context context = Application.Companion.get();
+        if (throwable instanceof BadConfigException) {
+            final BadConfigException bce = (BadConfigException) throwable;
+            final String text = bce.getText();
+            return context.getString(BCE_REASON_MAP.get(bce.getReason()), text == null ? "" : text);
+        }
+        if (throwable instanceof KeyFormatException)
+            return context.getString(KFE_TYPE_MAP.get(((KeyFormatException) throwable).getType()));
+        return null;
+    }
+}
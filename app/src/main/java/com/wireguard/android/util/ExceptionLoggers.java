@@ -37,6 +37,9 @@ public enum ExceptionLoggers implements BiConsumer<Object, Throwable> {
 
     public static String unwrapMessage(Throwable throwable) {
         throwable = unwrap(throwable);
+        final String localizedMessage = ErrorMessages.get(throwable);
+        if (localizedMessage != null)
+            return localizedMessage;
         final String message = throwable.getMessage();
         if (message != null)
             return message;
@@ -7,6 +7,7 @@
 package com.wireguard.android.util;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.wireguard.android.BuildConfig;
@@ -17,30 +18,54 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.Nullable;
+import java9.util.function.Consumer;
 
 /**
- * Helper class for running commands as root.
+ * Helper class for running commands as root. Commands run in a small pool of root shells, so that
+ * a slow operation in one shell does not hold up queries in another. Shells are started on
+ * demand, checked before reuse, and stopped after they have been idle for a while.
  */
 
 public class RootShell {
+    private static final long IDLE_TIMEOUT = 60 * 1000;
+    private static final int LINE_QUEUE_CAPACITY = 256;
+    private static final int MAX_SHELLS = 3;
+    private static final int MIN_IDLE_SHELLS = 1;
     private static final String SU = "su";
     private static final String TAG = "WireGuard/" + RootShell.class.getSimpleName();
 
     private final String deviceNotRootedMessage;
+    private final Deque<Shell> idleShells = new ArrayDeque<>();
     private final File localBinaryDir;
     private final File localTemporaryDir;
     private final Object lock = new Object();
     private final String preamble;
-    @Nullable private Process process;
-    @Nullable private BufferedReader stderr;
-    @Nullable private OutputStreamWriter stdin;
-    @Nullable private BufferedReader stdout;
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "RootShell reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int generation;
+    private boolean isReapScheduled;
+    private int shellCount;
 
     public RootShell(final Context context) {
         deviceNotRootedMessage = context.getString(R.string.error_root);
@@ -61,17 +86,83 @@ public class RootShell {
         return false;
     }
 
-    private boolean isRunning() {
+    /**
+     * Takes a live shell from the pool, starting a new one if none is idle and the pool is not
+     * full, or waiting for one to be released otherwise.
+     */
+    private Shell acquire() throws IOException, NoRootException {
+        final int shellGeneration;
         synchronized (lock) {
-            try {
-                // Throws an exception if the process hasn't finished yet.
-                if (process != null)
-                    process.exitValue();
-                return false;
-            } catch (final IllegalThreadStateException ignored) {
-                // The existing process is still running.
-                return true;
+            while (true) {
+                final Shell shell = idleShells.pollFirst();
+                if (shell != null) {
+                    if (shell.isRunning())
+                        return shell;
+                    Log.w(TAG, "Discarding root shell that exited");
+                    --shellCount;
+                    shell.close();
+                    continue;
+                }
+                if (shellCount < MAX_SHELLS)
+                    break;
+                try {
+                    lock.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a root shell");
+                }
+            }
+            ++shellCount;
+            shellGeneration = generation;
+        }
+        // Starting su can take a while, so don't hold up other callers.
+        try {
+            return new Shell(shellGeneration);
+        } catch (final IOException | NoRootException e) {
+            synchronized (lock) {
+                --shellCount;
+                lock.notify();
             }
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an empty batch of commands for this shell.
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    private void reap() {
+        synchronized (lock) {
+            isReapScheduled = false;
+            final long now = SystemClock.elapsedRealtime();
+            // The least recently used shells are at the end of the deque.
+            final Iterator<Shell> it = idleShells.descendingIterator();
+            while (it.hasNext() && idleShells.size() > MIN_IDLE_SHELLS) {
+                final Shell shell = it.next();
+                if (now - shell.lastUsed < IDLE_TIMEOUT)
+                    break;
+                it.remove();
+                --shellCount;
+                shell.close();
+            }
+            scheduleReap();
+        }
+    }
+
+    private void release(final Shell shell, final boolean isHealthy) {
+        synchronized (lock) {
+            if (isHealthy && shell.generation == generation && shell.isRunning()) {
+                shell.lastUsed = SystemClock.elapsedRealtime();
+                idleShells.addFirst(shell);
+                scheduleReap();
+            } else {
+                --shellCount;
+                shell.close();
+            }
+            lock.notify();
         }
     }
 
@@ -85,76 +176,87 @@ public class RootShell {
      */
     public int run(@Nullable final Collection<String> output, final String command)
             throws IOException, NoRootException {
-        synchronized (lock) {
-            /* Start inside synchronized block to prevent a concurrent call to stop(). */
-            start();
-            final String marker = UUID.randomUUID().toString();
-            final String script = "echo " + marker + "; echo " + marker + " >&2; (" + command +
-                    "); ret=$?; echo " + marker + " $ret; echo " + marker + " $ret >&2\n";
-            Log.v(TAG, "executing: " + command);
-            stdin.write(script);
-            stdin.flush();
-            String line;
-            int errnoStdout = Integer.MIN_VALUE;
-            int errnoStderr = Integer.MAX_VALUE;
-            int markersSeen = 0;
-            while ((line = stdout.readLine()) != null) {
-                if (line.startsWith(marker)) {
-                    ++markersSeen;
-                    if (line.length() > marker.length() + 1) {
-                        errnoStdout = Integer.valueOf(line.substring(marker.length() + 1));
-                        break;
-                    }
-                } else if (markersSeen > 0) {
-                    if (output != null)
-                        output.add(line);
-                    Log.v(TAG, "stdout: " + line);
-                }
-            }
-            while ((line = stderr.readLine()) != null) {
-                if (line.startsWith(marker)) {
-                    ++markersSeen;
-                    if (line.length() > marker.length() + 1) {
-                        errnoStderr = Integer.valueOf(line.substring(marker.length() + 1));
-                        break;
-                    }
-                } else if (markersSeen > 2) {
-                    Log.v(TAG, "stderr: " + line);
-                }
-            }
-            if (markersSeen != 4)
-                throw new IOException("Expected 4 markers, received " + markersSeen);
-            if (errnoStdout != errnoStderr)
-                throw new IOException("Unable to read exit status");
-            Log.v(TAG, "exit: " + errnoStdout);
-            return errnoStdout;
+        return newBatch().add(output, command).run()[0];
+    }
+
+    private int[] run(final Batch batch) throws IOException, NoRootException {
+        if (batch.commands.isEmpty())
+            return new int[0];
+        final Shell shell = acquire();
+        boolean isHealthy = false;
+        try {
+            final int[] result = shell.run(batch);
+            isHealthy = true;
+            return result;
+        } finally {
+            // A shell that failed mid-batch may have unread output, so never reuse it.
+            release(shell, isHealthy);
         }
     }
 
+    private void scheduleReap() {
+        if (isReapScheduled || idleShells.size() <= MIN_IDLE_SHELLS)
+            return;
+        isReapScheduled = true;
+        reaper.schedule(this::reap, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes sure that at least one root shell is running, checking that the device is rooted.
+     */
     public void start() throws IOException, NoRootException {
-        if (!isExecutableInPath(SU))
-            throw new NoRootException(deviceNotRootedMessage);
+        release(acquire(), true);
+    }
+
+    /**
+     * Stops all idle shells. Shells that are running commands are stopped when they finish.
+     */
+    public void stop() {
         synchronized (lock) {
-            if (isRunning())
-                return;
+            ++generation;
+            for (final Shell shell : idleShells) {
+                --shellCount;
+                shell.close();
+            }
+            idleShells.clear();
+        }
+    }
+
+    /**
+     * One su process, with reader threads that feed both of its output streams into a single
+     * bounded line queue.
+     */
+    private final class Shell {
+        private final int generation;
+        private final BlockingQueue<Line> lines = new ArrayBlockingQueue<>(LINE_QUEUE_CAPACITY);
+        private final Process process;
+        private final OutputStreamWriter stdin;
+        private final StreamReader stderrReader;
+        private final StreamReader stdoutReader;
+        private long lastUsed;
+
+        private Shell(final int generation) throws IOException, NoRootException {
+            this.generation = generation;
+            if (!isExecutableInPath(SU))
+                throw new NoRootException(deviceNotRootedMessage);
             if (!localBinaryDir.isDirectory() && !localBinaryDir.mkdirs())
                 throw new FileNotFoundException("Could not create local binary directory");
             if (!localTemporaryDir.isDirectory() && !localTemporaryDir.mkdirs())
                 throw new FileNotFoundException("Could not create local temporary directory");
+            final ProcessBuilder builder = new ProcessBuilder().command(SU);
+            builder.environment().put("LC_ALL", "C");
+            try {
+                process = builder.start();
+            } catch (final IOException e) {
+                // A failure at this stage means the device isn't rooted.
+                throw new NoRootException(deviceNotRootedMessage, e);
+            }
             try {
-                final ProcessBuilder builder = new ProcessBuilder().command(SU);
-                builder.environment().put("LC_ALL", "C");
-                try {
-                    process = builder.start();
-                } catch (final IOException e) {
-                    // A failure at this stage means the device isn't rooted.
-                    throw new NoRootException(deviceNotRootedMessage, e);
-                }
                 stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
-                stdout = new BufferedReader(new InputStreamReader(process.getInputStream(),
-                        StandardCharsets.UTF_8));
-                stderr = new BufferedReader(new InputStreamReader(process.getErrorStream(),
-                        StandardCharsets.UTF_8));
+                final BufferedReader stdout = new BufferedReader(new InputStreamReader(
+                        process.getInputStream(), StandardCharsets.UTF_8));
+                final BufferedReader stderr = new BufferedReader(new InputStreamReader(
+                        process.getErrorStream(), StandardCharsets.UTF_8));
                 stdin.write(preamble);
                 stdin.flush();
                 // Check that the shell started successfully.
@@ -172,18 +274,248 @@ public class RootShell {
                     }
                     throw new IOException("Shell failed to start: " + process.exitValue());
                 }
+                stdoutReader = new StreamReader(stdout, lines, false);
+                stderrReader = new StreamReader(stderr, lines, true);
+                stdoutReader.start();
+                stderrReader.start();
             } catch (final IOException | NoRootException e) {
-                stop();
+                process.destroy();
                 throw e;
             }
         }
+
+        private void close() {
+            process.destroy();
+            stdoutReader.close();
+            stderrReader.close();
+        }
+
+        private boolean isRunning() {
+            try {
+                // Throws an exception if the process hasn't finished yet.
+                process.exitValue();
+                return false;
+            } catch (final IllegalThreadStateException ignored) {
+                // The existing process is still running.
+                return true;
+            }
+        }
+
+        private int[] run(final Batch batch) throws IOException {
+            final int count = batch.commands.size();
+            final boolean verbose = Log.isLoggable(TAG, Log.VERBOSE);
+            final String marker = UUID.randomUUID().toString();
+            final StringBuilder script = new StringBuilder();
+            script.append("echo ").append(marker).append("; echo ").append(marker).append(" >&2\n");
+            for (int i = 0; i < count; ++i) {
+                final String command = batch.commands.get(i);
+                if (verbose)
+                    Log.v(TAG, "executing: " + command);
+                // The rest of the script is still waiting on the shell's stdin, so commands
+                // must not be able to read it.
+                script.append('(').append(command).append(") </dev/null; ret=$?; echo ").append(marker)
+                        .append(' ').append(i).append(" $ret; echo ").append(marker).append(' ')
+                        .append(i).append(" $ret >&2\n");
+            }
+            stdin.write(script.toString());
+            stdin.flush();
+            // Both streams are consumed from one queue in arrival order, so a command that fills
+            // one pipe while we wait for the other cannot deadlock the shell.
+            final Demultiplexer out = new Demultiplexer(marker, batch.outputs, "stdout", verbose);
+            final Demultiplexer err = new Demultiplexer(marker, batch.errors, "stderr", verbose);
+            try {
+                while (!out.isDone() || !err.isDone()) {
+                    final Line line = lines.take();
+                    (line.isError ? err : out).accept(line.text);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for root shell");
+            }
+            final int markersSeen = out.markersSeen + err.markersSeen;
+            if (markersSeen != 2 * (count + 1))
+                throw new IOException("Expected " + 2 * (count + 1) + " markers, received " + markersSeen);
+            if (!Arrays.equals(out.errnos, err.errnos))
+                throw new IOException("Unable to read exit status");
+            if (verbose)
+                Log.v(TAG, "exit: " + Arrays.toString(out.errnos));
+            return out.errnos;
+        }
     }
 
-    public void stop() {
-        synchronized (lock) {
-            if (process != null) {
-                process.destroy();
-                process = null;
+    /**
+     * A list of commands that is written to the shell as a single script and read back in a
+     * single pass, so that it costs one round trip instead of one per command. As with
+     * {@link #run(Collection, String)}, each command runs in its own subshell.
+     */
+    public final class Batch {
+        private final List<String> commands = new ArrayList<>();
+        private final List<Consumer<String>> errors = new ArrayList<>();
+        private final List<Consumer<String>> outputs = new ArrayList<>();
+
+        private Batch() {
+        }
+
+        public Batch add(@Nullable final Collection<String> output, final String command) {
+            return add(output == null ? null : output::add, null, command);
+        }
+
+        /**
+         * Appends a command whose output is streamed to callbacks as it is read, rather than
+         * collected. Callbacks run on the thread that calls {@link #run()}; while one is busy, the
+         * shell is paused once the bounded line queue fills up.
+         *
+         * @param output Called with each line the command writes to stdout, or null.
+         * @param error  Called with each line the command writes to stderr, or null.
+         */
+        public Batch add(@Nullable final Consumer<String> output,
+                         @Nullable final Consumer<String> error, final String command) {
+            commands.add(command);
+            errors.add(error);
+            outputs.add(output);
+            return this;
+        }
+
+        /**
+         * Runs every command in order, even if an earlier one fails.
+         *
+         * @return The exit value of each command, in the order they were added.
+         */
+        public int[] run() throws IOException, NoRootException {
+            return RootShell.this.run(this);
+        }
+
+        public int size() {
+            return commands.size();
+        }
+    }
+
+    /**
+     * Splits one stream of a batch's output between its commands. Lines before the start marker
+     * are left over from an earlier run and are ignored; every other line belongs to the command
+     * whose end marker has not yet been seen.
+     */
+    private static final class Demultiplexer {
+        private final int[] errnos;
+        private final String marker;
+        private final String name;
+        private final List<Consumer<String>> sinks;
+        private final boolean verbose;
+        private int current = -1;
+        private boolean isDone;
+        private int markersSeen;
+
+        private Demultiplexer(final String marker, final List<Consumer<String>> sinks,
+                              final String name, final boolean verbose) {
+            this.marker = marker;
+            this.name = name;
+            this.sinks = sinks;
+            this.verbose = verbose;
+            errnos = new int[sinks.size()];
+            Arrays.fill(errnos, "stdout".equals(name) ? Integer.MIN_VALUE : Integer.MAX_VALUE);
+        }
+
+        /**
+         * Handles the next line of the stream, or its end if {@code line} is null.
+         */
+        private void accept(@Nullable final String line) throws IOException {
+            if (isDone)
+                return;
+            if (line == null) {
+                isDone = true;
+                return;
+            }
+            // A command whose output lacks a final newline leaves the marker mid-line.
+            final int start = line.indexOf(marker);
+            if (start < 0) {
+                deliver(line);
+                return;
+            }
+            if (start > 0)
+                deliver(line.substring(0, start));
+            ++markersSeen;
+            final int end = start + marker.length();
+            if (line.length() > end + 1) {
+                final int separator = line.indexOf(' ', end + 1);
+                if (separator < 0)
+                    throw new IOException("Malformed marker on " + name);
+                final int index = Integer.parseInt(line.substring(end + 1, separator));
+                if (index != current)
+                    throw new IOException("Out of order marker on " + name);
+                errnos[index] = Integer.parseInt(line.substring(separator + 1));
+                if (index == errnos.length - 1)
+                    isDone = true;
+            }
+            ++current;
+        }
+
+        private void deliver(final String line) {
+            if (current < 0)
+                return;
+            final Consumer<String> sink = sinks.get(current);
+            if (sink != null)
+                sink.accept(line);
+            if (verbose)
+                Log.v(TAG, name + ": " + line);
+        }
+
+        private boolean isDone() {
+            return isDone;
+        }
+    }
+
+    private static final class Line {
+        private final boolean isError;
+        @Nullable private final String text;
+
+        private Line(final boolean isError, @Nullable final String text) {
+            this.isError = isError;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Copies lines from one of the shell's output streams into the shared line queue, blocking
+     * while the queue is full. A null line marks the end of the stream.
+     */
+    private static final class StreamReader extends Thread {
+        private final boolean isError;
+        private final BlockingQueue<Line> lines;
+        private final BufferedReader reader;
+        private volatile boolean isClosed;
+
+        private StreamReader(final BufferedReader reader, final BlockingQueue<Line> lines,
+                             final boolean isError) {
+            super("RootShell " + (isError ? "stderr" : "stdout"));
+            this.isError = isError;
+            this.lines = lines;
+            this.reader = reader;
+            setDaemon(true);
+        }
+
+        private void close() {
+            isClosed = true;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            try {
+                String text;
+                do {
+                    try {
+                        text = reader.readLine();
+                    } catch (final IOException ignored) {
+                        text = null;
+                    }
+                    final Line line = new Line(isError, text);
+                    while (!lines.offer(line, 1, TimeUnit.SECONDS)) {
+                        if (isClosed)
+                            return;
+                    }
+                } while (text != null && !isClosed);
+            } catch (final InterruptedException ignored) {
+                // The shell was stopped.
             }
         }
     }
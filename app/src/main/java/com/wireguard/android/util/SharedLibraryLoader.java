@@ -6,6 +6,7 @@
 package com.wireguard.android.util;
 
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.os.Build;
 import android.util.Log;
 
@@ -13,14 +14,90 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
+/**
+ * Loads a bundled shared library, extracting it from the APK if the package manager did not.
+ * Extracted libraries are kept in a directory keyed by the APK path and install time, and each
+ * file name carries the CRC of its zip entry, so later starts can load the library without
+ * extracting it again.
+ */
+
 public final class SharedLibraryLoader {
+    private static final String CACHE_DIR = "lib";
     private static final String TAG = "WireGuard/" + SharedLibraryLoader.class.getSimpleName();
 
     private SharedLibraryLoader() { }
 
+    private static void deleteRecursively(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children)
+                deleteRecursively(child);
+        }
+        // noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * Copies a zip entry to {@code file}, writing to a temporary file first so that a partially
+     * extracted library is never picked up from the cache.
+     */
+    private static void extract(final ZipFile zipFile, final ZipEntry zipEntry, final File file)
+            throws IOException {
+        final File tempFile = File.createTempFile("lib", ".tmp", file.getParentFile());
+        try {
+            try (final InputStream in = zipFile.getInputStream(zipEntry);
+                 final ReadableByteChannel source = Channels.newChannel(in);
+                 final FileOutputStream out = new FileOutputStream(tempFile)) {
+                final FileChannel destination = out.getChannel();
+                long position = 0;
+                long transferred;
+                while ((transferred = destination.transferFrom(source, position, Long.MAX_VALUE)) > 0)
+                    position += transferred;
+                if (zipEntry.getSize() >= 0 && position != zipEntry.getSize())
+                    throw new IOException("Short extraction of " + zipEntry.getName());
+                out.getFD().sync();
+            }
+            if (!tempFile.renameTo(file))
+                throw new IOException("Unable to move extracted library to " + file);
+        } finally {
+            // noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Returns the cache directory for the installed APK, removing those left by earlier installs.
+     */
+    private static File getCacheDir(final Context context) throws IOException {
+        final String sourceDir = context.getApplicationInfo().sourceDir;
+        long lastUpdateTime;
+        try {
+            lastUpdateTime = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (final PackageManager.NameNotFoundException ignored) {
+            lastUpdateTime = new File(sourceDir).lastModified();
+        }
+        final File root = new File(context.getCodeCacheDir(), CACHE_DIR);
+        final String version = Integer.toHexString(sourceDir.hashCode()) + '-' + Long.toHexString(lastUpdateTime);
+        final File dir = new File(root, version);
+        if (dir.isDirectory())
+            return dir;
+        final File[] stale = root.listFiles();
+        if (stale != null) {
+            for (final File file : stale)
+                deleteRecursively(file);
+        }
+        if (!dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Unable to create library cache directory " + dir);
+        return dir;
+    }
+
     public static void loadSharedLibrary(final Context context, final String libName) {
         Throwable noAbiException;
         try {
@@ -31,41 +108,32 @@ public final class SharedLibraryLoader {
             noAbiException = e;
         }
 
-        final ZipFile zipFile;
-        try {
-            zipFile = new ZipFile(new File(context.getApplicationInfo().sourceDir), ZipFile.OPEN_READ);
-        } catch (final IOException e) {
-            throw new RuntimeException(e);
-        }
-
         final String mappedLibName = System.mapLibraryName(libName);
-        final byte[] buffer = new byte[1024 * 32];
-        for (final String abi : Build.SUPPORTED_ABIS) {
-            final String libZipPath = "lib" + File.separatorChar + abi + File.separatorChar + mappedLibName;
-            final ZipEntry zipEntry = zipFile.getEntry(libZipPath);
-            if (zipEntry == null)
-                continue;
-            File f = null;
-            try {
-                f = File.createTempFile("lib", ".so", context.getCacheDir());
-                Log.d(TAG, "Extracting apk:/" + libZipPath + " to " + f.getAbsolutePath() + " and loading");
-                try (final FileOutputStream out = new FileOutputStream(f);
-                     final InputStream in = zipFile.getInputStream(zipEntry)) {
-                    int len;
-                    while ((len = in.read(buffer)) != -1) {
-                        out.write(buffer, 0, len);
+        try (final ZipFile zipFile = new ZipFile(new File(context.getApplicationInfo().sourceDir), ZipFile.OPEN_READ)) {
+            final File cacheDir = getCacheDir(context);
+            for (final String abi : Build.SUPPORTED_ABIS) {
+                final String libZipPath = "lib" + File.separatorChar + abi + File.separatorChar + mappedLibName;
+                final ZipEntry zipEntry = zipFile.getEntry(libZipPath);
+                if (zipEntry == null)
+                    continue;
+                final File f = new File(cacheDir, abi + '-' + Long.toHexString(zipEntry.getCrc()) + '-' + mappedLibName);
+                try {
+                    if (f.length() != zipEntry.getSize()) {
+                        Log.d(TAG, "Extracting apk:/" + libZipPath + " to " + f.getAbsolutePath());
+                        extract(zipFile, zipEntry, f);
                     }
-                }
-                System.load(f.getAbsolutePath());
-                return;
-            } catch (final Exception e) {
-                Log.d(TAG, "Failed to load library apk:/" + libZipPath, e);
-                noAbiException = e;
-            } finally {
-                if (f != null)
+                    System.load(f.getAbsolutePath());
+                    return;
+                } catch (final Exception | UnsatisfiedLinkError e) {
+                    Log.d(TAG, "Failed to load library apk:/" + libZipPath, e);
+                    noAbiException = e;
+                    // Extract it again next time, in case the cached copy was damaged.
                     // noinspection ResultOfMethodCallIgnored
                     f.delete();
+                }
             }
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
         }
         if (noAbiException instanceof RuntimeException)
             throw (RuntimeException) noAbiException;
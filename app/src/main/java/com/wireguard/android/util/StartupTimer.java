@@ -0,0 +1,43 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.util;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Logs how long after the process started each milestone of application start-up was reached.
+ * Only the first time a milestone is reached is logged.
+ */
+
+public final class StartupTimer {
+    private static final String TAG = "WireGuard/" + StartupTimer.class.getSimpleName();
+    private static final Set<String> reached = new HashSet<>();
+    private static long startedAt = SystemClock.elapsedRealtime();
+
+    private StartupTimer() {
+        // Prevent instantiation.
+    }
+
+    public static synchronized void mark(final String milestone) {
+        if (!reached.add(milestone))
+            return;
+        Log.i(TAG, milestone + " after " + (SystemClock.elapsedRealtime() - startedAt) + " ms");
+    }
+
+    public static synchronized void start() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+            startedAt = Process.getStartElapsedRealtime();
+        else
+            startedAt = SystemClock.elapsedRealtime();
+        reached.clear();
+    }
+}
@@ -42,6 +42,7 @@ public final class ToolsInstaller {
             new File("/system/bin"),
     };
     @Nullable private static final File INSTALL_DIR = getInstallDir();
+    private static final String MAGISK_CHECK = "[ -d /sbin/.core/mirror -a -d /sbin/.core/img -a ! -f /cache/.disable_magisk ]";
     private static final String TAG = "WireGuard/" + ToolsInstaller.class.getSimpleName();
 
     private final File localBinaryDir;
@@ -79,8 +80,20 @@ public final class ToolsInstaller {
         }
         script.append("exit ").append(OsConstants.EALREADY).append(';');
         try {
-            final int ret = Application.Companion.getRootShell().run(null, script.toString());
-            if (ret == OsConstants.EALREADY)
+            // Check for Magisk in the same round trip unless we already know the answer.
+            final RootShell.Batch batch = Application.Companion.getRootShell().newBatch()
+                    .add(null, script.toString());
+            synchronized (lock) {
+                if (installAsMagiskModule == null)
+                    batch.add(null, MAGISK_CHECK);
+            }
+            final int[] ret = batch.run();
+            if (ret.length > 1) {
+                synchronized (lock) {
+                    installAsMagiskModule = ret[1] == OsConstants.EXIT_SUCCESS;
+                }
+            }
+            if (ret[0] == OsConstants.EALREADY)
                 return willInstallAsMagiskModule() ? YES | MAGISK : YES | SYSTEM;
             else
                 return willInstallAsMagiskModule() ? NO | MAGISK : NO | SYSTEM;
@@ -113,7 +126,7 @@ public final class ToolsInstaller {
         synchronized (lock) {
             if (installAsMagiskModule == null) {
                 try {
-                    installAsMagiskModule = Application.Companion.getRootShell().run(null, "[ -d /sbin/.core/mirror -a -d /sbin/.core/img -a ! -f /cache/.disable_magisk ]") == OsConstants.EXIT_SUCCESS;
+                    installAsMagiskModule = Application.Companion.getRootShell().run(null, MAGISK_CHECK) == OsConstants.EXIT_SUCCESS;
                 } catch (final Exception ignored) {
                     installAsMagiskModule = false;
                 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2018 Samuel Holland <samuel@sholland.org>
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.viewmodel;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.wireguard.config.Config;
+import com.wireguard.config.Peer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.Nullable;
+import androidx.databinding.BaseObservable;
+import androidx.databinding.Bindable;
+import androidx.databinding.ObservableArrayList;
+import androidx.databinding.ObservableList;
+import androidx.databinding.library.baseAdapters.BR;
+
+/**
+ * Observable, parcelable editing state for a {@link Config} and its name.
+ */
+
+public class ConfigProxy extends BaseObservable implements Parcelable {
+    public static final Creator<ConfigProxy> CREATOR = new Creator<ConfigProxy>() {
+        @Override
+        public ConfigProxy createFromParcel(final Parcel in) {
+            return new ConfigProxy(in);
+        }
+
+        @Override
+        public ConfigProxy[] newArray(final int size) {
+            return new ConfigProxy[size];
+        }
+    };
+    @Nullable private String name;
+    private final InterfaceProxy observableInterface;
+    private final ObservableList<PeerProxy> observablePeers;
+
+    public ConfigProxy(@Nullable final Config parent, @Nullable final String name) {
+        this.name = name;
+
+        observableInterface = new InterfaceProxy(parent == null ? null : parent.getInterface());
+        observablePeers = new ObservableArrayList<>();
+        if (parent != null) {
+            for (final Peer peer : parent.getPeers())
+                observablePeers.add(new PeerProxy(peer));
+        }
+    }
+
+    private ConfigProxy(final Parcel in) {
+        name = in.readString();
+        observableInterface = in.readParcelable(InterfaceProxy.class.getClassLoader());
+        observablePeers = new ObservableArrayList<>();
+        in.readTypedList(observablePeers, PeerProxy.CREATOR);
+    }
+
+    public void commitData(final Config parent) {
+        observableInterface.commitData(parent.getInterface());
+        final List<Peer> newPeers = new ArrayList<>(observablePeers.size());
+        for (final PeerProxy observablePeer : observablePeers) {
+            final Peer peer = new Peer();
+            observablePeer.commitData(peer);
+            newPeers.add(peer);
+        }
+        parent.getPeers().clear();
+        parent.getPeers().addAll(newPeers);
+        notifyChange();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Bindable
+    public InterfaceProxy getInterfaceSection() {
+        return observableInterface;
+    }
+
+    @Bindable
+    public String getName() {
+        return name == null ? "" : name;
+    }
+
+    @Bindable
+    public ObservableList<PeerProxy> getPeers() {
+        return observablePeers;
+    }
+
+    public void setName(final String name) {
+        this.name = name;
+        notifyPropertyChanged(BR.name);
+    }
+
+    @Override
+    public void writeToParcel(final Parcel dest, final int flags) {
+        dest.writeString(name);
+        dest.writeParcelable(observableInterface, flags);
+        dest.writeTypedList(observablePeers);
+    }
+}
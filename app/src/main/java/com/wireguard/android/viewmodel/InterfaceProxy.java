@@ -0,0 +1,190 @@
+/*
+ * Copyright © 2018 Samuel Holland <samuel@sholland.org>
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.viewmodel;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.wireguard.android.BR;
+import com.wireguard.config.Attribute;
+import com.wireguard.config.Interface;
+import com.wireguard.crypto.Keypair;
+
+import androidx.annotation.Nullable;
+import androidx.databinding.BaseObservable;
+import androidx.databinding.Bindable;
+
+/**
+ * Observable, parcelable editing state for an {@link Interface}.
+ */
+
+public class InterfaceProxy extends BaseObservable implements Parcelable {
+    public static final Creator<InterfaceProxy> CREATOR = new Creator<InterfaceProxy>() {
+        @Override
+        public InterfaceProxy createFromParcel(final Parcel in) {
+            return new InterfaceProxy(in);
+        }
+
+        @Override
+        public InterfaceProxy[] newArray(final int size) {
+            return new InterfaceProxy[size];
+        }
+    };
+    @Nullable private String addresses;
+    @Nullable private String dnses;
+    @Nullable private String excludedApplications;
+    @Nullable private String listenPort;
+    @Nullable private String mtu;
+    @Nullable private String privateKey;
+    @Nullable private String publicKey;
+
+    public InterfaceProxy(@Nullable final Interface parent) {
+        if (parent != null)
+            loadData(parent);
+    }
+
+    private InterfaceProxy(final Parcel in) {
+        addresses = in.readString();
+        dnses = in.readString();
+        publicKey = in.readString();
+        privateKey = in.readString();
+        listenPort = in.readString();
+        mtu = in.readString();
+        excludedApplications = in.readString();
+    }
+
+    public void commitData(final Interface parent) {
+        parent.setAddressString(addresses);
+        parent.setDnsString(dnses);
+        parent.setExcludedApplicationsString(excludedApplications);
+        parent.setPrivateKey(privateKey);
+        parent.setListenPortString(listenPort);
+        parent.setMtuString(mtu);
+        loadData(parent);
+        notifyChange();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public void generateKeypair() {
+        final Keypair keypair = new Keypair();
+        privateKey = keypair.getPrivateKey();
+        publicKey = keypair.getPublicKey();
+        notifyPropertyChanged(BR.privateKey);
+        notifyPropertyChanged(BR.publicKey);
+    }
+
+    @Nullable
+    @Bindable
+    public String getAddresses() {
+        return addresses;
+    }
+
+    @Nullable
+    @Bindable
+    public String getDnses() {
+        return dnses;
+    }
+
+    @Nullable
+    @Bindable
+    public String getExcludedApplications() {
+        return excludedApplications;
+    }
+
+    @Bindable
+    public int getExcludedApplicationsCount() {
+        return Attribute.stringToList(excludedApplications).length;
+    }
+
+    @Nullable
+    @Bindable
+    public String getListenPort() {
+        return listenPort;
+    }
+
+    @Nullable
+    @Bindable
+    public String getMtu() {
+        return mtu;
+    }
+
+    @Nullable
+    @Bindable
+    public String getPrivateKey() {
+        return privateKey;
+    }
+
+    @Nullable
+    @Bindable
+    public String getPublicKey() {
+        return publicKey;
+    }
+
+    private void loadData(final Interface parent) {
+        addresses = parent.getAddressString();
+        dnses = parent.getDnsString();
+        excludedApplications = parent.getExcludedApplicationsString();
+        publicKey = parent.getPublicKey();
+        privateKey = parent.getPrivateKey();
+        listenPort = parent.getListenPortString();
+        mtu = parent.getMtuString();
+    }
+
+    public void setAddresses(final String addresses) {
+        this.addresses = addresses;
+        notifyPropertyChanged(BR.addresses);
+    }
+
+    public void setDnses(final String dnses) {
+        this.dnses = dnses;
+        notifyPropertyChanged(BR.dnses);
+    }
+
+    public void setExcludedApplications(final String excludedApplications) {
+        this.excludedApplications = excludedApplications;
+        notifyPropertyChanged(BR.excludedApplications);
+        notifyPropertyChanged(BR.excludedApplicationsCount);
+    }
+
+    public void setListenPort(final String listenPort) {
+        this.listenPort = listenPort;
+        notifyPropertyChanged(BR.listenPort);
+    }
+
+    public void setMtu(final String mtu) {
+        this.mtu = mtu;
+        notifyPropertyChanged(BR.mtu);
+    }
+
+    public void setPrivateKey(final String privateKey) {
+        this.privateKey = privateKey;
+
+        try {
+            publicKey = new Keypair(privateKey).getPublicKey();
+        } catch (final IllegalArgumentException ignored) {
+            publicKey = "";
+        }
+
+        notifyPropertyChanged(BR.privateKey);
+        notifyPropertyChanged(BR.publicKey);
+    }
+
+    @Override
+    public void writeToParcel(final Parcel dest, final int flags) {
+        dest.writeString(addresses);
+        dest.writeString(dnses);
+        dest.writeString(publicKey);
+        dest.writeString(privateKey);
+        dest.writeString(listenPort);
+        dest.writeString(mtu);
+        dest.writeString(excludedApplications);
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright © 2018 Samuel Holland <samuel@sholland.org>
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.viewmodel;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.wireguard.config.Attribute;
+import com.wireguard.config.BadConfigException;
+import com.wireguard.config.InetNetwork;
+import com.wireguard.config.InetNetworkSet;
+import com.wireguard.config.Peer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.Nullable;
+import androidx.databinding.BaseObservable;
+import androidx.databinding.Bindable;
+import androidx.databinding.library.baseAdapters.BR;
+
+/**
+ * Observable, parcelable editing state for a {@link Peer}.
+ */
+
+public class PeerProxy extends BaseObservable implements Parcelable {
+    public static final Creator<PeerProxy> CREATOR = new Creator<PeerProxy>() {
+        @Override
+        public PeerProxy createFromParcel(final Parcel in) {
+            return new PeerProxy(in);
+        }
+
+        @Override
+        public PeerProxy[] newArray(final int size) {
+            return new PeerProxy[size];
+        }
+    };
+    @Nullable private String allowedIPs;
+    @Nullable private String endpoint;
+    @Nullable private String excludedIPs;
+    @Nullable private String persistentKeepalive;
+    @Nullable private String preSharedKey;
+    @Nullable private String publicKey;
+    private final List<String> interfaceDNSRoutes = new ArrayList<>();
+    private int numSiblings;
+
+    public PeerProxy(final Peer parent) {
+        loadData(parent);
+    }
+
+    private PeerProxy(final Parcel in) {
+        allowedIPs = in.readString();
+        endpoint = in.readString();
+        persistentKeepalive = in.readString();
+        preSharedKey = in.readString();
+        publicKey = in.readString();
+        numSiblings = in.readInt();
+        in.readStringList(interfaceDNSRoutes);
+        excludedIPs = in.readString();
+    }
+
+    public static PeerProxy newInstance() {
+        return new PeerProxy(new Peer());
+    }
+
+    public void commitData(final Peer parent) {
+        parent.setAllowedIPsString(allowedIPs);
+        parent.setEndpointString(endpoint);
+        parent.setPersistentKeepaliveString(persistentKeepalive);
+        parent.setPreSharedKey(preSharedKey);
+        parent.setPublicKey(publicKey);
+        if (parent.getPublicKey() == null)
+            throw new BadConfigException(BadConfigException.Reason.EMPTY_PEER_PUBLIC_KEY, null);
+        loadData(parent);
+        notifyChange();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    private static final InetNetworkSet DEFAULT_ROUTE_V4 =
+            InetNetworkSet.of(new InetNetwork("0.0.0.0/0"));
+    // RFC 1918 private networks, plus multicast and reserved space.
+    private static final InetNetworkSet PRIVATE_IPS_V4 = InetNetworkSet.of(
+            new InetNetwork("10.0.0.0/8"), new InetNetwork("172.16.0.0/12"),
+            new InetNetwork("192.168.0.0/16"), new InetNetwork("224.0.0.0/3"));
+    private static final InetNetworkSet DEFAULT_ROUTE_MOD_PRIVATE_V4 =
+            DEFAULT_ROUTE_V4.subtract(PRIVATE_IPS_V4);
+
+    /**
+     * Parses a list of networks into a set, or returns null if it cannot currently be parsed.
+     */
+    @Nullable
+    private static InetNetworkSet parseSet(@Nullable final String list) {
+        try {
+            final List<InetNetwork> networks = new ArrayList<>();
+            for (final String network : Attribute.stringToList(list))
+                networks.add(new InetNetwork(network));
+            return InetNetworkSet.of(networks);
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private InetNetworkSet getAllowedIPsSet() {
+        return parseSet(allowedIPs);
+    }
+
+    /**
+     * Removes the networks typed into the exclusion field from the allowed IPs, then clears the
+     * field. Only the address families being excluded from are rewritten.
+     */
+    public void excludeIPs() {
+        final InetNetworkSet ips = getAllowedIPsSet();
+        final InetNetworkSet excluded = parseSet(excludedIPs);
+        if (ips == null || excluded == null)
+            return;
+        final InetNetworkSet remaining = ips.subtract(excluded);
+        for (final boolean isIPv6 : new boolean[]{false, true}) {
+            if (!excluded.onlyFamily(isIPv6).isEmpty())
+                setAllowedIPsFamily(isIPv6, remaining);
+        }
+        setExcludedIPs(null);
+    }
+
+    /**
+     * Replaces the allowed IPs of one address family with the minimal prefixes covering that
+     * family of {@code ips}. Entries of the other family are kept as the user typed them, and the
+     * new entries take the place of the first old one.
+     */
+    private void setAllowedIPsFamily(final boolean isIPv6, final InetNetworkSet ips) {
+        final List<String> entries = new ArrayList<>();
+        boolean isReplaced = false;
+        for (final String entry : Attribute.stringToList(allowedIPs)) {
+            if (new InetNetwork(entry).isIPv6() != isIPv6) {
+                entries.add(entry);
+            } else if (!isReplaced) {
+                for (final InetNetwork prefix : ips.onlyFamily(isIPv6).toPrefixes())
+                    entries.add(prefix.toString());
+                isReplaced = true;
+            }
+        }
+        if (!isReplaced) {
+            for (final InetNetwork prefix : ips.onlyFamily(isIPv6).toPrefixes())
+                entries.add(prefix.toString());
+        }
+        setAllowedIPs(Attribute.iterableToString(entries));
+    }
+
+    private InetNetworkSet getInterfaceDNSRoutesSet() {
+        final List<InetNetwork> networks = new ArrayList<>();
+        for (final String route : interfaceDNSRoutes)
+            networks.add(new InetNetwork(route));
+        return InetNetworkSet.of(networks);
+    }
+
+    private static boolean isExcludingPrivateIPs(final InetNetworkSet ips) {
+        return !ips.containsAll(DEFAULT_ROUTE_V4) && ips.containsAll(DEFAULT_ROUTE_MOD_PRIVATE_V4);
+    }
+
+    public void toggleExcludePrivateIPs() {
+        final InetNetworkSet ips = getAllowedIPsSet();
+        if (ips == null || numSiblings > 0)
+            return;
+        if (ips.containsAll(DEFAULT_ROUTE_V4)) {
+            // Routes to the DNS servers are kept even when they are private addresses.
+            setAllowedIPsFamily(false, ips.subtract(PRIVATE_IPS_V4).union(getInterfaceDNSRoutesSet()));
+        } else if (isExcludingPrivateIPs(ips)) {
+            setAllowedIPsFamily(false, ips.union(DEFAULT_ROUTE_V4));
+        }
+    }
+
+    @Bindable
+    public boolean getCanToggleExcludePrivateIPs() {
+        final InetNetworkSet ips = getAllowedIPsSet();
+        return numSiblings == 0 && ips != null
+                && (ips.containsAll(DEFAULT_ROUTE_V4) || isExcludingPrivateIPs(ips));
+    }
+
+    @Bindable
+    public boolean getCanExcludeIPs() {
+        final InetNetworkSet excluded = parseSet(excludedIPs);
+        return getAllowedIPsSet() != null && excluded != null && !excluded.isEmpty();
+    }
+
+    @Bindable
+    public boolean getIsExcludePrivateIPsOn() {
+        final InetNetworkSet ips = getAllowedIPsSet();
+        return numSiblings == 0 && ips != null && isExcludingPrivateIPs(ips);
+    }
+
+    @Bindable @Nullable
+    public String getAllowedIPs() {
+        return allowedIPs;
+    }
+
+    @Bindable @Nullable
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    @Bindable @Nullable
+    public String getExcludedIPs() {
+        return excludedIPs;
+    }
+
+    @Bindable @Nullable
+    public String getPersistentKeepalive() {
+        return persistentKeepalive;
+    }
+
+    @Bindable @Nullable
+    public String getPreSharedKey() {
+        return preSharedKey;
+    }
+
+    @Bindable @Nullable
+    public String getPublicKey() {
+        return publicKey;
+    }
+
+    private void loadData(final Peer parent) {
+        allowedIPs = parent.getAllowedIPsString();
+        endpoint = parent.getEndpointString();
+        persistentKeepalive = parent.getPersistentKeepaliveString();
+        preSharedKey = parent.getPreSharedKey();
+        publicKey = parent.getPublicKey();
+    }
+
+    public void setAllowedIPs(final String allowedIPs) {
+        this.allowedIPs = allowedIPs;
+        notifyPropertyChanged(BR.allowedIPs);
+        notifyPropertyChanged(BR.canExcludeIPs);
+        notifyPropertyChanged(BR.canToggleExcludePrivateIPs);
+        notifyPropertyChanged(BR.isExcludePrivateIPsOn);
+    }
+
+    public void setEndpoint(final String endpoint) {
+        this.endpoint = endpoint;
+        notifyPropertyChanged(BR.endpoint);
+    }
+
+    public void setExcludedIPs(@Nullable final String excludedIPs) {
+        this.excludedIPs = excludedIPs;
+        notifyPropertyChanged(BR.excludedIPs);
+        notifyPropertyChanged(BR.canExcludeIPs);
+    }
+
+    public void setPersistentKeepalive(final String persistentKeepalive) {
+        this.persistentKeepalive = persistentKeepalive;
+        notifyPropertyChanged(BR.persistentKeepalive);
+    }
+
+    public void setPreSharedKey(final String preSharedKey) {
+        this.preSharedKey = preSharedKey;
+        notifyPropertyChanged(BR.preSharedKey);
+    }
+
+    public void setPublicKey(final String publicKey) {
+        this.publicKey = publicKey;
+        notifyPropertyChanged(BR.publicKey);
+    }
+
+    public void setInterfaceDNSRoutes(@Nullable final String dnsServers) {
+        final InetNetworkSet ips = getAllowedIPsSet();
+        final boolean modifyAllowedIPs = ips != null && isExcludingPrivateIPs(ips);
+        // Only the private addresses were added on behalf of the old DNS servers.
+        final InetNetworkSet oldRoutes = getInterfaceDNSRoutesSet().intersect(PRIVATE_IPS_V4);
+
+        interfaceDNSRoutes.clear();
+        for (final String dnsServer : Attribute.stringToList(dnsServers)) {
+            if (dnsServer.contains(":"))
+                continue;
+            try {
+                interfaceDNSRoutes.add(new InetNetwork(dnsServer + "/32").toString());
+            } catch (final IllegalArgumentException ignored) {
+                // The interface editor reports invalid DNS servers itself.
+            }
+        }
+        final InetNetworkSet newRoutes = getInterfaceDNSRoutesSet();
+        if (modifyAllowedIPs)
+            setAllowedIPsFamily(false, ips.subtract(oldRoutes).union(newRoutes));
+    }
+
+    public void setNumSiblings(final int num) {
+        numSiblings = num;
+        notifyPropertyChanged(BR.canToggleExcludePrivateIPs);
+        notifyPropertyChanged(BR.isExcludePrivateIPsOn);
+    }
+
+    @Override
+    public void writeToParcel(final Parcel dest, final int flags) {
+        dest.writeString(allowedIPs);
+        dest.writeString(endpoint);
+        dest.writeString(persistentKeepalive);
+        dest.writeString(preSharedKey);
+        dest.writeString(publicKey);
+        dest.writeInt(numSiblings);
+        dest.writeStringList(interfaceDNSRoutes);
+        dest.writeString(excludedIPs);
+    }
+}
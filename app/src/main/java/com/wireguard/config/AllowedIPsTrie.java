@@ -0,0 +1,292 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.Nullable;
+
+/**
+ * The cryptokey routing table: a path-compressed binary trie, one per address family, mapping
+ * AllowedIPs prefixes to the {@link Peer} that owns them. Lookups find the longest matching
+ * prefix in time proportional to the address length, independent of the number of prefixes.
+ * As in the kernel implementation, inserting a prefix that is already present moves it to the
+ * new peer. Instances are not thread-safe.
+ */
+
+public final class AllowedIPsTrie {
+    @Nullable private Node root4;
+    @Nullable private Node root6;
+    private int size;
+
+    /**
+     * Builds a table containing the AllowedIPs of every peer in {@code config}, in order.
+     */
+    public static AllowedIPsTrie from(final Config config) {
+        final AllowedIPsTrie trie = new AllowedIPsTrie();
+        for (final Peer peer : config.getPeers())
+            trie.insertAll(peer);
+        return trie;
+    }
+
+    private static int bit(final int bits, final long high, final long low, final int index) {
+        if (bits == 32)
+            return (int) (low >>> (31 - index)) & 1;
+        if (index < 64)
+            return (int) (high >>> (63 - index)) & 1;
+        return (int) (low >>> (127 - index)) & 1;
+    }
+
+    private static int commonBits(final int bits, final Node node, final long high,
+                                  final long low) {
+        if (bits == 32)
+            return Integer.numberOfLeadingZeros((int) (node.low ^ low));
+        final long x = node.high ^ high;
+        if (x != 0)
+            return Long.numberOfLeadingZeros(x);
+        return 64 + Long.numberOfLeadingZeros(node.low ^ low);
+    }
+
+    private static void collect(@Nullable final Node node, final boolean isIPv6,
+                                @Nullable final Peer peer, final List<InetNetwork> out) {
+        if (node == null)
+            return;
+        if (node.peer != null && (peer == null || node.peer == peer))
+            out.add(new InetNetwork(isIPv6, node.high, node.low, node.cidr));
+        collect(node.children[0], isIPv6, peer, out);
+        collect(node.children[1], isIPv6, peer, out);
+    }
+
+    private static long maskHigh(final int bits, final int cidr) {
+        if (bits == 32 || cidr == 0)
+            return 0;
+        return cidr >= 64 ? -1L : -1L << (64 - cidr);
+    }
+
+    private static long maskLow(final int bits, final int cidr) {
+        if (bits == 32)
+            return cidr == 0 ? 0 : (0xffffffffL << (32 - cidr)) & 0xffffffffL;
+        return cidr <= 64 ? 0 : -1L << (128 - cidr);
+    }
+
+    public void clear() {
+        root4 = null;
+        root6 = null;
+        size = 0;
+    }
+
+    /**
+     * Returns the peer that owns exactly the given prefix, or null if it is not in the table.
+     */
+    @Nullable
+    public Peer get(final InetNetwork prefix) {
+        final InetNetwork key = prefix.canonicalize();
+        final int bits = key.isIPv6() ? 128 : 32;
+        final long high = key.getAddressHigh();
+        final long low = key.getAddressLow();
+        Node node = key.isIPv6() ? root6 : root4;
+        while (node != null && node.cidr <= key.getMask()
+                && commonBits(bits, node, high, low) >= node.cidr) {
+            if (node.cidr == key.getMask())
+                return node.peer;
+            node = node.children[bit(bits, high, low, node.cidr)];
+        }
+        return null;
+    }
+
+    /**
+     * Returns every prefix in the table, IPv4 before IPv6, each family in trie order.
+     */
+    public List<InetNetwork> getPrefixes() {
+        return getPrefixes(null);
+    }
+
+    /**
+     * Returns the prefixes owned by {@code peer} (or by any peer, if null).
+     */
+    public List<InetNetwork> getPrefixes(@Nullable final Peer peer) {
+        final List<InetNetwork> prefixes = new ArrayList<>();
+        collect(root4, false, peer, prefixes);
+        collect(root6, true, peer, prefixes);
+        return prefixes;
+    }
+
+    /**
+     * Adds a prefix to the table. Host bits beyond the mask are ignored.
+     *
+     * @return The peer that previously owned the prefix, or null.
+     */
+    @Nullable
+    public Peer insert(final InetNetwork prefix, final Peer peer) {
+        final InetNetwork key = prefix.canonicalize();
+        final boolean isIPv6 = key.isIPv6();
+        final int bits = isIPv6 ? 128 : 32;
+        final long high = key.getAddressHigh();
+        final long low = key.getAddressLow();
+        final int cidr = key.getMask();
+        Node parent = null;
+        Node node = isIPv6 ? root6 : root4;
+        while (node != null && node.cidr <= cidr && commonBits(bits, node, high, low) >= node.cidr) {
+            if (node.cidr == cidr) {
+                final Peer previous = node.peer;
+                if (previous == null)
+                    ++size;
+                node.peer = peer;
+                return previous;
+            }
+            parent = node;
+            node = node.children[bit(bits, high, low, node.cidr)];
+        }
+        final Node leaf = new Node(high, low, cidr, peer);
+        ++size;
+        if (node == null) {
+            replace(isIPv6, bits, parent, null, leaf);
+            return null;
+        }
+        final int common = Math.min(commonBits(bits, node, high, low), cidr);
+        if (common == cidr) {
+            // The new prefix contains the existing subtree.
+            leaf.children[bit(bits, node.high, node.low, cidr)] = node;
+            replace(isIPv6, bits, parent, node, leaf);
+            return null;
+        }
+        final Node branch = new Node(high & maskHigh(bits, common), low & maskLow(bits, common),
+                common, null);
+        branch.children[bit(bits, node.high, node.low, common)] = node;
+        branch.children[bit(bits, high, low, common)] = leaf;
+        replace(isIPv6, bits, parent, node, branch);
+        return null;
+    }
+
+    /**
+     * Adds all of a peer's AllowedIPs to the table.
+     */
+    public void insertAll(final Peer peer) {
+        for (final InetNetwork prefix : peer.getAllowedIPs())
+            insert(prefix, peer);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Finds the peer owning the longest prefix that contains {@code address}.
+     */
+    @Nullable
+    public Peer lookup(final InetAddress address) {
+        final byte[] bytes = address.getAddress();
+        if (bytes.length == 4)
+            return lookup(false, 0, InetAddresses.toLong(bytes, 0, 4));
+        return lookup(true, InetAddresses.toLong(bytes, 0, 8), InetAddresses.toLong(bytes, 8, 16));
+    }
+
+    /**
+     * Finds the peer owning the longest prefix that contains the given address, in the same
+     * representation as {@link InetNetwork#getAddressHigh()} and {@link InetNetwork#getAddressLow()}.
+     */
+    @Nullable
+    public Peer lookup(final boolean isIPv6, final long high, final long low) {
+        final int bits = isIPv6 ? 128 : 32;
+        Peer best = null;
+        Node node = isIPv6 ? root6 : root4;
+        while (node != null && commonBits(bits, node, high, low) >= node.cidr) {
+            if (node.peer != null)
+                best = node.peer;
+            if (node.cidr == bits)
+                break;
+            node = node.children[bit(bits, high, low, node.cidr)];
+        }
+        return best;
+    }
+
+    /**
+     * Removes a prefix from the table, merging away branch nodes that are no longer needed.
+     *
+     * @return The peer that owned the prefix, or null if it was not in the table.
+     */
+    @Nullable
+    public Peer remove(final InetNetwork prefix) {
+        final InetNetwork key = prefix.canonicalize();
+        final boolean isIPv6 = key.isIPv6();
+        final int bits = isIPv6 ? 128 : 32;
+        final long high = key.getAddressHigh();
+        final long low = key.getAddressLow();
+        final int cidr = key.getMask();
+        Node grandparent = null;
+        Node parent = null;
+        Node node = isIPv6 ? root6 : root4;
+        while (node != null && node.cidr < cidr && commonBits(bits, node, high, low) >= node.cidr) {
+            grandparent = parent;
+            parent = node;
+            node = node.children[bit(bits, high, low, node.cidr)];
+        }
+        if (node == null || node.cidr != cidr || node.peer == null
+                || commonBits(bits, node, high, low) < cidr)
+            return null;
+        final Peer previous = node.peer;
+        node.peer = null;
+        --size;
+        final Node left = node.children[0];
+        final Node right = node.children[1];
+        if (left != null && right != null)
+            return previous;
+        replace(isIPv6, bits, parent, node, left != null ? left : right);
+        // A branch node left with a single child no longer distinguishes anything.
+        if (parent != null && parent.peer == null && (left == null && right == null)) {
+            final Node sibling = parent.children[0] != null ? parent.children[0] : parent.children[1];
+            replace(isIPv6, bits, grandparent, parent, sibling);
+        }
+        return previous;
+    }
+
+    /**
+     * Removes every prefix owned by {@code peer}.
+     *
+     * @return The number of prefixes removed.
+     */
+    public int removeAll(final Peer peer) {
+        final List<InetNetwork> prefixes = getPrefixes(peer);
+        for (final InetNetwork prefix : prefixes)
+            remove(prefix);
+        return prefixes.size();
+    }
+
+    private void replace(final boolean isIPv6, final int bits, @Nullable final Node parent,
+                         @Nullable final Node old, @Nullable final Node replacement) {
+        if (parent == null) {
+            if (isIPv6)
+                root6 = replacement;
+            else
+                root4 = replacement;
+        } else if (old == null) {
+            parent.children[bit(bits, replacement.high, replacement.low, parent.cidr)] = replacement;
+        } else {
+            parent.children[parent.children[0] == old ? 0 : 1] = replacement;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static final class Node {
+        final Node[] children = new Node[2];
+        final int cidr;
+        final long high;
+        final long low;
+        @Nullable Peer peer;
+
+        Node(final long high, final long low, final int cidr, @Nullable final Peer peer) {
+            this.high = high;
+            this.low = low;
+            this.cidr = cidr;
+            this.peer = peer;
+        }
+    }
+}
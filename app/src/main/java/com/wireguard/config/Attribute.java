@@ -6,12 +6,8 @@
 
 package com.wireguard.config;
 
-import android.annotation.SuppressLint;
-import android.text.TextUtils;
-
-import java.util.HashMap;
-import java.util.Map;
-import java.util.regex.Matcher;
+import java.io.IOException;
+import java.util.Iterator;
 import java.util.regex.Pattern;
 
 import androidx.annotation.Nullable;
@@ -34,63 +30,89 @@ public enum Attribute {
     PUBLIC_KEY("PublicKey");
 
     private static final String[] EMPTY_LIST = new String[0];
-    private static final Map<String, Attribute> KEY_MAP;
     private static final Pattern LIST_SEPARATOR_PATTERN = Pattern.compile("\\s*,\\s*");
-    private static final Pattern SEPARATOR_PATTERN = Pattern.compile("\\s|=");
-
-    static {
-        KEY_MAP = new HashMap<>(Attribute.values().length);
-        for (final Attribute key : Attribute.values()) {
-            KEY_MAP.put(key.token.toLowerCase(), key);
-        }
-    }
+    private static final Attribute[] VALUES = values();
 
-    private final Pattern pattern;
     private final String token;
 
     Attribute(final String token) {
-        pattern = Pattern.compile(token + "\\s*=\\s*(\\S.*)");
         this.token = token;
     }
 
     public static <T> String iterableToString(final Iterable<T> iterable) {
-        return TextUtils.join(", ", iterable);
+        final StringBuilder sb = new StringBuilder();
+        final Iterator<T> it = iterable.iterator();
+        while (it.hasNext()) {
+            sb.append(it.next());
+            if (it.hasNext())
+                sb.append(", ");
+        }
+        return sb.toString();
     }
 
+    /**
+     * Finds the attribute whose key matches, ignoring case, the given region of a buffer.
+     */
     @Nullable
-    public static Attribute match(final CharSequence line) {
-        return KEY_MAP.get(SEPARATOR_PATTERN.split(line)[0].toLowerCase());
+    static Attribute match(final char[] buffer, final int start, final int end) {
+        final int length = end - start;
+        for (final Attribute key : VALUES) {
+            if (key.token.length() != length)
+                continue;
+            int i = 0;
+            while (i < length) {
+                final char a = buffer[start + i];
+                final char b = key.token.charAt(i);
+                if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b))
+                    break;
+                ++i;
+            }
+            if (i == length)
+                return key;
+        }
+        return null;
+    }
+
+    /**
+     * Parses a decimal attribute value, reporting a malformed one as a {@link BadConfigException}.
+     */
+    static int parseInt(final String value) {
+        try {
+            return Integer.parseInt(value, 10);
+        } catch (final NumberFormatException e) {
+            throw new BadConfigException(BadConfigException.Reason.INVALID_NUMBER, value);
+        }
     }
 
     public static String[] stringToList(@Nullable final String string) {
-        if (TextUtils.isEmpty(string))
+        if (string == null || string.isEmpty())
             return EMPTY_LIST;
         return LIST_SEPARATOR_PATTERN.split(string.trim());
     }
 
-    @SuppressLint("DefaultLocale")
-    public String composeWith(@Nullable final Object value) {
-        return String.format("%s = %s%n", token, value);
+    /**
+     * Writes "{@code Key = }" for this attribute, leaving the value to the caller.
+     */
+    public Appendable appendKey(final Appendable out) throws IOException {
+        return out.append(token).append(" = ");
     }
 
-    @SuppressLint("DefaultLocale")
-    public String composeWith(final int value) {
-        return String.format("%s = %d%n", token, value);
+    public void appendTo(final Appendable out, final CharSequence value) throws IOException {
+        appendKey(out).append(value).append('\n');
     }
 
-    public <T> String composeWith(final Iterable<T> value) {
-        return String.format("%s = %s%n", token, iterableToString(value));
+    public void appendTo(final Appendable out, final int value) throws IOException {
+        appendKey(out).append(Integer.toString(value)).append('\n');
     }
 
-    @Nullable
-    public String parse(final CharSequence line) {
-        final Matcher matcher = pattern.matcher(line);
-        return matcher.matches() ? matcher.group(1) : null;
-    }
-
-    @Nullable
-    public String[] parseList(final CharSequence line) {
-        final Matcher matcher = pattern.matcher(line);
-        return matcher.matches() ? stringToList(matcher.group(1)) : null;
+    public void appendTo(final Appendable out, final Iterable<?> values) throws IOException {
+        appendKey(out);
+        final Iterator<?> it = values.iterator();
+        while (it.hasNext()) {
+            out.append(it.next().toString());
+            if (it.hasNext())
+                out.append(", ");
+        }
+        out.append('\n');
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright © 2018 Samuel Holland <samuel@sholland.org>
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import androidx.annotation.Nullable;
+
+/**
+ * An error in a WireGuard configuration. The {@link Reason} identifies the problem so that user
+ * interfaces can present a localized message; {@link #getMessage()} is only meant for logs.
+ */
+
+public class BadConfigException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    private final Reason reason;
+    @Nullable private final String text;
+
+    public BadConfigException(final Reason reason, @Nullable final CharSequence text) {
+        super(text == null ? reason.description : reason.description + ": " + text);
+        this.reason = reason;
+        this.text = text == null ? null : text.toString();
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * Returns the part of the configuration that caused the error, if there is one.
+     */
+    @Nullable
+    public String getText() {
+        return text;
+    }
+
+    public enum Reason {
+        ATTRIBUTE_IN_WRONG_SECTION("Attribute not allowed in this section"),
+        EMPTY_INET_ADDRESS("Empty address"),
+        EMPTY_INTERFACE_ADDRESS("Address is empty"),
+        EMPTY_PEER_PUBLIC_KEY("Peer public key may not be empty"),
+        FORBIDDEN_ENDPOINT_CHARS("Forbidden characters in endpoint"),
+        INVALID_CONFIG_LINE("Invalid configuration line"),
+        INVALID_ENDPOINT("Not a host and port"),
+        INVALID_INET_ADDRESS("Not a numeric address"),
+        INVALID_NUMBER("Not a number"),
+        NO_CONFIG_INFORMATION("Could not find any config information"),
+        UNKNOWN_ATTRIBUTE("Unable to parse line");
+
+        private final String description;
+
+        Reason(final String description) {
+            this.description = description;
+        }
+    }
+}
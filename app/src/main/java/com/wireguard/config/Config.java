@@ -6,36 +6,26 @@
 
 package com.wireguard.config;
 
-import android.content.Context;
-import android.os.Parcel;
-import android.os.Parcelable;
-
-import com.wireguard.android.Application;
-import com.wireguard.android.R;
-
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
-import androidx.annotation.Nullable;
-import androidx.databinding.BaseObservable;
-import androidx.databinding.Bindable;
-import androidx.databinding.ObservableArrayList;
-import androidx.databinding.ObservableList;
-import androidx.databinding.library.baseAdapters.BR;
-
 /**
  * Represents a wg-quick configuration file, its name, and its connection state.
  */
 
 public class Config {
     private final Interface interfaceSection = new Interface();
-    private List<Peer> peers = new ArrayList<>();
+    private final List<Peer> peers = new ArrayList<>();
 
     public static Config from(final String string) throws IOException {
         return from(new BufferedReader(new StringReader(string)));
@@ -47,38 +37,56 @@ public class Config {
 
     public static Config from(final BufferedReader reader) throws IOException {
         final Config config = new Config();
-        final Context context = Application.Companion.get();
+        final ConfigLexer lexer = new ConfigLexer(reader);
         Peer currentPeer = null;
-        String line;
         boolean inInterfaceSection = false;
-        while ((line = reader.readLine()) != null) {
-            final int commentIndex = line.indexOf('#');
-            if (commentIndex != -1)
-                line = line.substring(0, commentIndex);
-            line = line.trim();
-            if (line.isEmpty())
-                continue;
-            if ("[Interface]".toLowerCase().equals(line.toLowerCase())) {
+        ConfigLexer.Token token;
+        while ((token = lexer.next()) != ConfigLexer.Token.END) {
+            if (token == ConfigLexer.Token.INTERFACE) {
                 currentPeer = null;
                 inInterfaceSection = true;
-            } else if ("[Peer]".toLowerCase().equals(line.toLowerCase())) {
+            } else if (token == ConfigLexer.Token.PEER) {
                 currentPeer = new Peer();
                 config.peers.add(currentPeer);
                 inInterfaceSection = false;
             } else if (inInterfaceSection) {
-                config.interfaceSection.parse(line);
+                config.interfaceSection.parse(lexer);
             } else if (currentPeer != null) {
-                currentPeer.parse(line);
+                currentPeer.parse(lexer);
             } else {
-                throw new IllegalArgumentException(context.getString(R.string.tunnel_error_invalid_config_line, line));
+                throw new BadConfigException(BadConfigException.Reason.INVALID_CONFIG_LINE, lexer.getLine());
             }
         }
         if (!inInterfaceSection && currentPeer == null) {
-            throw new IllegalArgumentException(context.getString(R.string.tunnel_error_no_config_information));
+            throw new BadConfigException(BadConfigException.Reason.NO_CONFIG_INFORMATION, null);
         }
         return config;
     }
 
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj == this)
+            return true;
+        if (!(obj instanceof Config))
+            return false;
+        final Config other = (Config) obj;
+        return getFingerprint() == other.getFingerprint()
+                && interfaceSection.equals(other.interfaceSection)
+                && peers.equals(other.peers);
+    }
+
+    /**
+     * Returns a 64-bit hash of the configuration's content. Sections cache their own hashes until
+     * they are modified, so repeated calls are cheap; equal configurations always have equal
+     * fingerprints.
+     */
+    public long getFingerprint() {
+        final Fingerprint result = new Fingerprint().append(interfaceSection.fingerprint());
+        for (final Peer peer : peers)
+            result.append(peer.fingerprint());
+        return result.get();
+    }
+
     public Interface getInterface() {
         return interfaceSection;
     }
@@ -88,89 +96,41 @@ public class Config {
     }
 
     @Override
-    public String toString() {
-        final StringBuilder sb = new StringBuilder().append(interfaceSection);
-        for (final Peer peer : peers)
-            sb.append('\n').append(peer);
-        return sb.toString();
+    public int hashCode() {
+        final long value = getFingerprint();
+        return (int) (value ^ (value >>> 32));
     }
 
-    public static class Observable extends BaseObservable implements Parcelable {
-        public static final Creator<Observable> CREATOR = new Creator<Observable>() {
-            @Override
-            public Observable createFromParcel(final Parcel in) {
-                return new Observable(in);
-            }
-
-            @Override
-            public Observable[] newArray(final int size) {
-                return new Observable[size];
-            }
-        };
-        @Nullable private String name;
-        private final Interface.Observable observableInterface;
-        private final ObservableList<Peer.Observable> observablePeers;
-
-        public Observable(@Nullable final Config parent, @Nullable final String name) {
-            this.name = name;
-
-            observableInterface = new Interface.Observable(parent == null ? null : parent.interfaceSection);
-            observablePeers = new ObservableArrayList<>();
-            if (parent != null) {
-                for (final Peer peer : parent.getPeers())
-                    observablePeers.add(new Peer.Observable(peer));
-            }
-        }
-
-        private Observable(final Parcel in) {
-            name = in.readString();
-            observableInterface = in.readParcelable(Interface.Observable.class.getClassLoader());
-            observablePeers = new ObservableArrayList<>();
-            in.readTypedList(observablePeers, Peer.Observable.CREATOR);
-        }
-
-        public void commitData(final Config parent) {
-            observableInterface.commitData(parent.interfaceSection);
-            final List<Peer> newPeers = new ArrayList<>(observablePeers.size());
-            for (final Peer.Observable observablePeer : observablePeers) {
-                final Peer peer = new Peer();
-                observablePeer.commitData(peer);
-                newPeers.add(peer);
-            }
-            parent.peers = newPeers;
-            notifyChange();
-        }
-
-        @Override
-        public int describeContents() {
-            return 0;
-        }
-
-        @Bindable
-        public Interface.Observable getInterfaceSection() {
-            return observableInterface;
-        }
-
-        @Bindable
-        public String getName() {
-            return name == null ? "" : name;
-        }
-
-        @Bindable
-        public ObservableList<Peer.Observable> getPeers() {
-            return observablePeers;
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        try {
+            writeTo(sb);
+        } catch (final IOException e) {
+            // StringBuilder never throws.
+            throw new IllegalStateException(e);
         }
+        return sb.toString();
+    }
 
-        public void setName(final String name) {
-            this.name = name;
-            notifyPropertyChanged(BR.name);
+    /**
+     * Writes the configuration in wg-quick format directly to {@code out}, without first building
+     * the whole text as a string.
+     */
+    public void writeTo(final Appendable out) throws IOException {
+        interfaceSection.writeTo(out);
+        for (final Peer peer : peers) {
+            out.append('\n');
+            peer.writeTo(out);
         }
+    }
 
-        @Override
-        public void writeToParcel(final Parcel dest, final int flags) {
-            dest.writeString(name);
-            dest.writeParcelable(observableInterface, flags);
-            dest.writeTypedList(observablePeers);
-        }
+    /**
+     * Writes the configuration as UTF-8 to {@code stream}. The stream is flushed but not closed.
+     */
+    public void writeTo(final OutputStream stream) throws IOException {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+        writeTo(writer);
+        writer.flush();
     }
 }
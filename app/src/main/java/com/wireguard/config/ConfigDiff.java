@@ -0,0 +1,163 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import androidx.annotation.Nullable;
+
+/**
+ * The difference between two configurations of the same tunnel, with peers matched by public
+ * key. Backends use it to apply a new configuration to a running tunnel without taking it down.
+ *
+ * <p>Changes that cannot be made to a live interface (addresses, DNS servers or MTU) make
+ * {@link #requiresRestart()} true. Changes to the set of routes covered by AllowedIPs, or to the
+ * excluded applications, are reported separately, as backends that own the routing can apply them
+ * in place. A changed peer whose endpoint was removed is reported as both removed and added,
+ * because an endpoint cannot be unset in place.
+ */
+
+public final class ConfigDiff {
+    private final List<Peer> addedPeers = new ArrayList<>();
+    private final List<Peer> changedPeers = new ArrayList<>();
+    private final boolean excludedApplicationsChanged;
+    private final boolean listenPortChanged;
+    private final Config newConfig;
+    private final boolean privateKeyChanged;
+    private final List<Peer> removedPeers = new ArrayList<>();
+    private final boolean requiresRestart;
+    private final boolean routesChanged;
+
+    public ConfigDiff(final Config oldConfig, final Config newConfig) {
+        this.newConfig = newConfig;
+        final Interface oldInterface = oldConfig.getInterface();
+        final Interface newInterface = newConfig.getInterface();
+        privateKeyChanged = !Objects.equals(oldInterface.getPrivateKey(), newInterface.getPrivateKey());
+        listenPortChanged = oldInterface.getListenPort() != newInterface.getListenPort();
+
+        final Map<String, Peer> oldPeers = mapByPublicKey(oldConfig);
+        final Map<String, Peer> newPeers = mapByPublicKey(newConfig);
+        if (oldPeers != null && newPeers != null) {
+            for (final Map.Entry<String, Peer> entry : oldPeers.entrySet()) {
+                if (!newPeers.containsKey(entry.getKey()))
+                    removedPeers.add(entry.getValue());
+            }
+            for (final Map.Entry<String, Peer> entry : newPeers.entrySet()) {
+                final Peer oldPeer = oldPeers.get(entry.getKey());
+                final Peer newPeer = entry.getValue();
+                if (oldPeer == null) {
+                    addedPeers.add(newPeer);
+                } else if (oldPeer.getEndpoint() != null && newPeer.getEndpoint() == null) {
+                    removedPeers.add(oldPeer);
+                    addedPeers.add(newPeer);
+                } else if (!oldPeer.equals(newPeer)) {
+                    changedPeers.add(newPeer);
+                }
+            }
+        }
+
+        requiresRestart = oldPeers == null || newPeers == null
+                || !Arrays.equals(oldInterface.getAddresses(), newInterface.getAddresses())
+                || !Arrays.equals(oldInterface.getDnses(), newInterface.getDnses())
+                || oldInterface.getMtu() != newInterface.getMtu();
+        excludedApplicationsChanged = !Arrays.equals(oldInterface.getExcludedApplications(),
+                newInterface.getExcludedApplications());
+        routesChanged = !getRoutes(oldConfig).equals(getRoutes(newConfig));
+    }
+
+    /**
+     * Returns the set of addresses routed into the tunnel.
+     */
+    private static InetNetworkSet getRoutes(final Config config) {
+        final List<InetNetwork> allowedIPs = new ArrayList<>();
+        for (final Peer peer : config.getPeers())
+            allowedIPs.addAll(Arrays.asList(peer.getAllowedIPs()));
+        return InetNetworkSet.of(allowedIPs);
+    }
+
+    /**
+     * Returns the peers of a configuration by public key, or null if a peer has no public key or
+     * two peers share one, in which case peers cannot be matched up.
+     */
+    @Nullable
+    private static Map<String, Peer> mapByPublicKey(final Config config) {
+        final Map<String, Peer> peers = new LinkedHashMap<>();
+        for (final Peer peer : config.getPeers()) {
+            final String publicKey = peer.getPublicKey();
+            if (publicKey == null || peers.put(publicKey, peer) != null)
+                return null;
+        }
+        return peers;
+    }
+
+    /**
+     * Returns the peers that exist only in the new configuration.
+     */
+    public List<Peer> getAddedPeers() {
+        return Collections.unmodifiableList(addedPeers);
+    }
+
+    /**
+     * Returns the new versions of peers present in both configurations with different settings.
+     */
+    public List<Peer> getChangedPeers() {
+        return Collections.unmodifiableList(changedPeers);
+    }
+
+    public Config getNewConfig() {
+        return newConfig;
+    }
+
+    /**
+     * Returns the peers that exist only in the old configuration.
+     */
+    public List<Peer> getRemovedPeers() {
+        return Collections.unmodifiableList(removedPeers);
+    }
+
+    /**
+     * Returns whether there is nothing to apply to a running tunnel.
+     */
+    public boolean isEmpty() {
+        return !requiresRestart && !privateKeyChanged && !listenPortChanged && !routesChanged
+                && !excludedApplicationsChanged && addedPeers.isEmpty() && changedPeers.isEmpty()
+                && removedPeers.isEmpty();
+    }
+
+    public boolean isExcludedApplicationsChanged() {
+        return excludedApplicationsChanged;
+    }
+
+    public boolean isListenPortChanged() {
+        return listenPortChanged;
+    }
+
+    public boolean isPrivateKeyChanged() {
+        return privateKeyChanged;
+    }
+
+    /**
+     * Returns whether the union of the peers' AllowedIPs, and so the routes into the tunnel,
+     * changed.
+     */
+    public boolean isRoutesChanged() {
+        return routesChanged;
+    }
+
+    /**
+     * Returns whether the tunnel must be taken down and brought back up to apply the new
+     * configuration.
+     */
+    public boolean requiresRestart() {
+        return requiresRestart;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright © 2018 Samuel Holland <samuel@sholland.org>
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Single-pass tokenizer for wg-quick configuration files. Lines are read into a reusable
+ * character buffer; comments, whitespace, section headers, keys and list separators are all
+ * recognized in place, so the only objects created per line are the value strings handed to
+ * {@link Interface} and {@link Peer}.
+ */
+
+final class ConfigLexer {
+    private static final int BUFFER_SIZE = 8192;
+    private static final String INTERFACE_HEADER = "[Interface]";
+    private static final String PEER_HEADER = "[Peer]";
+
+    private final char[] input = new char[BUFFER_SIZE];
+    private final Reader reader;
+    @Nullable private Attribute attribute;
+    private int inputEnd;
+    private int inputPosition;
+    private char[] line = new char[256];
+    private int lineEnd;
+    private int lineStart;
+    private int listPosition;
+    private int listEnd;
+    private int itemEnd;
+    private int itemStart;
+    private boolean skipLineFeed;
+    private int valueEnd;
+    private int valueStart;
+
+    ConfigLexer(final Reader reader) {
+        this.reader = reader;
+    }
+
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == '\f' || c == 0x0B;
+    }
+
+    private static boolean regionEqualsIgnoreCase(final char[] buffer, final int start,
+                                                  final int end, final String token) {
+        final int length = token.length();
+        if (end - start != length)
+            return false;
+        for (int i = 0; i < length; ++i) {
+            final char a = buffer[start + i];
+            final char b = token.charAt(i);
+            if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the attribute of the current {@link Token#ATTRIBUTE} line, or null if the key is not
+     * one that wg-quick understands.
+     */
+    @Nullable
+    Attribute getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * Returns the current line (without comments or surrounding whitespace), for error messages.
+     */
+    String getLine() {
+        return new String(line, lineStart, lineEnd - lineStart);
+    }
+
+    /**
+     * Returns the current list item, after a successful call to {@link #nextListItem()}.
+     */
+    String getListItem() {
+        return new String(line, itemStart, itemEnd - itemStart);
+    }
+
+    /**
+     * Returns the value of the current attribute, or null if the line has no value.
+     */
+    @Nullable
+    String getValue() {
+        if (valueStart < 0)
+            return null;
+        return new String(line, valueStart, valueEnd - valueStart);
+    }
+
+    /**
+     * Advances to the next comma-separated item in the value of the current attribute. Items are
+     * trimmed of surrounding whitespace; trailing empty items are dropped.
+     *
+     * @return Whether another item is available.
+     */
+    boolean nextListItem() {
+        if (listPosition >= listEnd)
+            return false;
+        int position = listPosition;
+        while (position < listEnd && isWhitespace(line[position]))
+            ++position;
+        itemStart = position;
+        while (position < listEnd && line[position] != ',')
+            ++position;
+        itemEnd = position;
+        while (itemEnd > itemStart && isWhitespace(line[itemEnd - 1]))
+            --itemEnd;
+        listPosition = position + 1;
+        return true;
+    }
+
+    /**
+     * Advances to the next line that is not blank or entirely a comment.
+     *
+     * @return The kind of line found, or {@link Token#END} at the end of input.
+     */
+    Token next() throws IOException {
+        while (readLine()) {
+            int start = 0;
+            int end = lineEnd;
+            for (int i = 0; i < end; ++i) {
+                if (line[i] == '#') {
+                    end = i;
+                    break;
+                }
+            }
+            while (start < end && Character.isWhitespace(line[start]))
+                ++start;
+            while (end > start && Character.isWhitespace(line[end - 1]))
+                --end;
+            if (start == end)
+                continue;
+            lineStart = start;
+            lineEnd = end;
+            if (line[start] == '[') {
+                if (regionEqualsIgnoreCase(line, start, end, INTERFACE_HEADER))
+                    return Token.INTERFACE;
+                if (regionEqualsIgnoreCase(line, start, end, PEER_HEADER))
+                    return Token.PEER;
+            }
+            tokenizeAttribute(start, end);
+            return Token.ATTRIBUTE;
+        }
+        return Token.END;
+    }
+
+    private boolean readLine() throws IOException {
+        lineEnd = 0;
+        boolean sawAny = false;
+        while (true) {
+            if (inputPosition >= inputEnd) {
+                inputEnd = reader.read(input, 0, input.length);
+                inputPosition = 0;
+                if (inputEnd <= 0) {
+                    inputEnd = 0;
+                    return sawAny;
+                }
+            }
+            final char c = input[inputPosition++];
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (c == '\n')
+                    continue;
+            }
+            sawAny = true;
+            if (c == '\n')
+                return true;
+            if (c == '\r') {
+                skipLineFeed = true;
+                return true;
+            }
+            if (lineEnd == line.length) {
+                final char[] grown = new char[line.length * 2];
+                System.arraycopy(line, 0, grown, 0, lineEnd);
+                line = grown;
+            }
+            line[lineEnd++] = c;
+        }
+    }
+
+    private void tokenizeAttribute(final int start, final int end) {
+        int position = start;
+        while (position < end && line[position] != '=' && !isWhitespace(line[position]))
+            ++position;
+        attribute = Attribute.match(line, start, position);
+        while (position < end && isWhitespace(line[position]))
+            ++position;
+        if (position < end && line[position] == '=') {
+            ++position;
+            while (position < end && isWhitespace(line[position]))
+                ++position;
+        } else {
+            position = end;
+        }
+        if (position < end) {
+            valueStart = position;
+            valueEnd = end;
+        } else {
+            valueStart = -1;
+            valueEnd = -1;
+        }
+        listPosition = valueStart < 0 ? end : valueStart;
+        listEnd = valueStart < 0 ? end : valueEnd;
+        while (listEnd > listPosition && (line[listEnd - 1] == ',' || isWhitespace(line[listEnd - 1])))
+            --listEnd;
+    }
+
+    enum Token {
+        ATTRIBUTE,
+        END,
+        INTERFACE,
+        PEER
+    }
+}
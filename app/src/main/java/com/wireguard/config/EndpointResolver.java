@@ -0,0 +1,269 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Resolves peer endpoints, looking up every distinct host name concurrently and caching answers.
+ * Java does not expose DNS record TTLs, so answers are kept for a fixed time; a lookup that misses
+ * its deadline falls back to an expired answer if there is one. Concurrent requests for the same
+ * host share a single lookup. Only the most recently used answers are kept.
+ *
+ * Lookups run on an executor supplied by the application; the default resolver runs them on the
+ * calling thread, one at a time, until the application installs one with
+ * {@link #setDefault(EndpointResolver)}.
+ */
+
+public final class EndpointResolver {
+    private static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+    private static final long DEFAULT_TTL = TimeUnit.MINUTES.toNanos(1);
+    private static final int MAX_CACHE_ENTRIES = 256;
+    private static volatile EndpointResolver defaultResolver = new EndpointResolver(Runnable::run);
+
+    private final Map<String, CacheEntry> cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, CacheEntry> eldest) {
+            return size() > MAX_CACHE_ENTRIES;
+        }
+    };
+    private final Executor executor;
+    private final Map<String, Future<InetAddress>> pending = new HashMap<>();
+    private final long timeout;
+    private final long ttl;
+
+    /**
+     * Creates a resolver with the default cache lifetime and deadline.
+     *
+     * @param executor Runs the lookups; it should allow several to run at once.
+     */
+    public EndpointResolver(final Executor executor) {
+        this(executor, DEFAULT_TTL, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param executor Runs the lookups; it should allow several to run at once.
+     * @param ttl      How long answers are used without looking the host up again, in
+     *                 nanoseconds.
+     * @param timeout  How long to wait for all lookups of one request, in nanoseconds.
+     */
+    public EndpointResolver(final Executor executor, final long ttl, final long timeout) {
+        this.executor = executor;
+        this.ttl = ttl;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Formats a resolved endpoint the way {@code wg} and the UAPI expect, with IPv6 addresses in
+     * brackets.
+     */
+    public static String format(final InetSocketAddress endpoint) {
+        final InetAddress address = endpoint.getAddress();
+        if (address instanceof Inet6Address)
+            return '[' + InetAddresses.format(address) + "]:" + endpoint.getPort();
+        return InetAddresses.format(address) + ':' + endpoint.getPort();
+    }
+
+    public static EndpointResolver getDefault() {
+        return defaultResolver;
+    }
+
+    /**
+     * Replaces the resolver returned by {@link #getDefault()}, normally once at start-up.
+     */
+    public static void setDefault(final EndpointResolver resolver) {
+        defaultResolver = resolver;
+    }
+
+    /**
+     * Forgets the cached answer for {@code host}, so that the next request looks it up again.
+     */
+    public void invalidate(final String host) {
+        synchronized (cache) {
+            cache.remove(host);
+        }
+    }
+
+    /**
+     * Resolves a single endpoint. Endpoints that are already resolved are returned unchanged.
+     */
+    public InetSocketAddress resolve(final InetSocketAddress endpoint) throws UnknownHostException {
+        if (!endpoint.isUnresolved())
+            return endpoint;
+        final long deadline = System.nanoTime() + timeout;
+        final String host = endpoint.getHostString();
+        return new InetSocketAddress(await(host, lookup(host), deadline), endpoint.getPort());
+    }
+
+    /**
+     * Resolves the endpoints of all peers at once, so that the total time is that of the slowest
+     * lookup rather than the sum of all of them.
+     *
+     * @return The resolved endpoint of each peer, in order, or null for peers without one.
+     * @throws UnknownHostException If any host could not be resolved in time.
+     */
+    public InetSocketAddress[] resolveAll(final List<Peer> peers) throws UnknownHostException {
+        final InetSocketAddress[] result = new InetSocketAddress[peers.size()];
+        final Map<String, Future<InetAddress>> lookups = new HashMap<>();
+        // Start every lookup before waiting for any of them.
+        for (final Peer peer : peers) {
+            final InetSocketAddress endpoint = peer.getEndpoint();
+            if (endpoint != null && endpoint.isUnresolved()
+                    && !lookups.containsKey(endpoint.getHostString()))
+                lookups.put(endpoint.getHostString(), lookup(endpoint.getHostString()));
+        }
+        final long deadline = System.nanoTime() + timeout;
+        for (int i = 0; i < result.length; ++i) {
+            final InetSocketAddress endpoint = peers.get(i).getEndpoint();
+            if (endpoint == null)
+                continue;
+            if (!endpoint.isUnresolved()) {
+                result[i] = endpoint;
+                continue;
+            }
+            final String host = endpoint.getHostString();
+            result[i] = new InetSocketAddress(await(host, lookups.get(host), deadline),
+                    endpoint.getPort());
+        }
+        return result;
+    }
+
+    private InetAddress await(final String host, final Future<InetAddress> lookup,
+                              final long deadline) throws UnknownHostException {
+        try {
+            return lookup.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (final TimeoutException e) {
+            final InetAddress stale = getCached(host, true);
+            if (stale != null)
+                return stale;
+            throw new UnknownHostException(host + " (timed out)");
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof UnknownHostException)
+                throw (UnknownHostException) e.getCause();
+            throw new UnknownHostException(host + " (" + e.getCause() + ')');
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(host + " (interrupted)");
+        }
+    }
+
+    @Nullable
+    private InetAddress getCached(final String host, final boolean allowExpired) {
+        synchronized (cache) {
+            final CacheEntry entry = cache.get(host);
+            if (entry == null || (!allowExpired && System.nanoTime() - entry.expiresAt > 0))
+                return null;
+            return entry.address;
+        }
+    }
+
+    /**
+     * Returns a future for the address of {@code host}: already completed if the cache is fresh,
+     * otherwise a lookup that may be shared with other callers.
+     */
+    private Future<InetAddress> lookup(final String host) {
+        final InetAddress cached = getCached(host, false);
+        if (cached != null)
+            return new CompletedFuture(cached);
+        synchronized (pending) {
+            Future<InetAddress> future = pending.get(host);
+            if (future == null) {
+                // Register before starting, as the lookup removes itself when it finishes.
+                final FutureTask<InetAddress> task = new FutureTask<>(new Lookup(host));
+                pending.put(host, task);
+                executor.execute(task);
+                future = task;
+            }
+            return future;
+        }
+    }
+
+    private static final class CacheEntry {
+        private final InetAddress address;
+        private final long expiresAt;
+
+        private CacheEntry(final InetAddress address, final long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class CompletedFuture implements Future<InetAddress> {
+        private final InetAddress address;
+
+        private CompletedFuture(final InetAddress address) {
+            this.address = address;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public InetAddress get() {
+            return address;
+        }
+
+        @Override
+        public InetAddress get(final long timeout, final TimeUnit unit) {
+            return address;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+    }
+
+    private final class Lookup implements Callable<InetAddress> {
+        private final String host;
+
+        private Lookup(final String host) {
+            this.host = host;
+        }
+
+        /**
+         * Takes the first address the system resolver returns, which is already ordered by
+         * preference for the networks the device is connected to.
+         */
+        @Override
+        public InetAddress call() throws UnknownHostException {
+            try {
+                final InetAddress address = InetAddress.getAllByName(host)[0];
+                synchronized (cache) {
+                    cache.put(host, new CacheEntry(address, System.nanoTime() + ttl));
+                }
+                return address;
+            } finally {
+                synchronized (pending) {
+                    pending.remove(host);
+                }
+            }
+        }
+    }
+}
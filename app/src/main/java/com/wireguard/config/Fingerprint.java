@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import androidx.annotation.Nullable;
+
+/**
+ * A 64-bit FNV-1a hash of the text written to it. Configuration objects serialize themselves into
+ * a fingerprint to get a content hash without building their text as a string. Zero is never
+ * returned, so it can mean "not yet computed".
+ */
+
+final class Fingerprint implements Appendable {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private long hash = FNV_OFFSET_BASIS;
+
+    @Override
+    public Fingerprint append(@Nullable final CharSequence csq) {
+        final CharSequence text = csq == null ? "null" : csq;
+        return append(text, 0, text.length());
+    }
+
+    @Override
+    public Fingerprint append(@Nullable final CharSequence csq, final int start, final int end) {
+        final CharSequence text = csq == null ? "null" : csq;
+        for (int i = start; i < end; ++i)
+            append(text.charAt(i));
+        return this;
+    }
+
+    @Override
+    public Fingerprint append(final char c) {
+        hash = (hash ^ c) * FNV_PRIME;
+        return this;
+    }
+
+    /**
+     * Mixes a previously computed fingerprint into this one.
+     */
+    Fingerprint append(final long value) {
+        for (int shift = 0; shift < 64; shift += 8)
+            hash = (hash ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+        return this;
+    }
+
+    long get() {
+        return hash == 0 ? 1 : hash;
+    }
+}
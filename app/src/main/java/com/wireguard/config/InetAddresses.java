@@ -6,38 +6,246 @@
 
 package com.wireguard.config;
 
-import com.wireguard.android.Application;
-import com.wireguard.android.R;
-
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 
 import androidx.annotation.Nullable;
 
+/**
+ * Parsing and formatting of numeric IPv4 and IPv6 addresses, without reflection and without ever
+ * touching the resolver. IPv4 addresses are handled as unsigned 32-bit values in a {@code long};
+ * IPv6 addresses are handled as a pair of {@code long}s holding the high and low 64 bits.
+ */
+
 public final class InetAddresses {
-    private static final Method PARSER_METHOD;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final long IPV4_MAPPED_PREFIX = 0xffffL;
 
-    static {
-        try {
-            // This method is only present on Android.
-            PARSER_METHOD = InetAddress.class.getMethod("parseNumericAddress", String.class);
-        } catch (final NoSuchMethodException e) {
-            throw new RuntimeException(e);
+    private InetAddresses() {
+        // Prevent instantiation.
+    }
+
+    static void appendIPv4(final StringBuilder sb, final long address) {
+        sb.append((address >>> 24) & 0xff).append('.')
+                .append((address >>> 16) & 0xff).append('.')
+                .append((address >>> 8) & 0xff).append('.')
+                .append(address & 0xff);
+    }
+
+    /**
+     * Appends an IPv6 address in the canonical text form recommended by RFC 5952: lowercase
+     * hexadecimal without leading zeros, with the first longest run of two or more zero groups
+     * compressed to "::", and IPv4-mapped addresses written in dotted-quad notation.
+     */
+    static void appendIPv6(final StringBuilder sb, final long high, final long low) {
+        if (isIPv4Mapped(high, low)) {
+            sb.append("::ffff:");
+            appendIPv4(sb, low & 0xffffffffL);
+            return;
+        }
+        int bestStart = -1;
+        int bestLength = 1;
+        int runStart = -1;
+        for (int i = 0; i < 8; ++i) {
+            if (getGroup(high, low, i) == 0) {
+                if (runStart < 0)
+                    runStart = i;
+                if (i - runStart + 1 > bestLength) {
+                    bestStart = runStart;
+                    bestLength = i - runStart + 1;
+                }
+            } else {
+                runStart = -1;
+            }
+        }
+        for (int i = 0; i < 8; ++i) {
+            if (i == bestStart) {
+                sb.append("::");
+                i += bestLength - 1;
+                continue;
+            }
+            if (i > 0 && i != bestStart + bestLength)
+                sb.append(':');
+            final int group = getGroup(high, low, i);
+            for (int shift = 12; shift >= 0; shift -= 4) {
+                if (shift > 0 && (group >>> shift) == 0)
+                    continue;
+                sb.append(HEX_DIGITS[(group >>> shift) & 0xf]);
+            }
         }
     }
 
-    private InetAddresses() {
-        // Prevent instantiation.
+    /**
+     * Formats an address using the same canonical forms as {@link InetNetwork}.
+     */
+    public static String format(final InetAddress address) {
+        final byte[] bytes = address.getAddress();
+        final StringBuilder sb = new StringBuilder(bytes.length == 4 ? 15 : 39);
+        if (bytes.length == 4)
+            appendIPv4(sb, toLong(bytes, 0, 4));
+        else
+            appendIPv6(sb, toLong(bytes, 0, 8), toLong(bytes, 8, 16));
+        return sb.toString();
+    }
+
+    private static int getGroup(final long high, final long low, final int index) {
+        final long word = index < 4 ? high : low;
+        return (int) (word >>> ((3 - (index & 3)) * 16)) & 0xffff;
+    }
+
+    private static int hexValue(final char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    static boolean isIPv4Mapped(final long high, final long low) {
+        return high == 0 && (low >>> 32) == IPV4_MAPPED_PREFIX;
     }
 
     public static InetAddress parse(@Nullable final String address) {
         if (address == null || address.isEmpty())
-            throw new IllegalArgumentException(Application.Companion.get().getString(R.string.tunnel_error_empty_inetaddress));
+            throw new BadConfigException(BadConfigException.Reason.EMPTY_INET_ADDRESS, null);
+        final long ipv4 = parseIPv4(address, 0, address.length());
+        if (ipv4 >= 0)
+            return toInetAddress(false, 0, ipv4);
+        final long[] words = new long[2];
+        if (!parseIPv6(address, 0, address.length(), words))
+            throw new BadConfigException(BadConfigException.Reason.INVALID_INET_ADDRESS, address);
+        return toInetAddress(true, words[0], words[1]);
+    }
+
+    /**
+     * Parses a dotted-quad IPv4 address. Leading zeros are rejected, as by inet_pton(3).
+     *
+     * @return The address as an unsigned 32-bit value, or -1 if the text is not a valid address.
+     */
+    static long parseIPv4(final CharSequence text, final int start, final int end) {
+        long result = 0;
+        int octets = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = start; i < end; ++i) {
+            final char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (digits > 0 && value == 0)
+                    return -1;
+                value = value * 10 + (c - '0');
+                if (value > 255)
+                    return -1;
+                ++digits;
+            } else if (c == '.' && digits > 0 && octets < 3) {
+                result = (result << 8) | value;
+                ++octets;
+                value = 0;
+                digits = 0;
+            } else {
+                return -1;
+            }
+        }
+        if (digits == 0 || octets != 3)
+            return -1;
+        return (result << 8) | value;
+    }
+
+    /**
+     * Parses an IPv6 address, including "::" compression and a trailing dotted-quad, into the
+     * high and low 64 bits of {@code result}. Scope IDs are not accepted.
+     *
+     * @return Whether the text was a valid address.
+     */
+    static boolean parseIPv6(final CharSequence text, final int start, final int end,
+                             final long[] result) {
+        result[0] = 0;
+        result[1] = 0;
+        int count = 0;
+        int gap = -1;
+        int i = start;
+        if (end - start >= 2 && text.charAt(i) == ':' && text.charAt(i + 1) == ':') {
+            gap = 0;
+            i += 2;
+        }
+        while (i < end) {
+            final int groupStart = i;
+            int value = 0;
+            int digits = 0;
+            int digit;
+            while (i < end && (digit = hexValue(text.charAt(i))) >= 0) {
+                if (++digits > 4)
+                    return false;
+                value = (value << 4) | digit;
+                ++i;
+            }
+            if (i < end && text.charAt(i) == '.') {
+                if (count > 6)
+                    return false;
+                final long ipv4 = parseIPv4(text, groupStart, end);
+                if (ipv4 < 0)
+                    return false;
+                setGroup(result, count++, (int) (ipv4 >>> 16));
+                setGroup(result, count++, (int) (ipv4 & 0xffff));
+                break;
+            }
+            if (digits == 0 || count == 8)
+                return false;
+            setGroup(result, count++, value);
+            if (i == end)
+                break;
+            if (text.charAt(i++) != ':' || i == end)
+                return false;
+            if (text.charAt(i) == ':') {
+                if (gap >= 0)
+                    return false;
+                gap = count;
+                ++i;
+            }
+        }
+        if (gap < 0)
+            return count == 8;
+        if (count == 8)
+            return false;
+        // Slide the groups after "::" to the end of the address.
+        final int distance = 8 - count;
+        for (int index = count - 1; index >= gap; --index) {
+            final int group = getGroup(result[0], result[1], index);
+            setGroup(result, index, 0);
+            setGroup(result, index + distance, group);
+        }
+        return true;
+    }
+
+    private static void setGroup(final long[] words, final int index, final int value) {
+        final int shift = (3 - (index & 3)) * 16;
+        words[index >> 2] = (words[index >> 2] & ~(0xffffL << shift)) | ((long) value << shift);
+    }
+
+    static InetAddress toInetAddress(final boolean isIPv6, final long high, final long low) {
+        final byte[] bytes = new byte[isIPv6 ? 16 : 4];
+        if (isIPv6) {
+            for (int i = 0; i < 8; ++i) {
+                bytes[i] = (byte) (high >>> (56 - 8 * i));
+                bytes[8 + i] = (byte) (low >>> (56 - 8 * i));
+            }
+        } else {
+            for (int i = 0; i < 4; ++i)
+                bytes[i] = (byte) (low >>> (24 - 8 * i));
+        }
         try {
-            return (InetAddress) PARSER_METHOD.invoke(null, address);
-        } catch (final IllegalAccessException | InvocationTargetException e) {
-            throw new RuntimeException(e.getCause() == null ? e : e.getCause());
+            return InetAddress.getByAddress(bytes);
+        } catch (final UnknownHostException e) {
+            // Only thrown for arrays of the wrong length.
+            throw new IllegalStateException(e);
         }
     }
+
+    static long toLong(final byte[] bytes, final int start, final int end) {
+        long result = 0;
+        for (int i = start; i < end; ++i)
+            result = (result << 8) | (bytes[i] & 0xff);
+        return result;
+    }
 }
@@ -6,40 +6,130 @@
 
 package com.wireguard.config;
 
-import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.util.Objects;
+
+/**
+ * An IPv4 or IPv6 network prefix. The address is kept as primitive words (IPv4 addresses occupy
+ * the low 32 bits of {@link #getAddressLow()}), so prefixes can be compared, hashed and formatted
+ * without allocating {@link InetAddress} objects.
+ */
 
 public class InetNetwork {
-    private final InetAddress address;
+    private final long high;
+    private final boolean isIPv6;
+    private final long low;
     private final int mask;
 
     public InetNetwork(final String input) {
         final int slash = input.lastIndexOf('/');
-        final int rawMask;
-        final String rawAddress;
-        if (slash >= 0) {
-            rawMask = Integer.parseInt(input.substring(slash + 1), 10);
-            rawAddress = input.substring(0, slash);
+        final int addressEnd = slash >= 0 ? slash : input.length();
+        int rawMask = -1;
+        if (slash >= 0)
+            rawMask = parseMask(input, slash + 1);
+        if (addressEnd == 0)
+            throw new BadConfigException(BadConfigException.Reason.EMPTY_INET_ADDRESS, null);
+        final long ipv4 = InetAddresses.parseIPv4(input, 0, addressEnd);
+        if (ipv4 >= 0) {
+            isIPv6 = false;
+            high = 0;
+            low = ipv4;
         } else {
-            rawMask = -1;
-            rawAddress = input;
+            final long[] words = new long[2];
+            if (!InetAddresses.parseIPv6(input, 0, addressEnd, words))
+                throw new BadConfigException(BadConfigException.Reason.INVALID_INET_ADDRESS,
+                        input.substring(0, addressEnd));
+            // Like InetAddress, treat IPv4-mapped IPv6 addresses as plain IPv4 addresses.
+            isIPv6 = !InetAddresses.isIPv4Mapped(words[0], words[1]);
+            high = words[0];
+            low = isIPv6 ? words[1] : words[1] & 0xffffffffL;
         }
-        address = InetAddresses.parse(rawAddress);
-        final int maxMask = (address instanceof Inet4Address) ? 32 : 128;
+        final int maxMask = isIPv6 ? 128 : 32;
         mask = rawMask >= 0 && rawMask <= maxMask ? rawMask : maxMask;
     }
 
+    public InetNetwork(final boolean isIPv6, final long high, final long low, final int mask) {
+        this.isIPv6 = isIPv6;
+        this.high = isIPv6 ? high : 0;
+        this.low = isIPv6 ? low : low & 0xffffffffL;
+        this.mask = mask;
+    }
+
+    private static long maskBits(final int bits) {
+        if (bits <= 0)
+            return 0;
+        if (bits >= 64)
+            return -1L;
+        return -1L << (64 - bits);
+    }
+
+    private static int parseMask(final String input, final int start) {
+        final int length = input.length();
+        if (start == length || length - start > 9)
+            return Attribute.parseInt(input.substring(start));
+        int value = 0;
+        for (int i = start; i < length; ++i) {
+            final char c = input.charAt(i);
+            if (c < '0' || c > '9')
+                return Attribute.parseInt(input.substring(start));
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Appends the prefix in the form accepted by {@link #InetNetwork(String)}.
+     */
+    public StringBuilder appendTo(final StringBuilder sb) {
+        if (isIPv6)
+            InetAddresses.appendIPv6(sb, high, low);
+        else
+            InetAddresses.appendIPv4(sb, low);
+        return sb.append('/').append(mask);
+    }
+
+    /**
+     * Returns this prefix with all bits beyond the mask cleared, as expected for AllowedIPs.
+     */
+    public InetNetwork canonicalize() {
+        final long canonicalHigh;
+        final long canonicalLow;
+        if (isIPv6) {
+            canonicalHigh = high & maskBits(mask);
+            canonicalLow = low & maskBits(mask - 64);
+        } else {
+            canonicalHigh = 0;
+            canonicalLow = low & (maskBits(mask) >>> 32);
+        }
+        if (canonicalHigh == high && canonicalLow == low)
+            return this;
+        return new InetNetwork(isIPv6, canonicalHigh, canonicalLow, mask);
+    }
+
     @Override
     public boolean equals(final Object obj) {
         if (!(obj instanceof InetNetwork))
             return false;
         final InetNetwork other = (InetNetwork) obj;
-        return Objects.equals(address, other.address) && mask == other.mask;
+        return isIPv6 == other.isIPv6 && high == other.high && low == other.low
+                && mask == other.mask;
     }
 
     public InetAddress getAddress() {
-        return address;
+        return InetAddresses.toInetAddress(isIPv6, high, low);
+    }
+
+    /**
+     * Returns the high 64 bits of an IPv6 address, or 0 for an IPv4 address.
+     */
+    public long getAddressHigh() {
+        return high;
+    }
+
+    /**
+     * Returns the low 64 bits of an IPv6 address, or the 32-bit IPv4 address.
+     */
+    public long getAddressLow() {
+        return low;
     }
 
     public int getMask() {
@@ -48,11 +138,17 @@ public class InetNetwork {
 
     @Override
     public int hashCode() {
-        return address.hashCode() ^ mask;
+        int result = (int) (high ^ (high >>> 32));
+        result = 31 * result + (int) (low ^ (low >>> 32));
+        return 31 * result + (isIPv6 ? mask + 256 : mask);
+    }
+
+    public boolean isIPv6() {
+        return isIPv6;
     }
 
     @Override
     public String toString() {
-        return address.getHostAddress() + '/' + mask;
+        return appendTo(new StringBuilder(isIPv6 ? 43 : 18)).toString();
     }
 }
@@ -0,0 +1,348 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable set of IPv4 and IPv6 addresses, supporting set algebra on {@link InetNetwork}
+ * prefixes. Each address family is stored as a sorted array of disjoint, non-adjacent inclusive
+ * ranges, four {@code long}s per range (start high, start low, end high, end low); IPv4 addresses
+ * use only the low 32 bits. {@link #toPrefixes()} turns the ranges back into the smallest list of
+ * prefixes that covers exactly the same addresses.
+ */
+
+public final class InetNetworkSet {
+    public static final InetNetworkSet EMPTY = new InetNetworkSet(new long[0], new long[0]);
+
+    private static final long IPV4_MAX = 0xffffffffL;
+
+    private final long[] ranges4;
+    private final long[] ranges6;
+
+    private InetNetworkSet(final long[] ranges4, final long[] ranges6) {
+        this.ranges4 = ranges4;
+        this.ranges6 = ranges6;
+    }
+
+    public static InetNetworkSet of(final InetNetwork... networks) {
+        return of(Arrays.asList(networks));
+    }
+
+    public static InetNetworkSet of(final Iterable<InetNetwork> networks) {
+        final RangeList list4 = new RangeList();
+        final RangeList list6 = new RangeList();
+        for (final InetNetwork network : networks) {
+            final InetNetwork prefix = network.canonicalize();
+            final int hostBits = (prefix.isIPv6() ? 128 : 32) - prefix.getMask();
+            final long high = prefix.getAddressHigh();
+            final long low = prefix.getAddressLow();
+            (prefix.isIPv6() ? list6 : list4).add(high, low,
+                    high | onesHigh(hostBits), low | onesLow(hostBits));
+        }
+        return new InetNetworkSet(list4.normalize(), list6.normalize());
+    }
+
+    private static void appendPrefixes(final long[] ranges, final boolean isIPv6,
+                                       final List<InetNetwork> out) {
+        final int bits = isIPv6 ? 128 : 32;
+        for (int i = 0; i < ranges.length; i += 4) {
+            long startHigh = ranges[i];
+            long startLow = ranges[i + 1];
+            final long endHigh = ranges[i + 2];
+            final long endLow = ranges[i + 3];
+            while (true) {
+                // Take the largest aligned block that starts here and does not pass the end.
+                int hostBits = Math.min(trailingZeros(startHigh, startLow), bits);
+                while (hostBits > 0 && compare(startHigh | onesHigh(hostBits),
+                        startLow | onesLow(hostBits), endHigh, endLow) > 0)
+                    --hostBits;
+                out.add(new InetNetwork(isIPv6, startHigh, startLow, bits - hostBits));
+                final long blockEndHigh = startHigh | onesHigh(hostBits);
+                final long blockEndLow = startLow | onesLow(hostBits);
+                if (blockEndHigh == endHigh && blockEndLow == endLow)
+                    break;
+                startLow = blockEndLow + 1;
+                startHigh = startLow == 0 ? blockEndHigh + 1 : blockEndHigh;
+            }
+        }
+    }
+
+    private static int compare(final long aHigh, final long aLow, final long bHigh, final long bLow) {
+        if (aHigh != bHigh)
+            return compareUnsigned(aHigh, bHigh);
+        return compareUnsigned(aLow, bLow);
+    }
+
+    // Long.compareUnsigned() is not available before API 26.
+    private static int compareUnsigned(final long a, final long b) {
+        return Long.compare(a ^ Long.MIN_VALUE, b ^ Long.MIN_VALUE);
+    }
+
+    private static long[] complement(final long[] ranges, final long maxHigh, final long maxLow) {
+        final RangeList out = new RangeList();
+        long nextHigh = 0;
+        long nextLow = 0;
+        for (int i = 0; i < ranges.length; i += 4) {
+            if (compare(ranges[i], ranges[i + 1], nextHigh, nextLow) > 0) {
+                final long endLow = ranges[i + 1] - 1;
+                out.add(nextHigh, nextLow, endLow == -1L ? ranges[i] - 1 : ranges[i], endLow);
+            }
+            if (ranges[i + 2] == maxHigh && ranges[i + 3] == maxLow)
+                return out.toArray();
+            nextLow = ranges[i + 3] + 1;
+            nextHigh = nextLow == 0 ? ranges[i + 2] + 1 : ranges[i + 2];
+        }
+        out.add(nextHigh, nextLow, maxHigh, maxLow);
+        return out.toArray();
+    }
+
+    private static boolean containsRange(final long[] ranges, final long startHigh,
+                                         final long startLow, final long endHigh,
+                                         final long endLow) {
+        int lo = 0;
+        int hi = ranges.length / 4 - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int i = mid * 4;
+            if (compare(ranges[i + 2], ranges[i + 3], startHigh, startLow) < 0)
+                lo = mid + 1;
+            else if (compare(ranges[i], ranges[i + 1], startHigh, startLow) > 0)
+                hi = mid - 1;
+            else
+                return compare(endHigh, endLow, ranges[i + 2], ranges[i + 3]) <= 0;
+        }
+        return false;
+    }
+
+    private static long[] intersect(final long[] a, final long[] b) {
+        final RangeList out = new RangeList();
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            final boolean aStartsLater = compare(a[i], a[i + 1], b[j], b[j + 1]) > 0;
+            final long startHigh = aStartsLater ? a[i] : b[j];
+            final long startLow = aStartsLater ? a[i + 1] : b[j + 1];
+            final boolean aEndsFirst = compare(a[i + 2], a[i + 3], b[j + 2], b[j + 3]) < 0;
+            final long endHigh = aEndsFirst ? a[i + 2] : b[j + 2];
+            final long endLow = aEndsFirst ? a[i + 3] : b[j + 3];
+            if (compare(startHigh, startLow, endHigh, endLow) <= 0)
+                out.add(startHigh, startLow, endHigh, endLow);
+            if (aEndsFirst)
+                i += 4;
+            else
+                j += 4;
+        }
+        return out.toArray();
+    }
+
+    private static long onesHigh(final int hostBits) {
+        if (hostBits <= 64)
+            return 0;
+        return hostBits >= 128 ? -1L : (1L << (hostBits - 64)) - 1;
+    }
+
+    private static long onesLow(final int hostBits) {
+        return hostBits >= 64 ? -1L : (1L << hostBits) - 1;
+    }
+
+    private static int trailingZeros(final long high, final long low) {
+        if (low != 0)
+            return Long.numberOfTrailingZeros(low);
+        return 64 + Long.numberOfTrailingZeros(high);
+    }
+
+    private static long[] union(final long[] a, final long[] b) {
+        final RangeList list = new RangeList();
+        for (int i = 0; i < a.length; i += 4)
+            list.add(a[i], a[i + 1], a[i + 2], a[i + 3]);
+        for (int i = 0; i < b.length; i += 4)
+            list.add(b[i], b[i + 1], b[i + 2], b[i + 3]);
+        return list.normalize();
+    }
+
+    /**
+     * Returns the set of all addresses, of both families, that are not in this set.
+     */
+    public InetNetworkSet complement() {
+        return new InetNetworkSet(complement(ranges4, 0, IPV4_MAX), complement(ranges6, -1L, -1L));
+    }
+
+    public boolean contains(final InetNetwork network) {
+        final InetNetwork prefix = network.canonicalize();
+        final int hostBits = (prefix.isIPv6() ? 128 : 32) - prefix.getMask();
+        final long high = prefix.getAddressHigh();
+        final long low = prefix.getAddressLow();
+        return containsRange(prefix.isIPv6() ? ranges6 : ranges4, high, low,
+                high | onesHigh(hostBits), low | onesLow(hostBits));
+    }
+
+    public boolean containsAll(final InetNetworkSet other) {
+        return other.subtract(this).isEmpty();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof InetNetworkSet))
+            return false;
+        final InetNetworkSet other = (InetNetworkSet) obj;
+        return Arrays.equals(ranges4, other.ranges4) && Arrays.equals(ranges6, other.ranges6);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(ranges4) + Arrays.hashCode(ranges6);
+    }
+
+    public InetNetworkSet intersect(final InetNetworkSet other) {
+        return new InetNetworkSet(intersect(ranges4, other.ranges4),
+                intersect(ranges6, other.ranges6));
+    }
+
+    public boolean isEmpty() {
+        return ranges4.length == 0 && ranges6.length == 0;
+    }
+
+    /**
+     * Returns the addresses of one family only.
+     */
+    public InetNetworkSet onlyFamily(final boolean isIPv6) {
+        return isIPv6 ? new InetNetworkSet(EMPTY.ranges4, ranges6)
+                : new InetNetworkSet(ranges4, EMPTY.ranges6);
+    }
+
+    public InetNetworkSet subtract(final InetNetworkSet other) {
+        return new InetNetworkSet(intersect(ranges4, complement(other.ranges4, 0, IPV4_MAX)),
+                intersect(ranges6, complement(other.ranges6, -1L, -1L)));
+    }
+
+    /**
+     * Returns the minimal list of prefixes covering exactly this set, IPv4 before IPv6, each in
+     * ascending address order.
+     */
+    public List<InetNetwork> toPrefixes() {
+        final List<InetNetwork> prefixes = new ArrayList<>();
+        appendPrefixes(ranges4, false, prefixes);
+        appendPrefixes(ranges6, true, prefixes);
+        return prefixes;
+    }
+
+    @Override
+    public String toString() {
+        return Attribute.iterableToString(toPrefixes());
+    }
+
+    public InetNetworkSet union(final InetNetworkSet other) {
+        return new InetNetworkSet(union(ranges4, other.ranges4), union(ranges6, other.ranges6));
+    }
+
+    /**
+     * A growable list of ranges that can be sorted and merged into the canonical array form.
+     */
+    private static final class RangeList {
+        private static final int INSERTION_SORT_THRESHOLD = 8;
+
+        private int size;
+        private long[] values = new long[16];
+
+        void add(final long startHigh, final long startLow, final long endHigh, final long endLow) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = startHigh;
+            values[size++] = startLow;
+            values[size++] = endHigh;
+            values[size++] = endLow;
+        }
+
+        /**
+         * Sorts the ranges by start and merges overlapping and adjacent ones, all in place.
+         */
+        long[] normalize() {
+            sort(0, size / 4 - 1);
+            // The merged ranges are written over the sorted ones; last is the latest merged range.
+            int last = -4;
+            for (int i = 0; i < size; i += 4) {
+                if (last >= 0) {
+                    // Merge when this range starts at or before the address after the last end.
+                    final boolean lastEndsAtMax = values[last + 2] == -1L && values[last + 3] == -1L;
+                    final long nextLow = values[last + 3] + 1;
+                    final long nextHigh = nextLow == 0 ? values[last + 2] + 1 : values[last + 2];
+                    final boolean touches = lastEndsAtMax
+                            || compare(values[i], values[i + 1], nextHigh, nextLow) <= 0;
+                    if (touches) {
+                        if (compare(values[i + 2], values[i + 3], values[last + 2], values[last + 3]) > 0) {
+                            values[last + 2] = values[i + 2];
+                            values[last + 3] = values[i + 3];
+                        }
+                        continue;
+                    }
+                }
+                last += 4;
+                if (last != i)
+                    System.arraycopy(values, i, values, last, 4);
+            }
+            return Arrays.copyOf(values, last + 4);
+        }
+
+        /**
+         * Sorts the ranges with indices {@code lo} to {@code hi} inclusive by their start, using
+         * quicksort on the primitive array and insertion sort for short runs.
+         */
+        private void sort(int lo, int hi) {
+            while (hi - lo >= INSERTION_SORT_THRESHOLD) {
+                final int mid = (lo + hi) >>> 1;
+                if (compareStarts(mid, lo) < 0)
+                    swap(mid, lo);
+                if (compareStarts(hi, lo) < 0)
+                    swap(hi, lo);
+                if (compareStarts(hi, mid) < 0)
+                    swap(hi, mid);
+                final long pivotHigh = values[mid * 4];
+                final long pivotLow = values[mid * 4 + 1];
+                int i = lo;
+                int j = hi;
+                while (i <= j) {
+                    while (compare(values[i * 4], values[i * 4 + 1], pivotHigh, pivotLow) < 0)
+                        ++i;
+                    while (compare(values[j * 4], values[j * 4 + 1], pivotHigh, pivotLow) > 0)
+                        --j;
+                    if (i <= j)
+                        swap(i++, j--);
+                }
+                // Recurse into the smaller part and loop on the larger one to bound the stack.
+                if (j - lo < hi - i) {
+                    sort(lo, j);
+                    lo = i;
+                } else {
+                    sort(i, hi);
+                    hi = j;
+                }
+            }
+            for (int i = lo + 1; i <= hi; ++i) {
+                for (int j = i; j > lo && compareStarts(j - 1, j) > 0; --j)
+                    swap(j - 1, j);
+            }
+        }
+
+        private int compareStarts(final int a, final int b) {
+            return compare(values[a * 4], values[a * 4 + 1], values[b * 4], values[b * 4 + 1]);
+        }
+
+        private void swap(final int a, final int b) {
+            for (int k = 0; k < 4; ++k) {
+                final long value = values[a * 4 + k];
+                values[a * 4 + k] = values[b * 4 + k];
+                values[b * 4 + k] = value;
+            }
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -6,23 +6,16 @@
 
 package com.wireguard.config;
 
-import android.content.Context;
-import android.os.Parcel;
-import android.os.Parcelable;
-
-import com.wireguard.android.Application;
-import com.wireguard.android.BR;
-import com.wireguard.android.R;
 import com.wireguard.crypto.Keypair;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 
 import androidx.annotation.Nullable;
-import androidx.databinding.BaseObservable;
-import androidx.databinding.Bindable;
 
 /**
  * Represents the configuration for a WireGuard interface (an [Interface] block).
@@ -32,10 +25,10 @@ public class Interface {
     private final List<InetNetwork> addressList;
     private final List<InetAddress> dnsList;
     private final List<String> excludedApplications;
+    private long fingerprint;
     @Nullable private Keypair keypair;
     private int listenPort;
     private int mtu;
-    private final Context context = Application.Companion.get();
 
     public Interface() {
         addressList = new ArrayList<>();
@@ -45,14 +38,17 @@ public class Interface {
 
     private void addAddresses(@Nullable final String[] addresses) {
         if (addresses != null && addresses.length > 0) {
-            for (final String addr : addresses) {
-                if (addr.isEmpty())
-                    throw new IllegalArgumentException(context.getString(R.string.tunnel_error_empty_interface_address));
-                addressList.add(new InetNetwork(addr));
-            }
+            for (final String addr : addresses)
+                addAddress(addr);
         }
     }
 
+    private void addAddress(final String address) {
+        if (address.isEmpty())
+            throw new BadConfigException(BadConfigException.Reason.EMPTY_INTERFACE_ADDRESS, null);
+        addressList.add(new InetNetwork(address));
+    }
+
     private void addDnses(@Nullable final String[] dnses) {
         if (dnses != null && dnses.length > 0) {
             for (final String dns : dnses) {
@@ -67,8 +63,41 @@ public class Interface {
         }
     }
 
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj == this)
+            return true;
+        if (!(obj instanceof Interface))
+            return false;
+        final Interface other = (Interface) obj;
+        return fingerprint() == other.fingerprint()
+                && addressList.equals(other.addressList)
+                && dnsList.equals(other.dnsList)
+                && excludedApplications.equals(other.excludedApplications)
+                && Objects.equals(getPrivateKey(), other.getPrivateKey())
+                && listenPort == other.listenPort
+                && mtu == other.mtu;
+    }
+
+    /**
+     * Returns a hash of the section's content, computed when first needed after each change.
+     */
+    long fingerprint() {
+        if (fingerprint == 0) {
+            final Fingerprint result = new Fingerprint();
+            try {
+                writeTo(result);
+            } catch (final IOException e) {
+                // Fingerprint never throws.
+                throw new IllegalStateException(e);
+            }
+            fingerprint = result.get();
+        }
+        return fingerprint;
+    }
+
     @Nullable
-    private String getAddressString() {
+    public String getAddressString() {
         if (addressList.isEmpty())
             return null;
         return Attribute.iterableToString(addressList);
@@ -79,7 +108,7 @@ public class Interface {
     }
 
     @Nullable
-    private String getDnsString() {
+    public String getDnsString() {
         if (dnsList.isEmpty())
             return null;
         return Attribute.iterableToString(getDnsStrings());
@@ -88,7 +117,7 @@ public class Interface {
     private List<String> getDnsStrings() {
         final List<String> strings = new ArrayList<>();
         for (final InetAddress addr : dnsList)
-            strings.add(addr.getHostAddress());
+            strings.add(InetAddresses.format(addr));
         return strings;
     }
 
@@ -97,7 +126,7 @@ public class Interface {
     }
 
     @Nullable
-    private String getExcludedApplicationsString() {
+    public String getExcludedApplicationsString() {
         if (excludedApplications.isEmpty())
             return null;
         return Attribute.iterableToString(excludedApplications);
@@ -112,7 +141,7 @@ public class Interface {
     }
 
     @Nullable
-    private String getListenPortString() {
+    public String getListenPortString() {
         if (listenPort == 0)
             return null;
         return Integer.valueOf(listenPort).toString();
@@ -123,7 +152,7 @@ public class Interface {
     }
 
     @Nullable
-    private String getMtuString() {
+    public String getMtuString() {
         if (mtu == 0)
             return null;
         return Integer.toString(mtu);
@@ -143,45 +172,58 @@ public class Interface {
         return keypair.getPublicKey();
     }
 
-    public void parse(final String line) {
-        final Attribute key = Attribute.match(line);
+    @Override
+    public int hashCode() {
+        final long value = fingerprint();
+        return (int) (value ^ (value >>> 32));
+    }
+
+    void parse(final ConfigLexer lexer) {
+        fingerprint = 0;
+        final Attribute key = lexer.getAttribute();
         if (key == null)
-            throw new IllegalArgumentException(String.format(context.getString(R.string.tunnel_error_interface_parse_failed), line));
+            throw new BadConfigException(BadConfigException.Reason.UNKNOWN_ATTRIBUTE, lexer.getLine());
         switch (key) {
             case ADDRESS:
-                addAddresses(key.parseList(line));
+                while (lexer.nextListItem())
+                    addAddress(lexer.getListItem());
                 break;
             case DNS:
-                addDnses(key.parseList(line));
+                while (lexer.nextListItem())
+                    dnsList.add(InetAddresses.parse(lexer.getListItem()));
                 break;
             case EXCLUDED_APPLICATIONS:
-                addExcludedApplications(key.parseList(line));
+                while (lexer.nextListItem())
+                    excludedApplications.add(lexer.getListItem());
                 break;
             case LISTEN_PORT:
-                setListenPortString(key.parse(line));
+                setListenPortString(lexer.getValue());
                 break;
             case MTU:
-                setMtuString(key.parse(line));
+                setMtuString(lexer.getValue());
                 break;
             case PRIVATE_KEY:
-                setPrivateKey(key.parse(line));
+                setPrivateKey(lexer.getValue());
                 break;
             default:
-                throw new IllegalArgumentException(line);
+                throw new BadConfigException(BadConfigException.Reason.ATTRIBUTE_IN_WRONG_SECTION, lexer.getLine());
         }
     }
 
-    private void setAddressString(@Nullable final String addressString) {
+    public void setAddressString(@Nullable final String addressString) {
+        fingerprint = 0;
         addressList.clear();
         addAddresses(Attribute.stringToList(addressString));
     }
 
-    private void setDnsString(@Nullable final String dnsString) {
+    public void setDnsString(@Nullable final String dnsString) {
+        fingerprint = 0;
         dnsList.clear();
         addDnses(Attribute.stringToList(dnsString));
     }
 
-    private void setExcludedApplicationsString(@Nullable final String applicationsString) {
+    public void setExcludedApplicationsString(@Nullable final String applicationsString) {
+        fingerprint = 0;
         excludedApplications.clear();
         addExcludedApplications(Attribute.stringToList(applicationsString));
     }
@@ -190,9 +232,10 @@ public class Interface {
         this.listenPort = listenPort;
     }
 
-    private void setListenPortString(@Nullable final String port) {
+    public void setListenPortString(@Nullable final String port) {
+        fingerprint = 0;
         if (port != null && !port.isEmpty())
-            setListenPort(Integer.parseInt(port, 10));
+            setListenPort(Attribute.parseInt(port));
         else
             setListenPort(0);
     }
@@ -201,14 +244,16 @@ public class Interface {
         this.mtu = mtu;
     }
 
-    private void setMtuString(@Nullable final String mtu) {
+    public void setMtuString(@Nullable final String mtu) {
+        fingerprint = 0;
         if (mtu != null && !mtu.isEmpty())
-            setMtu(Integer.parseInt(mtu, 10));
+            setMtu(Attribute.parseInt(mtu));
         else
             setMtu(0);
     }
 
-    private void setPrivateKey(@Nullable String privateKey) {
+    public void setPrivateKey(@Nullable String privateKey) {
+        fingerprint = 0;
         if (privateKey != null && privateKey.isEmpty())
             privateKey = null;
         keypair = privateKey == null ? null : new Keypair(privateKey);
@@ -216,186 +261,39 @@ public class Interface {
 
     @Override
     public String toString() {
-        final StringBuilder sb = new StringBuilder().append("[Interface]\n");
-        if (!addressList.isEmpty())
-            sb.append(Attribute.ADDRESS.composeWith(addressList));
-        if (!dnsList.isEmpty())
-            sb.append(Attribute.DNS.composeWith(getDnsStrings()));
-        if (!excludedApplications.isEmpty())
-            sb.append(Attribute.EXCLUDED_APPLICATIONS.composeWith(excludedApplications));
-        if (listenPort != 0)
-            sb.append(Attribute.LISTEN_PORT.composeWith(listenPort));
-        if (mtu != 0)
-            sb.append(Attribute.MTU.composeWith(mtu));
-        if (keypair != null)
-            sb.append(Attribute.PRIVATE_KEY.composeWith(keypair.getPrivateKey()));
+        final StringBuilder sb = new StringBuilder();
+        try {
+            writeTo(sb);
+        } catch (final IOException e) {
+            // StringBuilder never throws.
+            throw new IllegalStateException(e);
+        }
         return sb.toString();
     }
 
-    public static class Observable extends BaseObservable implements Parcelable {
-        public static final Creator<Observable> CREATOR = new Creator<Observable>() {
-            @Override
-            public Observable createFromParcel(final Parcel in) {
-                return new Observable(in);
-            }
-
-            @Override
-            public Observable[] newArray(final int size) {
-                return new Observable[size];
-            }
-        };
-        @Nullable private String addresses;
-        @Nullable private String dnses;
-        @Nullable private String excludedApplications;
-        @Nullable private String listenPort;
-        @Nullable private String mtu;
-        @Nullable private String privateKey;
-        @Nullable private String publicKey;
-
-        public Observable(@Nullable final Interface parent) {
-            if (parent != null)
-                loadData(parent);
-        }
-
-        private Observable(final Parcel in) {
-            addresses = in.readString();
-            dnses = in.readString();
-            publicKey = in.readString();
-            privateKey = in.readString();
-            listenPort = in.readString();
-            mtu = in.readString();
-            excludedApplications = in.readString();
-        }
-
-        public void commitData(final Interface parent) {
-            parent.setAddressString(addresses);
-            parent.setDnsString(dnses);
-            parent.setExcludedApplicationsString(excludedApplications);
-            parent.setPrivateKey(privateKey);
-            parent.setListenPortString(listenPort);
-            parent.setMtuString(mtu);
-            loadData(parent);
-            notifyChange();
-        }
-
-        @Override
-        public int describeContents() {
-            return 0;
-        }
-
-        public void generateKeypair() {
-            final Keypair keypair = new Keypair();
-            privateKey = keypair.getPrivateKey();
-            publicKey = keypair.getPublicKey();
-            notifyPropertyChanged(BR.privateKey);
-            notifyPropertyChanged(BR.publicKey);
-        }
-
-        @Nullable
-        @Bindable
-        public String getAddresses() {
-            return addresses;
-        }
-
-        @Nullable
-        @Bindable
-        public String getDnses() {
-            return dnses;
-        }
-
-        @Nullable
-        @Bindable
-        public String getExcludedApplications() {
-            return excludedApplications;
-        }
-
-        @Bindable
-        public int getExcludedApplicationsCount() {
-            return Attribute.stringToList(excludedApplications).length;
-        }
-
-        @Nullable
-        @Bindable
-        public String getListenPort() {
-            return listenPort;
-        }
-
-        @Nullable
-        @Bindable
-        public String getMtu() {
-            return mtu;
-        }
-
-        @Nullable
-        @Bindable
-        public String getPrivateKey() {
-            return privateKey;
-        }
-
-        @Nullable
-        @Bindable
-        public String getPublicKey() {
-            return publicKey;
-        }
-
-        private void loadData(final Interface parent) {
-            addresses = parent.getAddressString();
-            dnses = parent.getDnsString();
-            excludedApplications = parent.getExcludedApplicationsString();
-            publicKey = parent.getPublicKey();
-            privateKey = parent.getPrivateKey();
-            listenPort = parent.getListenPortString();
-            mtu = parent.getMtuString();
-        }
-
-        public void setAddresses(final String addresses) {
-            this.addresses = addresses;
-            notifyPropertyChanged(BR.addresses);
-        }
-
-        public void setDnses(final String dnses) {
-            this.dnses = dnses;
-            notifyPropertyChanged(BR.dnses);
-        }
-
-        public void setExcludedApplications(final String excludedApplications) {
-            this.excludedApplications = excludedApplications;
-            notifyPropertyChanged(BR.excludedApplications);
-            notifyPropertyChanged(BR.excludedApplicationsCount);
-        }
-
-        public void setListenPort(final String listenPort) {
-            this.listenPort = listenPort;
-            notifyPropertyChanged(BR.listenPort);
-        }
-
-        public void setMtu(final String mtu) {
-            this.mtu = mtu;
-            notifyPropertyChanged(BR.mtu);
-        }
-
-        public void setPrivateKey(final String privateKey) {
-            this.privateKey = privateKey;
-
-            try {
-                publicKey = new Keypair(privateKey).getPublicKey();
-            } catch (final IllegalArgumentException ignored) {
-                publicKey = "";
+    /**
+     * Writes this section in wg-quick format, attribute by attribute.
+     */
+    public void writeTo(final Appendable out) throws IOException {
+        out.append("[Interface]\n");
+        if (!addressList.isEmpty())
+            Attribute.ADDRESS.appendTo(out, addressList);
+        if (!dnsList.isEmpty()) {
+            Attribute.DNS.appendKey(out);
+            for (int i = 0; i < dnsList.size(); ++i) {
+                if (i > 0)
+                    out.append(", ");
+                out.append(InetAddresses.format(dnsList.get(i)));
             }
-
-            notifyPropertyChanged(BR.privateKey);
-            notifyPropertyChanged(BR.publicKey);
-        }
-
-        @Override
-        public void writeToParcel(final Parcel dest, final int flags) {
-            dest.writeString(addresses);
-            dest.writeString(dnses);
-            dest.writeString(publicKey);
-            dest.writeString(privateKey);
-            dest.writeString(listenPort);
-            dest.writeString(mtu);
-            dest.writeString(excludedApplications);
+            out.append('\n');
         }
+        if (!excludedApplications.isEmpty())
+            Attribute.EXCLUDED_APPLICATIONS.appendTo(out, excludedApplications);
+        if (listenPort != 0)
+            Attribute.LISTEN_PORT.appendTo(out, listenPort);
+        if (mtu != 0)
+            Attribute.MTU.appendTo(out, mtu);
+        if (keypair != null)
+            Attribute.PRIVATE_KEY.appendTo(out, keypair.getPrivateKey());
     }
 }
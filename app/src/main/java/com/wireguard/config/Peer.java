@@ -6,31 +6,18 @@
 
 package com.wireguard.config;
 
-import android.annotation.SuppressLint;
-import android.content.Context;
-import android.os.Parcel;
-import android.os.Parcelable;
-
-import com.wireguard.android.Application;
-import com.wireguard.android.R;
 import com.wireguard.crypto.KeyEncoding;
 
-import java.net.Inet6Address;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 
 import androidx.annotation.Nullable;
-import androidx.databinding.BaseObservable;
-import androidx.databinding.Bindable;
-import androidx.databinding.library.baseAdapters.BR;
-import java9.lang.Iterables;
 
 /**
  * Represents the configuration for a WireGuard peer (a [Peer] block).
@@ -39,10 +26,10 @@ import java9.lang.Iterables;
 public class Peer {
     private final List<InetNetwork> allowedIPsList;
     @Nullable private InetSocketAddress endpoint;
+    private long fingerprint;
     private int persistentKeepalive;
     @Nullable private String preSharedKey;
     @Nullable private String publicKey;
-    private final Context context = Application.Companion.get();
 
     public Peer() {
         allowedIPsList = new ArrayList<>();
@@ -51,9 +38,41 @@ public class Peer {
     private void addAllowedIPs(@Nullable final String[] allowedIPs) {
         if (allowedIPs != null && allowedIPs.length > 0) {
             for (final String allowedIP : allowedIPs) {
-                allowedIPsList.add(new InetNetwork(allowedIP));
+                allowedIPsList.add(new InetNetwork(allowedIP).canonicalize());
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj == this)
+            return true;
+        if (!(obj instanceof Peer))
+            return false;
+        final Peer other = (Peer) obj;
+        return fingerprint() == other.fingerprint()
+                && allowedIPsList.equals(other.allowedIPsList)
+                && Objects.equals(getEndpointString(), other.getEndpointString())
+                && persistentKeepalive == other.persistentKeepalive
+                && Objects.equals(preSharedKey, other.preSharedKey)
+                && Objects.equals(publicKey, other.publicKey);
+    }
+
+    /**
+     * Returns a hash of the section's content, computed when first needed after each change.
+     */
+    long fingerprint() {
+        if (fingerprint == 0) {
+            final Fingerprint result = new Fingerprint();
+            try {
+                writeTo(result);
+            } catch (final IOException e) {
+                // Fingerprint never throws.
+                throw new IllegalStateException(e);
             }
+            fingerprint = result.get();
         }
+        return fingerprint;
     }
 
     public InetNetwork[] getAllowedIPs() {
@@ -61,7 +80,7 @@ public class Peer {
     }
 
     @Nullable
-    private String getAllowedIPsString() {
+    public String getAllowedIPsString() {
         if (allowedIPsList.isEmpty())
             return null;
         return Attribute.iterableToString(allowedIPsList);
@@ -72,12 +91,11 @@ public class Peer {
         return endpoint;
     }
 
-    @SuppressLint("DefaultLocale")
     @Nullable
-    private String getEndpointString() {
+    public String getEndpointString() {
         if (endpoint == null)
             return null;
-        return String.format("%s:%d", endpoint.getHostString(), endpoint.getPort());
+        return endpoint.getHostString() + ':' + endpoint.getPort();
     }
 
     public int getPersistentKeepalive() {
@@ -85,7 +103,7 @@ public class Peer {
     }
 
     @Nullable
-    private String getPersistentKeepaliveString() {
+    public String getPersistentKeepaliveString() {
         if (persistentKeepalive == 0)
             return null;
         return Integer.valueOf(persistentKeepalive).toString();
@@ -101,49 +119,52 @@ public class Peer {
         return publicKey;
     }
 
-    @SuppressLint("DefaultLocale")
+    /**
+     * Resolves the endpoint through the {@link EndpointResolver#getDefault() default resolver}.
+     * To resolve the endpoints of several peers, {@link EndpointResolver#resolveAll(List)} is
+     * faster.
+     */
     public String getResolvedEndpointString() throws UnknownHostException {
         if (endpoint == null)
             throw new UnknownHostException("{empty}");
-        if (endpoint.isUnresolved())
-            endpoint = new InetSocketAddress(endpoint.getHostString(), endpoint.getPort());
-        if (endpoint.isUnresolved())
-            throw new UnknownHostException(endpoint.getHostString());
-        if (endpoint.getAddress() instanceof Inet6Address)
-            return String.format("[%s]:%d",
-                    endpoint.getAddress().getHostAddress(),
-                    endpoint.getPort());
-        return String.format("%s:%d",
-                endpoint.getAddress().getHostAddress(),
-                endpoint.getPort());
+        return EndpointResolver.format(EndpointResolver.getDefault().resolve(endpoint));
     }
 
-    public void parse(final String line) {
-        final Attribute key = Attribute.match(line);
+    @Override
+    public int hashCode() {
+        final long value = fingerprint();
+        return (int) (value ^ (value >>> 32));
+    }
+
+    void parse(final ConfigLexer lexer) {
+        fingerprint = 0;
+        final Attribute key = lexer.getAttribute();
         if (key == null)
-            throw new IllegalArgumentException(context.getString(R.string.tunnel_error_interface_parse_failed, line));
+            throw new BadConfigException(BadConfigException.Reason.UNKNOWN_ATTRIBUTE, lexer.getLine());
         switch (key) {
             case ALLOWED_IPS:
-                addAllowedIPs(key.parseList(line));
+                while (lexer.nextListItem())
+                    allowedIPsList.add(new InetNetwork(lexer.getListItem()).canonicalize());
                 break;
             case ENDPOINT:
-                setEndpointString(key.parse(line));
+                setEndpointString(lexer.getValue());
                 break;
             case PERSISTENT_KEEPALIVE:
-                setPersistentKeepaliveString(key.parse(line));
+                setPersistentKeepaliveString(lexer.getValue());
                 break;
             case PRESHARED_KEY:
-                setPreSharedKey(key.parse(line));
+                setPreSharedKey(lexer.getValue());
                 break;
             case PUBLIC_KEY:
-                setPublicKey(key.parse(line));
+                setPublicKey(lexer.getValue());
                 break;
             default:
-                throw new IllegalArgumentException(line);
+                throw new BadConfigException(BadConfigException.Reason.ATTRIBUTE_IN_WRONG_SECTION, lexer.getLine());
         }
     }
 
-    private void setAllowedIPsString(@Nullable final String allowedIPsString) {
+    public void setAllowedIPsString(@Nullable final String allowedIPsString) {
+        fingerprint = 0;
         allowedIPsList.clear();
         addAllowedIPs(Attribute.stringToList(allowedIPsString));
     }
@@ -152,17 +173,21 @@ public class Peer {
         this.endpoint = endpoint;
     }
 
-    private void setEndpointString(@Nullable final String endpoint) {
+    public void setEndpointString(@Nullable final String endpoint) {
+        fingerprint = 0;
         if (endpoint != null && !endpoint.isEmpty()) {
             final InetSocketAddress constructedEndpoint;
             if (endpoint.indexOf('/') != -1 || endpoint.indexOf('?') != -1 || endpoint.indexOf('#') != -1)
-                throw new IllegalArgumentException(context.getString(R.string.tunnel_error_forbidden_endpoint_chars));
+                throw new BadConfigException(BadConfigException.Reason.FORBIDDEN_ENDPOINT_CHARS, endpoint);
             final URI uri;
             try {
                 uri = new URI("wg://" + endpoint);
             } catch (final URISyntaxException e) {
-                throw new IllegalArgumentException(e);
+                throw new BadConfigException(BadConfigException.Reason.INVALID_ENDPOINT, endpoint);
             }
+            // A host that is not a valid server name, or a missing port, still parses as a URI.
+            if (uri.getHost() == null || uri.getPort() < 0)
+                throw new BadConfigException(BadConfigException.Reason.INVALID_ENDPOINT, endpoint);
             constructedEndpoint = InetSocketAddress.createUnresolved(uri.getHost(), uri.getPort());
             setEndpoint(constructedEndpoint);
         } else
@@ -173,14 +198,16 @@ public class Peer {
         this.persistentKeepalive = persistentKeepalive;
     }
 
-    private void setPersistentKeepaliveString(@Nullable final String persistentKeepalive) {
+    public void setPersistentKeepaliveString(@Nullable final String persistentKeepalive) {
+        fingerprint = 0;
         if (persistentKeepalive != null && !persistentKeepalive.isEmpty())
-            setPersistentKeepalive(Integer.parseInt(persistentKeepalive, 10));
+            setPersistentKeepalive(Attribute.parseInt(persistentKeepalive));
         else
             setPersistentKeepalive(0);
     }
 
-    private void setPreSharedKey(@Nullable String preSharedKey) {
+    public void setPreSharedKey(@Nullable String preSharedKey) {
+        fingerprint = 0;
         if (preSharedKey != null && preSharedKey.isEmpty())
             preSharedKey = null;
         if (preSharedKey != null)
@@ -188,7 +215,8 @@ public class Peer {
         this.preSharedKey = preSharedKey;
     }
 
-    private void setPublicKey(@Nullable String publicKey) {
+    public void setPublicKey(@Nullable String publicKey) {
+        fingerprint = 0;
         if (publicKey != null && publicKey.isEmpty())
             publicKey = null;
         if (publicKey != null)
@@ -198,194 +226,32 @@ public class Peer {
 
     @Override
     public String toString() {
-        final StringBuilder sb = new StringBuilder().append("[Peer]\n");
-        if (!allowedIPsList.isEmpty())
-            sb.append(Attribute.ALLOWED_IPS.composeWith(allowedIPsList));
-        if (endpoint != null)
-            sb.append(Attribute.ENDPOINT.composeWith(getEndpointString()));
-        if (persistentKeepalive != 0)
-            sb.append(Attribute.PERSISTENT_KEEPALIVE.composeWith(persistentKeepalive));
-        if (preSharedKey != null)
-            sb.append(Attribute.PRESHARED_KEY.composeWith(preSharedKey));
-        if (publicKey != null)
-            sb.append(Attribute.PUBLIC_KEY.composeWith(publicKey));
+        final StringBuilder sb = new StringBuilder();
+        try {
+            writeTo(sb);
+        } catch (final IOException e) {
+            // StringBuilder never throws.
+            throw new IllegalStateException(e);
+        }
         return sb.toString();
     }
 
-    public static class Observable extends BaseObservable implements Parcelable {
-        public static final Creator<Observable> CREATOR = new Creator<Observable>() {
-            @Override
-            public Observable createFromParcel(final Parcel in) {
-                return new Observable(in);
-            }
-
-            @Override
-            public Observable[] newArray(final int size) {
-                return new Observable[size];
-            }
-        };
-        @Nullable private String allowedIPs;
-        @Nullable private String endpoint;
-        @Nullable private String persistentKeepalive;
-        @Nullable private String preSharedKey;
-        @Nullable private String publicKey;
-        private final List<String> interfaceDNSRoutes = new ArrayList<>();
-        private int numSiblings;
-
-        public Observable(final Peer parent) {
-            loadData(parent);
-        }
-
-        private Observable(final Parcel in) {
-            allowedIPs = in.readString();
-            endpoint = in.readString();
-            persistentKeepalive = in.readString();
-            preSharedKey = in.readString();
-            publicKey = in.readString();
-            numSiblings = in.readInt();
-            in.readStringList(interfaceDNSRoutes);
-        }
-
-        public static Observable newInstance() {
-            return new Observable(new Peer());
-        }
-
-        public void commitData(final Peer parent) {
-            parent.setAllowedIPsString(allowedIPs);
-            parent.setEndpointString(endpoint);
-            parent.setPersistentKeepaliveString(persistentKeepalive);
-            parent.setPreSharedKey(preSharedKey);
-            parent.setPublicKey(publicKey);
-            if (parent.getPublicKey() == null)
-                throw new IllegalArgumentException(Application.Companion.get().getString(R.string.tunnel_error_empty_peer_public_key));
-            loadData(parent);
-            notifyChange();
-        }
-
-        @Override
-        public int describeContents() {
-            return 0;
-        }
-
-        private static final String DEFAULT_ROUTE_V4 = "0.0.0.0/0";
-        private static final List<String> DEFAULT_ROUTE_MOD_RFC1918_V4 = Arrays.asList("0.0.0.0/5", "8.0.0.0/7", "11.0.0.0/8", "12.0.0.0/6", "16.0.0.0/4", "32.0.0.0/3", "64.0.0.0/2", "128.0.0.0/3", "160.0.0.0/5", "168.0.0.0/6", "172.0.0.0/12", "172.32.0.0/11", "172.64.0.0/10", "172.128.0.0/9", "173.0.0.0/8", "174.0.0.0/7", "176.0.0.0/4", "192.0.0.0/9", "192.128.0.0/11", "192.160.0.0/13", "192.169.0.0/16", "192.170.0.0/15", "192.172.0.0/14", "192.176.0.0/12", "192.192.0.0/10", "193.0.0.0/8", "194.0.0.0/7", "196.0.0.0/6", "200.0.0.0/5", "208.0.0.0/4");
-
-        public void toggleExcludePrivateIPs() {
-            final Collection<String> ips = new HashSet<>(Arrays.asList(Attribute.stringToList(allowedIPs)));
-            final boolean hasDefaultRoute = ips.contains(DEFAULT_ROUTE_V4);
-            final boolean hasDefaultRouteModRFC1918 = ips.containsAll(DEFAULT_ROUTE_MOD_RFC1918_V4);
-            if ((!hasDefaultRoute && !hasDefaultRouteModRFC1918) || numSiblings > 0)
-                return;
-            Iterables.removeIf(ips, ip -> !ip.contains(":"));
-            if (hasDefaultRoute) {
-                ips.addAll(DEFAULT_ROUTE_MOD_RFC1918_V4);
-                ips.addAll(interfaceDNSRoutes);
-            } else if (hasDefaultRouteModRFC1918)
-                ips.add(DEFAULT_ROUTE_V4);
-            setAllowedIPs(Attribute.iterableToString(ips));
-        }
-
-        @Bindable
-        public boolean getCanToggleExcludePrivateIPs() {
-            final Collection<String> ips = Arrays.asList(Attribute.stringToList(allowedIPs));
-            return numSiblings == 0 && (ips.contains(DEFAULT_ROUTE_V4) || ips.containsAll(DEFAULT_ROUTE_MOD_RFC1918_V4));
-        }
-
-        @Bindable
-        public boolean getIsExcludePrivateIPsOn() {
-            return numSiblings == 0 && Arrays.asList(Attribute.stringToList(allowedIPs)).containsAll(DEFAULT_ROUTE_MOD_RFC1918_V4);
-        }
-
-        @Bindable @Nullable
-        public String getAllowedIPs() {
-            return allowedIPs;
-        }
-
-        @Bindable @Nullable
-        public String getEndpoint() {
-            return endpoint;
-        }
-
-        @Bindable @Nullable
-        public String getPersistentKeepalive() {
-            return persistentKeepalive;
-        }
-
-        @Bindable @Nullable
-        public String getPreSharedKey() {
-            return preSharedKey;
-        }
-
-        @Bindable @Nullable
-        public String getPublicKey() {
-            return publicKey;
-        }
-
-        private void loadData(final Peer parent) {
-            allowedIPs = parent.getAllowedIPsString();
-            endpoint = parent.getEndpointString();
-            persistentKeepalive = parent.getPersistentKeepaliveString();
-            preSharedKey = parent.getPreSharedKey();
-            publicKey = parent.getPublicKey();
-        }
-
-        public void setAllowedIPs(final String allowedIPs) {
-            this.allowedIPs = allowedIPs;
-            notifyPropertyChanged(BR.allowedIPs);
-            notifyPropertyChanged(BR.canToggleExcludePrivateIPs);
-            notifyPropertyChanged(BR.isExcludePrivateIPsOn);
-        }
-
-        public void setEndpoint(final String endpoint) {
-            this.endpoint = endpoint;
-            notifyPropertyChanged(BR.endpoint);
-        }
-
-        public void setPersistentKeepalive(final String persistentKeepalive) {
-            this.persistentKeepalive = persistentKeepalive;
-            notifyPropertyChanged(BR.persistentKeepalive);
-        }
-
-        public void setPreSharedKey(final String preSharedKey) {
-            this.preSharedKey = preSharedKey;
-            notifyPropertyChanged(BR.preSharedKey);
-        }
-
-        public void setPublicKey(final String publicKey) {
-            this.publicKey = publicKey;
-            notifyPropertyChanged(BR.publicKey);
-        }
-
-        public void setInterfaceDNSRoutes(@Nullable final String dnsServers) {
-            final Collection<String> ips = new HashSet<>(Arrays.asList(Attribute.stringToList(allowedIPs)));
-            final boolean modifyAllowedIPs = ips.containsAll(DEFAULT_ROUTE_MOD_RFC1918_V4);
-
-            ips.removeAll(interfaceDNSRoutes);
-            interfaceDNSRoutes.clear();
-            for (final String dnsServer : Attribute.stringToList(dnsServers)) {
-                if (!dnsServer.contains(":"))
-                    interfaceDNSRoutes.add(dnsServer + "/32");
-            }
-            ips.addAll(interfaceDNSRoutes);
-            if (modifyAllowedIPs)
-                setAllowedIPs(Attribute.iterableToString(ips));
-        }
-
-        public void setNumSiblings(final int num) {
-            numSiblings = num;
-            notifyPropertyChanged(BR.canToggleExcludePrivateIPs);
-            notifyPropertyChanged(BR.isExcludePrivateIPsOn);
-        }
-
-        @Override
-        public void writeToParcel(final Parcel dest, final int flags) {
-            dest.writeString(allowedIPs);
-            dest.writeString(endpoint);
-            dest.writeString(persistentKeepalive);
-            dest.writeString(preSharedKey);
-            dest.writeString(publicKey);
-            dest.writeInt(numSiblings);
-            dest.writeStringList(interfaceDNSRoutes);
+    /**
+     * Writes this section in wg-quick format, attribute by attribute.
+     */
+    public void writeTo(final Appendable out) throws IOException {
+        out.append("[Peer]\n");
+        if (!allowedIPsList.isEmpty())
+            Attribute.ALLOWED_IPS.appendTo(out, allowedIPsList);
+        if (endpoint != null) {
+            Attribute.ENDPOINT.appendKey(out).append(endpoint.getHostString()).append(':')
+                    .append(Integer.toString(endpoint.getPort())).append('\n');
         }
+        if (persistentKeepalive != 0)
+            Attribute.PERSISTENT_KEEPALIVE.appendTo(out, persistentKeepalive);
+        if (preSharedKey != null)
+            Attribute.PRESHARED_KEY.appendTo(out, preSharedKey);
+        if (publicKey != null)
+            Attribute.PUBLIC_KEY.appendTo(out, publicKey);
     }
 }
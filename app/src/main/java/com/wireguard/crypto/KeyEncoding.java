@@ -5,9 +5,6 @@
 
 package com.wireguard.crypto;
 
-import com.wireguard.android.Application;
-import com.wireguard.android.R;
-
 /**
  * This is a specialized constant-time base64 and hex implementation that resists side-channel attacks.
  */
@@ -17,12 +14,6 @@ public final class KeyEncoding {
     public static final int KEY_LENGTH = 32;
     public static final int KEY_LENGTH_BASE64 = 44;
     public static final int KEY_LENGTH_HEX = 64;
-    private static final String KEY_LENGTH_BASE64_EXCEPTION_MESSAGE =
-            Application.Companion.get().getString(R.string.key_length_base64_exception_message);
-    private static final String KEY_LENGTH_EXCEPTION_MESSAGE =
-            Application.Companion.get().getString(R.string.key_length_exception_message);
-    private static final String KEY_LENGTH_HEX_EXCEPTION_MESSAGE =
-            Application.Companion.get().getString(R.string.key_length_hex_exception_message);
 
     private KeyEncoding() {
         // Prevent instantiation.
@@ -64,7 +55,7 @@ public final class KeyEncoding {
         final char[] input = str.toCharArray();
         final byte[] key = new byte[KEY_LENGTH];
         if (input.length != KEY_LENGTH_BASE64 || input[KEY_LENGTH_BASE64 - 1] != '=')
-            throw new IllegalArgumentException(KEY_LENGTH_BASE64_EXCEPTION_MESSAGE);
+            throw new KeyFormatException(KeyFormatException.Type.BASE64);
         int i;
         int ret = 0;
         for (i = 0; i < KEY_LENGTH / 3; ++i) {
@@ -86,7 +77,7 @@ public final class KeyEncoding {
         key[i * 3 + 1] = (byte) ((val >>> 8) & 0xff);
 
         if (ret != 0)
-            throw new IllegalArgumentException(KEY_LENGTH_BASE64_EXCEPTION_MESSAGE);
+            throw new KeyFormatException(KeyFormatException.Type.BASE64);
         return key;
     }
 
@@ -94,7 +85,7 @@ public final class KeyEncoding {
         final char[] input = str.toCharArray();
         final byte[] key = new byte[KEY_LENGTH];
         if (input.length != KEY_LENGTH_HEX)
-            throw new IllegalArgumentException(KEY_LENGTH_HEX_EXCEPTION_MESSAGE);
+            throw new KeyFormatException(KeyFormatException.Type.HEX);
         int ret = 0;
 
         for (int i = 0; i < KEY_LENGTH_HEX; i += 2) {
@@ -125,14 +116,14 @@ public final class KeyEncoding {
             key[i / 2] = (byte) (cAcc | cVal);
         }
         if (ret != 0)
-            throw new IllegalArgumentException(KEY_LENGTH_HEX_EXCEPTION_MESSAGE);
+            throw new KeyFormatException(KeyFormatException.Type.HEX);
         return key;
     }
 
     public static String keyToBase64(final byte[] key) {
         final char[] output = new char[KEY_LENGTH_BASE64];
         if (key.length != KEY_LENGTH)
-            throw new IllegalArgumentException(KEY_LENGTH_EXCEPTION_MESSAGE);
+            throw new KeyFormatException(KeyFormatException.Type.LENGTH);
         int i;
         for (i = 0; i < KEY_LENGTH / 3; ++i)
             encodeBase64(key, i * 3, output, i * 4);
@@ -149,7 +140,7 @@ public final class KeyEncoding {
     public static String keyToHex(final byte[] key) {
         final char[] output = new char[KEY_LENGTH_HEX];
         if (key.length != KEY_LENGTH)
-            throw new IllegalArgumentException(KEY_LENGTH_EXCEPTION_MESSAGE);
+            throw new KeyFormatException(KeyFormatException.Type.LENGTH);
         for (int i = 0; i < KEY_LENGTH; ++i) {
             output[i * 2] = (char) (87 + (key[i] >> 4 & 0xf)
                     + ((((key[i] >> 4 & 0xf) - 10) >> 8) & ~38));
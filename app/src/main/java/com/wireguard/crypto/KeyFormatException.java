@@ -0,0 +1,38 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.crypto;
+
+/**
+ * A key that does not have the length or encoding required by WireGuard. The {@link Type} tells
+ * user interfaces which localized message to present.
+ */
+
+public class KeyFormatException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    private final Type type;
+
+    KeyFormatException(final Type type) {
+        super(type.description);
+        this.type = type;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public enum Type {
+        BASE64("WireGuard base64 keys must be 44 characters encoding 32 bytes"),
+        HEX("WireGuard hex keys must be 64 characters encoding 32 bytes"),
+        LENGTH("WireGuard keys must be 32 bytes");
+
+        private final String description;
+
+        Type(final String description) {
+            this.description = description;
+        }
+    }
+}
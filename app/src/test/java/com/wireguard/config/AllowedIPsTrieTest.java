@@ -0,0 +1,110 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AllowedIPsTrieTest {
+    private static Peer bruteForceLookup(final List<InetNetwork> prefixes, final List<Peer> owners,
+                                         final boolean isIPv6, final long high, final long low) {
+        Peer best = null;
+        int bestMask = -1;
+        for (int i = 0; i < prefixes.size(); ++i) {
+            final InetNetwork prefix = prefixes.get(i);
+            if (prefix.isIPv6() != isIPv6 || prefix.getMask() <= bestMask)
+                continue;
+            final InetNetwork covering = new InetNetwork(isIPv6, high, low, prefix.getMask()).canonicalize();
+            if (covering.equals(prefix)) {
+                best = owners.get(i);
+                bestMask = prefix.getMask();
+            }
+        }
+        return best;
+    }
+
+    @Test
+    public void fromConfigFindsLongestPrefix() throws IOException {
+        final Config config = Config.from("[Peer]\nPublicKey = " + ConfigTest.key(1) + "\nAllowedIPs = 0.0.0.0/0, ::/0\n"
+                + "[Peer]\nPublicKey = " + ConfigTest.key(2) + "\nAllowedIPs = 10.0.0.0/8, fd00::/8\n"
+                + "[Peer]\nPublicKey = " + ConfigTest.key(3) + "\nAllowedIPs = 10.1.2.3/32\n");
+        final AllowedIPsTrie trie = AllowedIPsTrie.from(config);
+        final List<Peer> peers = config.getPeers();
+        assertEquals(5, trie.size());
+        assertSame(peers.get(0), trie.lookup(InetAddresses.parse("192.0.2.1")));
+        assertSame(peers.get(1), trie.lookup(InetAddresses.parse("10.1.2.4")));
+        assertSame(peers.get(2), trie.lookup(InetAddresses.parse("10.1.2.3")));
+        assertSame(peers.get(1), trie.lookup(InetAddresses.parse("fd12::1")));
+        assertSame(peers.get(0), trie.lookup(InetAddresses.parse("2001:db8::1")));
+
+        assertEquals(2, trie.removeAll(peers.get(1)));
+        assertSame(peers.get(0), trie.lookup(InetAddresses.parse("10.1.2.4")));
+        assertSame(peers.get(2), trie.get(new InetNetwork("10.1.2.3/32")));
+        assertNull(trie.get(new InetNetwork("10.0.0.0/8")));
+    }
+
+    @Test
+    public void insertReplacesAndRemoveRestores() {
+        final AllowedIPsTrie trie = new AllowedIPsTrie();
+        final Peer a = new Peer();
+        final Peer b = new Peer();
+        assertNull(trie.insert(new InetNetwork("192.168.1.77/24"), a));
+        assertSame(a, trie.insert(new InetNetwork("192.168.1.0/24"), b));
+        assertEquals(1, trie.size());
+        assertSame(b, trie.lookup(InetAddresses.parse("192.168.1.1")));
+        assertSame(b, trie.remove(new InetNetwork("192.168.1.0/24")));
+        assertNull(trie.remove(new InetNetwork("192.168.1.0/24")));
+        assertTrue(trie.isEmpty());
+        assertNull(trie.lookup(InetAddresses.parse("192.168.1.1")));
+    }
+
+    @Test
+    public void lookupMatchesBruteForce() {
+        final Random random = new Random(5);
+        final Peer[] peers = {new Peer(), new Peer(), new Peer(), new Peer()};
+        final AllowedIPsTrie trie = new AllowedIPsTrie();
+        final List<InetNetwork> prefixes = new ArrayList<>();
+        final List<Peer> owners = new ArrayList<>();
+        for (int i = 0; i < 2000; ++i) {
+            final boolean isIPv6 = random.nextBoolean();
+            // Cluster addresses under a few top bits so that prefixes nest and overlap.
+            final long high = isIPv6 ? random.nextLong() & 0xf00f000000000000L : 0;
+            final long low = isIPv6 ? random.nextLong() : random.nextLong() & 0xf0f0f0ffL;
+            final InetNetwork prefix = new InetNetwork(isIPv6, high, low,
+                    random.nextInt(isIPv6 ? 129 : 33)).canonicalize();
+            final Peer peer = peers[random.nextInt(peers.length)];
+            trie.insert(prefix, peer);
+            final int existing = prefixes.indexOf(prefix);
+            if (existing >= 0) {
+                owners.set(existing, peer);
+            } else {
+                prefixes.add(prefix);
+                owners.add(peer);
+            }
+        }
+        for (int i = 0; i < 500; ++i) {
+            final int index = random.nextInt(prefixes.size());
+            assertSame(owners.remove(index), trie.remove(prefixes.remove(index)));
+        }
+        assertEquals(prefixes.size(), trie.size());
+        for (int i = 0; i < 20000; ++i) {
+            final boolean isIPv6 = random.nextBoolean();
+            final long high = isIPv6 ? random.nextLong() & 0xf00f00000000000fL : 0;
+            final long low = isIPv6 ? random.nextLong() : random.nextLong() & 0xf0f0f0ffL;
+            assertSame(bruteForceLookup(prefixes, owners, isIPv6, high, low),
+                    trie.lookup(isIPv6, high, low));
+        }
+    }
+}
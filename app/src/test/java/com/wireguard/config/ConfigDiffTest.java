@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigDiffTest {
+    private static final String INTERFACE = "[Interface]\nPrivateKey = " + ConfigTest.key(1)
+            + "\nAddress = 10.0.0.2/32\nDNS = 10.0.0.1\n";
+    private static final String PEER_A = "[Peer]\nPublicKey = " + ConfigTest.key(2)
+            + "\nAllowedIPs = 10.0.0.0/24\nEndpoint = 192.0.2.1:51820\n";
+    private static final String PEER_B = "[Peer]\nPublicKey = " + ConfigTest.key(3)
+            + "\nAllowedIPs = 10.0.1.0/24\n";
+
+    private static ConfigDiff diff(final String oldText, final String newText) throws IOException {
+        return new ConfigDiff(Config.from(oldText), Config.from(newText));
+    }
+
+    @Test
+    public void identicalConfigsAreEmpty() throws IOException {
+        final ConfigDiff diff = diff(INTERFACE + PEER_A + PEER_B, INTERFACE + PEER_A + PEER_B);
+        assertTrue(diff.isEmpty());
+        assertFalse(diff.requiresRestart());
+    }
+
+    @Test
+    public void interfaceChangesRequireRestart() throws IOException {
+        assertTrue(diff(INTERFACE + PEER_A, INTERFACE.replace("10.0.0.2/32", "10.0.0.3/32") + PEER_A).requiresRestart());
+        assertTrue(diff(INTERFACE + PEER_A, INTERFACE.replace("DNS = 10.0.0.1", "DNS = 10.0.0.9") + PEER_A).requiresRestart());
+        assertTrue(diff(INTERFACE + PEER_A, INTERFACE + "MTU = 1280\n" + PEER_A).requiresRestart());
+        // Peers that cannot be matched by public key cannot be updated in place.
+        assertTrue(diff(INTERFACE + PEER_A, INTERFACE + PEER_A + PEER_A).requiresRestart());
+
+        final ConfigDiff port = diff(INTERFACE + PEER_A, INTERFACE + "ListenPort = 51821\n" + PEER_A);
+        assertFalse(port.requiresRestart());
+        assertTrue(port.isListenPortChanged());
+        final ConfigDiff key = diff(INTERFACE + PEER_A, INTERFACE.replace(ConfigTest.key(1), ConfigTest.key(4)) + PEER_A);
+        assertFalse(key.requiresRestart());
+        assertTrue(key.isPrivateKeyChanged());
+        final ConfigDiff excluded = diff(INTERFACE + PEER_A, INTERFACE + "ExcludedApplications = com.example\n" + PEER_A);
+        assertFalse(excluded.requiresRestart());
+        assertTrue(excluded.isExcludedApplicationsChanged());
+    }
+
+    @Test
+    public void peersAreMatchedByPublicKey() throws IOException {
+        final String changedA = PEER_A.replace("192.0.2.1", "192.0.2.2");
+        final ConfigDiff diff = diff(INTERFACE + PEER_A + PEER_B, INTERFACE + changedA);
+        assertFalse(diff.requiresRestart());
+        assertTrue(diff.isRoutesChanged());
+        assertEquals(Collections.emptyList(), diff.getAddedPeers());
+        assertEquals(Collections.singletonList(Config.from(changedA).getPeers().get(0)), diff.getChangedPeers());
+        assertEquals(Collections.singletonList(Config.from(PEER_B).getPeers().get(0)), diff.getRemovedPeers());
+
+        final ConfigDiff added = diff(INTERFACE + PEER_A, INTERFACE + PEER_B + PEER_A);
+        assertEquals(Collections.singletonList(Config.from(PEER_B).getPeers().get(0)), added.getAddedPeers());
+        assertTrue(added.getChangedPeers().isEmpty());
+        assertTrue(added.getRemovedPeers().isEmpty());
+    }
+
+    @Test
+    public void removedEndpointReplacesPeer() throws IOException {
+        final String withoutEndpoint = PEER_A.replace("Endpoint = 192.0.2.1:51820\n", "");
+        final ConfigDiff diff = diff(INTERFACE + PEER_A, INTERFACE + withoutEndpoint);
+        assertEquals(1, diff.getRemovedPeers().size());
+        assertEquals(1, diff.getAddedPeers().size());
+        assertTrue(diff.getChangedPeers().isEmpty());
+        assertFalse(diff.isRoutesChanged());
+    }
+
+    @Test
+    public void routeChangesAreAppliedInPlace() throws IOException {
+        // Moving a prefix between peers leaves the routes into the tunnel unchanged.
+        final ConfigDiff moved = diff(INTERFACE + PEER_A + PEER_B,
+                INTERFACE + PEER_A.replace("10.0.0.0/24", "10.0.0.0/24, 10.0.1.0/24") + PEER_B.replace("10.0.1.0/24", "10.0.1.0/25"));
+        assertFalse(moved.requiresRestart());
+        assertFalse(moved.isRoutesChanged());
+        assertEquals(2, moved.getChangedPeers().size());
+
+        final ConfigDiff widened = diff(INTERFACE + PEER_A, INTERFACE + PEER_A.replace("10.0.0.0/24", "0.0.0.0/0"));
+        assertFalse(widened.requiresRestart());
+        assertTrue(widened.isRoutesChanged());
+        assertFalse(widened.isEmpty());
+    }
+}
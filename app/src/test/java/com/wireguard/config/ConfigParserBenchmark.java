@@ -0,0 +1,57 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Measures {@link Config#from(String)} on a provider bundle with 10000 peers. This is not a unit
+ * test and does not run with the test suite; run its {@code main} method from the unit test
+ * classpath, e.g. from the IDE, to compare parser changes on the same machine.
+ */
+
+public final class ConfigParserBenchmark {
+    private static final int ITERATIONS = 20;
+    private static final int PEERS = 10000;
+    private static final int WARMUP_ITERATIONS = 10;
+
+    private ConfigParserBenchmark() {
+        // Prevent instantiation.
+    }
+
+    private static String createConfig() {
+        final StringBuilder sb = new StringBuilder("[Interface]\nPrivateKey = ")
+                .append(ConfigTest.key(0)).append("\nAddress = 10.0.0.2/32, fd00::2/128\nDNS = 10.0.0.1\n");
+        for (int i = 0; i < PEERS; ++i) {
+            sb.append("\n# Server ").append(i).append("\n[Peer]\nPublicKey = ").append(ConfigTest.key(i + 1))
+                    .append("\nAllowedIPs = 10.").append(i >> 8 & 0xff).append('.').append(i & 0xff)
+                    .append(".0/24, fd00:").append(Integer.toHexString(i)).append("::/64")
+                    .append("\nEndpoint = 192.0.2.").append(i % 254 + 1).append(":51820")
+                    .append("\nPersistentKeepalive = 25\n");
+        }
+        return sb.toString();
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final String text = createConfig();
+        for (int i = 0; i < WARMUP_ITERATIONS; ++i)
+            Config.from(text);
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < ITERATIONS; ++i) {
+            final long start = System.nanoTime();
+            final Config config = Config.from(text);
+            final long elapsed = System.nanoTime() - start;
+            if (config.getPeers().size() != PEERS)
+                throw new IllegalStateException("Parsed " + config.getPeers().size() + " peers");
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+        System.out.printf(Locale.ENGLISH, "Config.from, %d peers: mean %.1f ms, best %.1f ms%n",
+                PEERS, total / 1e6 / ITERATIONS, best / 1e6);
+    }
+}
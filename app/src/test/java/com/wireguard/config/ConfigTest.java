@@ -0,0 +1,138 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import com.wireguard.crypto.KeyEncoding;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConfigTest {
+    static String key(final int seed) {
+        final byte[] key = new byte[KeyEncoding.KEY_LENGTH];
+        for (int i = 0; i < key.length; ++i)
+            key[i] = (byte) (seed >>> (8 * (i % 4)));
+        key[31] = 1;
+        return KeyEncoding.keyToBase64(key);
+    }
+
+    private static void assertBadConfig(final String text, final BadConfigException.Reason reason)
+            throws IOException {
+        try {
+            Config.from(text);
+            fail("Parsed invalid configuration: " + text);
+        } catch (final BadConfigException e) {
+            assertEquals(reason, e.getReason());
+        }
+    }
+
+    @Test
+    public void lexerRecognizesTokensInPlace() throws IOException {
+        final ConfigLexer lexer = new ConfigLexer(new StringReader(
+                "  # comment\r\n[INTERFACE]\r\n\r\nallowedips=10.0.0.0/8 ,  ::/0,,  \n"
+                        + "Endpoint = host:1 # trailing\n[peer]\nBogus\nDNS ="));
+        assertEquals(ConfigLexer.Token.INTERFACE, lexer.next());
+
+        assertEquals(ConfigLexer.Token.ATTRIBUTE, lexer.next());
+        assertEquals(Attribute.ALLOWED_IPS, lexer.getAttribute());
+        assertEquals("10.0.0.0/8 ,  ::/0,,", lexer.getValue());
+        assertTrue(lexer.nextListItem());
+        assertEquals("10.0.0.0/8", lexer.getListItem());
+        assertTrue(lexer.nextListItem());
+        assertEquals("::/0", lexer.getListItem());
+        assertFalse(lexer.nextListItem());
+
+        assertEquals(ConfigLexer.Token.ATTRIBUTE, lexer.next());
+        assertEquals(Attribute.ENDPOINT, lexer.getAttribute());
+        assertEquals("host:1", lexer.getValue());
+
+        assertEquals(ConfigLexer.Token.PEER, lexer.next());
+
+        assertEquals(ConfigLexer.Token.ATTRIBUTE, lexer.next());
+        assertNull(lexer.getAttribute());
+        assertEquals("Bogus", lexer.getLine());
+
+        assertEquals(ConfigLexer.Token.ATTRIBUTE, lexer.next());
+        assertEquals(Attribute.DNS, lexer.getAttribute());
+        assertNull(lexer.getValue());
+        assertFalse(lexer.nextListItem());
+
+        assertEquals(ConfigLexer.Token.END, lexer.next());
+    }
+
+    @Test
+    public void lexerHandlesLinesLongerThanItsBuffers() throws IOException {
+        final StringBuilder sb = new StringBuilder("AllowedIPs = ");
+        for (int i = 0; i < 2000; ++i)
+            sb.append(i == 0 ? "" : ", ").append("10.").append(i / 256).append('.').append(i % 256).append(".0/24");
+        final ConfigLexer lexer = new ConfigLexer(new StringReader(sb.toString()));
+        assertEquals(ConfigLexer.Token.ATTRIBUTE, lexer.next());
+        int items = 0;
+        while (lexer.nextListItem())
+            ++items;
+        assertEquals(2000, items);
+    }
+
+    @Test
+    public void parseAndWriteRoundTrip() throws IOException {
+        final String text = "[Interface]\n"
+                + "PrivateKey = " + key(1) + "\n"
+                + "Address = 10.0.0.2/32, fd00::2/128\n"
+                + "DNS = 1.1.1.1, 2606:4700:4700::1111\n"
+                + "ListenPort = 51820\n"
+                + "MTU = 1280\n"
+                + "\n"
+                + "[Peer]\n"
+                + "PublicKey = " + key(2) + "\n"
+                + "AllowedIPs = 0.0.0.0/0, ::/0\n"
+                + "Endpoint = 192.0.2.1:51820\n"
+                + "PersistentKeepalive = 25\n";
+        final Config config = Config.from(text);
+        final Interface iface = config.getInterface();
+        assertEquals(key(1), iface.getPrivateKey());
+        assertEquals(51820, iface.getListenPort());
+        assertEquals(1280, iface.getMtu());
+        assertArrayEquals(new InetNetwork[]{new InetNetwork("10.0.0.2/32"), new InetNetwork("fd00::2/128")},
+                iface.getAddresses());
+        assertEquals(1, config.getPeers().size());
+        final Peer peer = config.getPeers().get(0);
+        assertEquals(key(2), peer.getPublicKey());
+        assertEquals(25, peer.getPersistentKeepalive());
+        assertEquals("192.0.2.1", peer.getEndpoint().getHostString());
+        assertEquals(Arrays.asList(new InetNetwork("0.0.0.0/0"), new InetNetwork("::/0")),
+                Arrays.asList(peer.getAllowedIPs()));
+
+        final StringBuilder sb = new StringBuilder();
+        config.writeTo(sb);
+        assertEquals(config, Config.from(sb.toString()));
+    }
+
+    @Test
+    public void parseReportsReasons() throws IOException {
+        assertBadConfig("", BadConfigException.Reason.NO_CONFIG_INFORMATION);
+        assertBadConfig("PublicKey = " + key(1), BadConfigException.Reason.INVALID_CONFIG_LINE);
+        assertBadConfig("[Interface]\nFoo = bar", BadConfigException.Reason.UNKNOWN_ATTRIBUTE);
+        assertBadConfig("[Interface]\nEndpoint = 192.0.2.1:1", BadConfigException.Reason.ATTRIBUTE_IN_WRONG_SECTION);
+        assertBadConfig("[Peer]\nMTU = 1280", BadConfigException.Reason.ATTRIBUTE_IN_WRONG_SECTION);
+        assertBadConfig("[Interface]\nListenPort = port", BadConfigException.Reason.INVALID_NUMBER);
+        assertBadConfig("[Peer]\nPersistentKeepalive = 1e3", BadConfigException.Reason.INVALID_NUMBER);
+        assertBadConfig("[Peer]\nAllowedIPs = 10.0.0.0/x", BadConfigException.Reason.INVALID_NUMBER);
+        assertBadConfig("[Interface]\nDNS = 1.2.3", BadConfigException.Reason.INVALID_INET_ADDRESS);
+        assertBadConfig("[Peer]\nEndpoint = host/path:1", BadConfigException.Reason.FORBIDDEN_ENDPOINT_CHARS);
+        assertBadConfig("[Peer]\nEndpoint = [::1:1", BadConfigException.Reason.INVALID_ENDPOINT);
+        assertBadConfig("[Peer]\nEndpoint = host", BadConfigException.Reason.INVALID_ENDPOINT);
+    }
+}
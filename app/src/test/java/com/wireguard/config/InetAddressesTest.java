@@ -0,0 +1,59 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class InetAddressesTest {
+    private static final String[] INVALID = {
+            "1.2.3", "1.2.3.4.5", "256.0.0.1", "01.2.3.4", "1.2.3.4 ", "example.com",
+            "::1::", "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7", "12345::", "g::", ":1", "1:",
+            "::ffff:1.2.3", "1::2:3:4:5:6:7:8", "[::1]",
+    };
+    private static final String[] VALID = {
+            "0.0.0.0", "1.2.3.4", "255.255.255.255", "::", "::1", "1::", "fe80::1:2",
+            "2001:db8::ff00:42:8329", "1:2:3:4:5:6:7:8", "::ffff:192.0.2.1", "64:ff9b::1.2.3.4",
+            "FFFF:ffff:FFFF:ffff:FFFF:ffff:FFFF:ffff",
+    };
+
+    @Test
+    public void formatUsesCanonicalText() {
+        assertEquals("2001:db8::1", InetAddresses.format(InetAddresses.parse("2001:0db8:0:0:0:0:0:1")));
+        assertEquals("1:0:0:1::1", InetAddresses.format(InetAddresses.parse("1:0:0:1:0:0:0:1")));
+        assertEquals("::", InetAddresses.format(InetAddresses.parse("0::0")));
+        assertEquals("10.0.0.1", InetAddresses.format(InetAddresses.parse("10.0.0.1")));
+    }
+
+    @Test
+    public void parseAgreesWithPlatform() throws UnknownHostException {
+        for (final String text : VALID)
+            assertEquals(text, InetAddress.getByName(text), InetAddresses.parse(text));
+    }
+
+    @Test
+    public void parseRejectsMalformedAddresses() {
+        for (final String text : INVALID) {
+            try {
+                InetAddresses.parse(text);
+                fail("Parsed invalid address: " + text);
+            } catch (final BadConfigException e) {
+                assertEquals(BadConfigException.Reason.INVALID_INET_ADDRESS, e.getReason());
+            }
+        }
+        try {
+            InetAddresses.parse("");
+            fail("Parsed empty address");
+        } catch (final BadConfigException e) {
+            assertEquals(BadConfigException.Reason.EMPTY_INET_ADDRESS, e.getReason());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InetNetworkSetTest {
+    private static InetNetworkSet set(final String... networks) {
+        final List<InetNetwork> list = new ArrayList<>();
+        for (final String network : networks)
+            list.add(new InetNetwork(network));
+        return InetNetworkSet.of(list);
+    }
+
+    private static List<InetNetwork> prefixes(final String... networks) {
+        final List<InetNetwork> list = new ArrayList<>();
+        for (final String network : networks)
+            list.add(new InetNetwork(network));
+        return list;
+    }
+
+    @Test
+    public void complementCoversBothFamilies() {
+        final InetNetworkSet set = set("0.0.0.0/1", "::/1");
+        assertEquals(prefixes("128.0.0.0/1", "8000::/1"), set.complement().toPrefixes());
+        assertEquals(set("0.0.0.0/0", "::/0"), InetNetworkSet.EMPTY.complement());
+        assertTrue(set.union(set.complement()).complement().isEmpty());
+    }
+
+    @Test
+    public void excludingPrivateRangesGivesMinimalCover() {
+        final InetNetworkSet routes = set("0.0.0.0/0")
+                .subtract(set("10.0.0.0/8", "172.16.0.0/12", "192.168.0.0/16"));
+        assertFalse(routes.contains(new InetNetwork("10.1.0.0/16")));
+        assertTrue(routes.contains(new InetNetwork("11.0.0.0/8")));
+        assertEquals(prefixes("0.0.0.0/5", "8.0.0.0/7", "11.0.0.0/8", "12.0.0.0/6", "16.0.0.0/4",
+                "32.0.0.0/3", "64.0.0.0/2", "128.0.0.0/3", "160.0.0.0/5", "168.0.0.0/6",
+                "172.0.0.0/12", "172.32.0.0/11", "172.64.0.0/10", "172.128.0.0/9", "173.0.0.0/8",
+                "174.0.0.0/7", "176.0.0.0/4", "192.0.0.0/9", "192.128.0.0/11", "192.160.0.0/13",
+                "192.169.0.0/16", "192.170.0.0/15", "192.172.0.0/14", "192.176.0.0/12",
+                "192.192.0.0/10", "193.0.0.0/8", "194.0.0.0/7", "196.0.0.0/6", "200.0.0.0/5",
+                "208.0.0.0/4", "224.0.0.0/3"), routes.toPrefixes());
+    }
+
+    @Test
+    public void ofMergesOverlappingAndAdjacentNetworks() {
+        assertEquals(prefixes("10.0.0.0/23", "fd00::/127"),
+                set("fd00::1/128", "10.0.1.0/24", "10.0.0.0/24", "10.0.0.128/25", "fd00::/128").toPrefixes());
+        assertEquals(set("10.0.0.0/8"), set("10.1.2.3/8"));
+    }
+
+    @Test
+    public void operationsMatchBruteForce() {
+        final Random random = new Random(6);
+        for (int iteration = 0; iteration < 200; ++iteration) {
+            final boolean[] a = new boolean[256];
+            final boolean[] b = new boolean[256];
+            final InetNetworkSet setA = randomSet(random, a);
+            final InetNetworkSet setB = randomSet(random, b);
+            final InetNetworkSet union = setA.union(setB);
+            final InetNetworkSet intersection = setA.intersect(setB);
+            final InetNetworkSet difference = setA.subtract(setB);
+            for (int i = 0; i < 256; ++i) {
+                final InetNetwork address = new InetNetwork(false, 0, 0x0a000000L | i, 32);
+                assertEquals(a[i] || b[i], union.contains(address));
+                assertEquals(a[i] && b[i], intersection.contains(address));
+                assertEquals(a[i] && !b[i], difference.contains(address));
+                assertEquals(!a[i], setA.complement().contains(address));
+            }
+            assertEquals(setA, InetNetworkSet.of(setA.toPrefixes()));
+            assertEquals(setA.containsAll(setB), setB.subtract(setA).isEmpty());
+        }
+    }
+
+    @Test
+    public void ofSortsLargeInputs() {
+        final List<InetNetwork> networks = new ArrayList<>();
+        for (int i = 0; i < 100000; ++i)
+            networks.add(new InetNetwork(false, 0, (long) i << 8, 24));
+        Collections.shuffle(networks, new Random(6));
+        // 100000 consecutive /24s cover 0.0.0.0 up to 1.134.159.255.
+        final InetNetworkSet set = InetNetworkSet.of(networks);
+        assertEquals(set("0.0.0.0/8", "1.0.0.0/9", "1.128.0.0/14", "1.132.0.0/15", "1.134.0.0/17",
+                "1.134.128.0/19"), set);
+        assertTrue(set.contains(new InetNetwork("1.134.159.0/24")));
+        assertFalse(set.contains(new InetNetwork("1.134.160.0/24")));
+    }
+
+    private static InetNetworkSet randomSet(final Random random, final boolean[] members) {
+        final List<InetNetwork> networks = new ArrayList<>();
+        final int count = random.nextInt(12);
+        for (int i = 0; i < count; ++i) {
+            final int mask = 24 + random.nextInt(9);
+            final InetNetwork network = new InetNetwork(false, 0, 0x0a000000L | random.nextInt(256), mask)
+                    .canonicalize();
+            networks.add(network);
+            final int start = (int) (network.getAddressLow() & 0xff);
+            Arrays.fill(members, start, start + (1 << (32 - mask)), true);
+        }
+        return InetNetworkSet.of(networks);
+    }
+}
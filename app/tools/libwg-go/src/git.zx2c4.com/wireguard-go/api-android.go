@@ -0,0 +1,493 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (C) 2017-2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ */
+
+package main
+
+// #cgo LDFLAGS: -llog
+// #include <android/log.h>
+import "C"
+
+import (
+	"bufio"
+	"bytes"
+	"git.zx2c4.com/wireguard-go/routetable"
+	"git.zx2c4.com/wireguard-go/tun"
+	"golang.org/x/sys/unix"
+	"io/ioutil"
+	"log"
+	"math"
+	"net"
+	"os"
+	"os/signal"
+	"runtime"
+	"strings"
+	"sync"
+	"unsafe"
+)
+
+type AndroidLogger struct {
+	level         C.int
+	interfaceName string
+}
+
+func (l AndroidLogger) Write(p []byte) (int, error) {
+	C.__android_log_write(l.level, C.CString("WireGuard/GoBackend/"+l.interfaceName), C.CString(string(p)))
+	return len(p), nil
+}
+
+type TunnelHandle struct {
+	device *Device
+	uapi   net.Listener
+}
+
+/* The exported functions are called from several Java threads at once, so tunnelHandles is
+ * guarded by tunnelHandlesMutex. A handle is reserved with a nil device while it is being turned
+ * on, and only handles with a device are visible to the other functions.
+ */
+var tunnelHandles map[int32]TunnelHandle
+var tunnelHandlesMutex sync.RWMutex
+
+func getTunnelHandle(tunnelHandle int32) (TunnelHandle, bool) {
+	tunnelHandlesMutex.RLock()
+	defer tunnelHandlesMutex.RUnlock()
+	handle, ok := tunnelHandles[tunnelHandle]
+	return handle, ok && handle.device != nil
+}
+
+/* Android allows a single VPN interface per application, so every running tunnel shares the
+ * one tun device established by the VpnService. Each wireguard-go device gets a virtualTun,
+ * and packets read from the real device are handed to the tunnel whose routes contain the
+ * destination address most specifically, as decided by the routetable package.
+ */
+
+const sharedTunBufferSize = 65535
+const virtualTunQueueSize = 128
+
+type sharedTun struct {
+	mutex  sync.RWMutex
+	device tun.TUNDevice
+	name   string
+	mtu    int
+	tuns   map[int32]*virtualTun
+	routes *routetable.Table
+	logger *log.Logger
+}
+
+type virtualTun struct {
+	handle    int32
+	shared    *sharedTun
+	packets   chan []byte
+	events    chan tun.TUNEvent
+	closed    chan struct{}
+	closeOnce sync.Once
+}
+
+/* Queued packets are sized from the MTU rather than the largest possible packet; buffers that
+ * turn out too small after the MTU grows are simply dropped for the collector.
+ */
+var packetPool sync.Pool
+
+var shared = &sharedTun{
+	tuns:   make(map[int32]*virtualTun),
+	routes: routetable.New(),
+	logger: log.New(&AndroidLogger{level: C.ANDROID_LOG_ERROR, interfaceName: "tun"}, "", 0),
+}
+
+func (s *sharedTun) replace(device tun.TUNDevice, name string) {
+	s.mutex.Lock()
+	old := s.device
+	s.device = device
+	s.name = name
+	if device != nil {
+		mtu, err := device.MTU()
+		if err != nil {
+			s.logger.Println(err)
+		} else {
+			s.mtu = mtu
+		}
+	}
+	for _, t := range s.tuns {
+		select {
+		case t.events <- tun.TUNEventMTUUpdate:
+		default:
+		}
+	}
+	s.mutex.Unlock()
+	if old != nil {
+		old.Close()
+	}
+	if device != nil {
+		go s.routineReadFromTUN(device)
+	}
+}
+
+func (s *sharedTun) lookup(destination net.IP) *virtualTun {
+	handle, ok := s.routes.Lookup(destination)
+	if !ok {
+		return nil
+	}
+	return s.tuns[handle]
+}
+
+func (s *sharedTun) getPacket(n int, mtu int) []byte {
+	if packet, ok := packetPool.Get().([]byte); ok && cap(packet) >= n {
+		return packet[:n]
+	}
+	if mtu < n {
+		mtu = n
+	}
+	return make([]byte, n, mtu)
+}
+
+func (s *sharedTun) routineReadFromTUN(device tun.TUNDevice) {
+	buffer := make([]byte, sharedTunBufferSize)
+	for {
+		n, err := device.Read(buffer, 0)
+		if err != nil {
+			return
+		}
+		var destination net.IP
+		switch {
+		case n >= 20 && buffer[0]>>4 == 4:
+			destination = net.IP(buffer[16:20])
+		case n >= 40 && buffer[0]>>4 == 6:
+			destination = net.IP(buffer[24:40])
+		default:
+			continue
+		}
+		s.mutex.RLock()
+		target := s.lookup(destination)
+		mtu := s.mtu
+		s.mutex.RUnlock()
+		if target == nil {
+			continue
+		}
+		packet := s.getPacket(n, mtu)
+		copy(packet, buffer[:n])
+		select {
+		case target.packets <- packet:
+		default:
+			packetPool.Put(packet[:cap(packet)])
+		}
+	}
+}
+
+func (t *virtualTun) File() *os.File {
+	t.shared.mutex.RLock()
+	defer t.shared.mutex.RUnlock()
+	if t.shared.device == nil {
+		return nil
+	}
+	return t.shared.device.File()
+}
+
+func (t *virtualTun) Read(buffer []byte, offset int) (int, error) {
+	select {
+	case packet := <-t.packets:
+		n := copy(buffer[offset:], packet)
+		packetPool.Put(packet[:cap(packet)])
+		return n, nil
+	case <-t.closed:
+		return 0, os.ErrClosed
+	}
+}
+
+func (t *virtualTun) Write(buffer []byte, offset int) (int, error) {
+	t.shared.mutex.RLock()
+	defer t.shared.mutex.RUnlock()
+	if t.shared.device == nil {
+		// The session is being re-established; drop the packet.
+		return len(buffer) - offset, nil
+	}
+	return t.shared.device.Write(buffer, offset)
+}
+
+func (t *virtualTun) MTU() (int, error) {
+	t.shared.mutex.RLock()
+	defer t.shared.mutex.RUnlock()
+	return t.shared.mtu, nil
+}
+
+func (t *virtualTun) Name() (string, error) {
+	t.shared.mutex.RLock()
+	defer t.shared.mutex.RUnlock()
+	return t.shared.name, nil
+}
+
+func (t *virtualTun) Events() chan tun.TUNEvent {
+	return t.events
+}
+
+func (t *virtualTun) Close() error {
+	t.closeOnce.Do(func() {
+		t.shared.mutex.Lock()
+		if t.shared.tuns[t.handle] == t {
+			delete(t.shared.tuns, t.handle)
+			t.shared.routes.Remove(t.handle)
+		}
+		t.shared.mutex.Unlock()
+		close(t.closed)
+	})
+	return nil
+}
+
+func init() {
+	roamingDisabled = true
+	tunnelHandles = make(map[int32]TunnelHandle)
+	signals := make(chan os.Signal)
+	signal.Notify(signals, unix.SIGUSR2)
+	go func() {
+		buf := make([]byte, os.Getpagesize())
+		for {
+			select {
+			case <-signals:
+				n := runtime.Stack(buf, true)
+				buf[n] = 0
+				C.__android_log_write(C.ANDROID_LOG_ERROR, C.CString("WireGuard/GoBackend/Stacktrace"), (*_Ctype_char)(unsafe.Pointer(&buf[0])))
+			}
+		}
+	}()
+}
+
+//export wgSetTun
+func wgSetTun(tun_fd int32) int32 {
+	if tun_fd < 0 {
+		shared.replace(nil, "")
+		return 0
+	}
+	tunDevice, name, err := tun.CreateTUNFromFD(int(tun_fd))
+	if err != nil {
+		unix.Close(int(tun_fd))
+		shared.logger.Println(err)
+		return -1
+	}
+	shared.logger.Println("Attaching to interface", name)
+	shared.replace(tunDevice, name)
+	return 0
+}
+
+//export wgTurnOn
+func wgTurnOn(ifnameRef string, settings string) int32 {
+	interfaceName := string([]byte(ifnameRef))
+
+	logger := &Logger{
+		Debug: log.New(&AndroidLogger{level: C.ANDROID_LOG_DEBUG, interfaceName: interfaceName}, "", 0),
+		Info:  log.New(&AndroidLogger{level: C.ANDROID_LOG_INFO, interfaceName: interfaceName}, "", 0),
+		Error: log.New(&AndroidLogger{level: C.ANDROID_LOG_ERROR, interfaceName: interfaceName}, "", 0),
+	}
+
+	logger.Debug.Println("Debug log enabled")
+
+	shared.mutex.RLock()
+	attached := shared.device != nil
+	shared.mutex.RUnlock()
+	if !attached {
+		logger.Error.Println("No tun device attached")
+		return -1
+	}
+
+	var i int32
+	tunnelHandlesMutex.Lock()
+	for i = 0; i < math.MaxInt32; i++ {
+		if _, exists := tunnelHandles[i]; !exists {
+			break
+		}
+	}
+	if i == math.MaxInt32 {
+		tunnelHandlesMutex.Unlock()
+		return -1
+	}
+	// Reserve the handle so that a concurrent wgTurnOn picks another one.
+	tunnelHandles[i] = TunnelHandle{}
+	tunnelHandlesMutex.Unlock()
+
+	vtun := &virtualTun{
+		handle:  i,
+		shared:  shared,
+		packets: make(chan []byte, virtualTunQueueSize),
+		events:  make(chan tun.TUNEvent, 5),
+		closed:  make(chan struct{}),
+	}
+	shared.mutex.Lock()
+	shared.tuns[i] = vtun
+	shared.mutex.Unlock()
+
+	device := NewDevice(vtun, logger)
+
+	logger.Debug.Println("Interface has MTU", device.tun.mtu)
+
+	bufferedSettings := bufio.NewReadWriter(bufio.NewReader(strings.NewReader(settings)), bufio.NewWriter(ioutil.Discard))
+	setError := ipcSetOperation(device, bufferedSettings)
+	if setError != nil {
+		device.Close()
+		logger.Error.Println(setError)
+		tunnelHandlesMutex.Lock()
+		delete(tunnelHandles, i)
+		tunnelHandlesMutex.Unlock()
+		return -1
+	}
+
+	var uapi net.Listener
+
+	uapiFile, err := UAPIOpen(interfaceName)
+	if err != nil {
+		logger.Error.Println(err)
+	} else {
+		uapi, err = UAPIListen(interfaceName, uapiFile)
+		if err != nil {
+			uapiFile.Close()
+			logger.Error.Println(err)
+		} else {
+			go func() {
+				for {
+					conn, err := uapi.Accept()
+					if err != nil {
+						return
+					}
+					go ipcHandle(device, conn)
+				}
+			}()
+		}
+	}
+
+	device.Up()
+	logger.Info.Println("Device started")
+
+	tunnelHandlesMutex.Lock()
+	tunnelHandles[i] = TunnelHandle{device: device, uapi: uapi}
+	tunnelHandlesMutex.Unlock()
+	return i
+}
+
+//export wgSetRoutes
+func wgSetRoutes(tunnelHandle int32, routes string) int32 {
+	var networks []net.IPNet
+	for _, line := range strings.Split(routes, "\n") {
+		if len(line) == 0 {
+			continue
+		}
+		_, network, err := net.ParseCIDR(line)
+		if err != nil {
+			shared.logger.Println(err)
+			return -1
+		}
+		networks = append(networks, *network)
+	}
+	shared.mutex.Lock()
+	defer shared.mutex.Unlock()
+	if _, ok := shared.tuns[tunnelHandle]; !ok {
+		return -1
+	}
+	// Two tunnels with the same route would make dispatch ambiguous, so refuse rather than pick one.
+	if err := shared.routes.Set(tunnelHandle, networks); err != nil {
+		shared.logger.Println(err)
+		return -1
+	}
+	return 0
+}
+
+//export wgTurnOff
+func wgTurnOff(tunnelHandle int32) {
+	tunnelHandlesMutex.Lock()
+	handle, ok := tunnelHandles[tunnelHandle]
+	if !ok || handle.device == nil {
+		tunnelHandlesMutex.Unlock()
+		return
+	}
+	delete(tunnelHandles, tunnelHandle)
+	tunnelHandlesMutex.Unlock()
+	if handle.uapi != nil {
+		handle.uapi.Close()
+	}
+	handle.device.Close()
+}
+
+//export wgSetConfig
+func wgSetConfig(tunnelHandle int32, settings string) int32 {
+	handle, ok := getTunnelHandle(tunnelHandle)
+	if !ok {
+		return -1
+	}
+	// Without replace_peers=true, peers not mentioned in settings are left untouched.
+	bufferedSettings := bufio.NewReadWriter(bufio.NewReader(strings.NewReader(settings)), bufio.NewWriter(ioutil.Discard))
+	setError := ipcSetOperation(handle.device, bufferedSettings)
+	if setError != nil {
+		handle.device.log.Error.Println(setError)
+		return -1
+	}
+	return 0
+}
+
+//export wgGetConfig
+func wgGetConfig(tunnelHandle int32) *C.char {
+	handle, ok := getTunnelHandle(tunnelHandle)
+	if !ok {
+		return nil
+	}
+	settings := new(bytes.Buffer)
+	writer := bufio.NewWriter(settings)
+	getError := ipcGetOperation(handle.device, bufio.NewReadWriter(bufio.NewReader(strings.NewReader("")), writer))
+	if getError != nil {
+		handle.device.log.Error.Println(getError)
+		return nil
+	}
+	writer.Flush()
+	return C.CString(settings.String())
+}
+
+//export wgGetSocketV4
+func wgGetSocketV4(tunnelHandle int32) int32 {
+	handle, ok := getTunnelHandle(tunnelHandle)
+	if !ok {
+		return -1
+	}
+	native, ok := handle.device.net.bind.(*NativeBind)
+	if !ok {
+		return -1
+	}
+	fd := int32(-1)
+	conn, err := native.ipv4.SyscallConn()
+	if err != nil {
+		return -1
+	}
+	err = conn.Control(func(f uintptr) {
+		fd = int32(f)
+	})
+	if err != nil {
+		return -1
+	}
+	return fd
+}
+
+//export wgGetSocketV6
+func wgGetSocketV6(tunnelHandle int32) int32 {
+	handle, ok := getTunnelHandle(tunnelHandle)
+	if !ok {
+		return -1
+	}
+	native, ok := handle.device.net.bind.(*NativeBind)
+	if !ok {
+		return -1
+	}
+	fd := int32(-1)
+	conn, err := native.ipv6.SyscallConn()
+	if err != nil {
+		return -1
+	}
+	err = conn.Control(func(f uintptr) {
+		fd = int32(f)
+	})
+	if err != nil {
+		return -1
+	}
+	return fd
+}
+
+//export wgVersion
+func wgVersion() *C.char {
+	return C.CString(WireGuardGoVersion)
+}
+
+func main() {}
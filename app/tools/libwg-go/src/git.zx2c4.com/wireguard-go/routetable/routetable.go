@@ -0,0 +1,145 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (C) 2017-2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ */
+
+/* Package routetable decides which of several tunnels sharing one tun device receives a packet.
+ * Each tunnel owns a set of routes; a destination goes to the tunnel whose route contains it most
+ * specifically. Two tunnels may not own the same route, since neither would be more specific.
+ */
+package routetable
+
+import (
+	"fmt"
+	"net"
+	"sort"
+)
+
+type key [net.IPv6len]byte
+
+type DuplicateRouteError struct {
+	Route  net.IPNet
+	Handle int32
+}
+
+func (e *DuplicateRouteError) Error() string {
+	return fmt.Sprintf("route %s is already used by tunnel %d", e.Route.String(), e.Handle)
+}
+
+/* All routes of one prefix length, keyed by their masked network address. Lookups try each
+ * length from the longest down, so they cost one map access per distinct prefix length rather
+ * than a scan of every route of every tunnel.
+ */
+type group struct {
+	bits    int
+	handles map[key]int32
+}
+
+/* A Table is not safe for concurrent use; callers serialize access to it. */
+type Table struct {
+	routes   map[int32][]net.IPNet
+	families [2][]group
+}
+
+func New() *Table {
+	return &Table{routes: make(map[int32][]net.IPNet)}
+}
+
+func family(network net.IPNet) (int, net.IP) {
+	if _, size := network.Mask.Size(); size == 8*net.IPv6len {
+		return 1, network.IP.To16()
+	}
+	return 0, network.IP.To4()
+}
+
+func maskAddress(address []byte, bits int) (k key) {
+	n := copy(k[:], address)
+	for i := 0; i < n; i++ {
+		switch {
+		case bits >= 8:
+			bits -= 8
+		case bits > 0:
+			k[i] &= byte(0xff << uint(8-bits))
+			bits = 0
+		default:
+			k[i] = 0
+		}
+	}
+	return
+}
+
+/* Replaces the routes of a tunnel. If another tunnel already owns one of them, the table is left
+ * unchanged and a *DuplicateRouteError is returned.
+ */
+func (t *Table) Set(handle int32, routes []net.IPNet) error {
+	next := make(map[int32][]net.IPNet, len(t.routes)+1)
+	for h, r := range t.routes {
+		if h != handle {
+			next[h] = r
+		}
+	}
+	if len(routes) > 0 {
+		next[handle] = routes
+	}
+	families, err := build(next)
+	if err != nil {
+		return err
+	}
+	t.routes = next
+	t.families = families
+	return nil
+}
+
+func (t *Table) Remove(handle int32) {
+	t.Set(handle, nil)
+}
+
+func build(routes map[int32][]net.IPNet) (families [2][]group, err error) {
+	var byBits [2]map[int]map[key]int32
+	for handle, networks := range routes {
+		for _, network := range networks {
+			f, address := family(network)
+			if address == nil {
+				continue
+			}
+			bits, _ := network.Mask.Size()
+			if byBits[f] == nil {
+				byBits[f] = make(map[int]map[key]int32)
+			}
+			handles := byBits[f][bits]
+			if handles == nil {
+				handles = make(map[key]int32)
+				byBits[f][bits] = handles
+			}
+			k := maskAddress(address, bits)
+			if owner, ok := handles[k]; ok && owner != handle {
+				return families, &DuplicateRouteError{Route: network, Handle: owner}
+			}
+			handles[k] = handle
+		}
+	}
+	for f := range byBits {
+		for bits, handles := range byBits[f] {
+			families[f] = append(families[f], group{bits: bits, handles: handles})
+		}
+		groups := families[f]
+		sort.Slice(groups, func(i, j int) bool {
+			return groups[i].bits > groups[j].bits
+		})
+	}
+	return families, nil
+}
+
+/* Returns the tunnel whose route contains destination most specifically. */
+func (t *Table) Lookup(destination net.IP) (int32, bool) {
+	groups := t.families[0]
+	if len(destination) == net.IPv6len {
+		groups = t.families[1]
+	}
+	for _, g := range groups {
+		if handle, ok := g.handles[maskAddress(destination, g.bits)]; ok {
+			return handle, true
+		}
+	}
+	return 0, false
+}
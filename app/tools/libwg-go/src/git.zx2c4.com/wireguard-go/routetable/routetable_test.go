@@ -0,0 +1,111 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (C) 2017-2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ */
+
+package routetable
+
+import (
+	"net"
+	"testing"
+)
+
+func parseRoutes(t *testing.T, routes ...string) []net.IPNet {
+	var networks []net.IPNet
+	for _, route := range routes {
+		_, network, err := net.ParseCIDR(route)
+		if err != nil {
+			t.Fatal(err)
+		}
+		networks = append(networks, *network)
+	}
+	return networks
+}
+
+/* Packets read from the tun device carry their destination as 4 or 16 raw bytes. */
+func destination(address string) net.IP {
+	ip := net.ParseIP(address)
+	if ip4 := ip.To4(); ip4 != nil {
+		return ip4
+	}
+	return ip
+}
+
+func expect(t *testing.T, table *Table, address string, handle int32, ok bool) {
+	h, found := table.Lookup(destination(address))
+	if found != ok || (ok && h != handle) {
+		t.Errorf("Lookup(%s) = %d, %v; want %d, %v", address, h, found, handle, ok)
+	}
+}
+
+func TestLookupPrefersMostSpecificRoute(t *testing.T) {
+	table := New()
+	if err := table.Set(1, parseRoutes(t, "0.0.0.0/0", "::/0")); err != nil {
+		t.Fatal(err)
+	}
+	if err := table.Set(2, parseRoutes(t, "10.0.0.0/8", "fd00::/8")); err != nil {
+		t.Fatal(err)
+	}
+	if err := table.Set(3, parseRoutes(t, "10.1.2.3/32", "10.1.0.0/17")); err != nil {
+		t.Fatal(err)
+	}
+	expect(t, table, "192.0.2.1", 1, true)
+	expect(t, table, "10.200.0.1", 2, true)
+	expect(t, table, "10.1.127.255", 3, true)
+	expect(t, table, "10.1.128.0", 2, true)
+	expect(t, table, "10.1.2.3", 3, true)
+	expect(t, table, "fd12::1", 2, true)
+	expect(t, table, "2001:db8::1", 1, true)
+}
+
+func TestLookupWithoutRoute(t *testing.T) {
+	table := New()
+	expect(t, table, "192.0.2.1", 0, false)
+	if err := table.Set(1, parseRoutes(t, "192.0.2.0/24")); err != nil {
+		t.Fatal(err)
+	}
+	expect(t, table, "192.0.3.1", 0, false)
+	expect(t, table, "2001:db8::1", 0, false)
+}
+
+func TestDuplicateRouteIsRejected(t *testing.T) {
+	table := New()
+	if err := table.Set(1, parseRoutes(t, "10.0.0.0/8")); err != nil {
+		t.Fatal(err)
+	}
+	err := table.Set(2, parseRoutes(t, "192.168.0.0/16", "10.1.2.3/8"))
+	if dup, ok := err.(*DuplicateRouteError); !ok || dup.Handle != 1 {
+		t.Fatalf("Set returned %v; want a duplicate of tunnel 1", err)
+	}
+	// The failed update must not have changed anything.
+	expect(t, table, "192.168.1.1", 0, false)
+	expect(t, table, "10.0.0.1", 1, true)
+
+	// A tunnel may replace its own routes, and a route is free again once its owner is removed.
+	if err := table.Set(1, parseRoutes(t, "10.0.0.0/8", "172.16.0.0/12")); err != nil {
+		t.Fatal(err)
+	}
+	table.Remove(1)
+	if err := table.Set(2, parseRoutes(t, "10.0.0.0/8")); err != nil {
+		t.Fatal(err)
+	}
+	expect(t, table, "10.0.0.1", 2, true)
+	expect(t, table, "172.16.0.1", 0, false)
+}
+
+func BenchmarkLookup(b *testing.B) {
+	table := New()
+	var routes []net.IPNet
+	for i := 0; i < 100000; i++ {
+		routes = append(routes, net.IPNet{IP: net.IPv4(10, byte(i>>16), byte(i>>8), byte(i)).To4(), Mask: net.CIDRMask(32, 32)})
+	}
+	routes = append(routes, net.IPNet{IP: net.IPv4zero.To4(), Mask: net.CIDRMask(0, 32)})
+	if err := table.Set(1, routes); err != nil {
+		b.Fatal(err)
+	}
+	address := destination("192.0.2.1")
+	b.ResetTimer()
+	for i := 0; i < b.N; i++ {
+		table.Lookup(address)
+	}
+}